@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Admission control for {@link GtfsRealtimeServlet}: a token-bucket rate limit
+ * per client, plus a cap on the number of full-feed responses being written at
+ * once.
+ * 
+ * Clients are identified by remote address, or by an API key request
+ * parameter when the key is one of a configured set of known keys. The key
+ * parameter is not authenticated here: unknown keys fall back to the remote
+ * address, so that a client can't escape its limit by making keys up.
+ * 
+ * Bucket state is guarded by a fixed set of striped locks, so clients rarely
+ * contend with one another, and idle buckets are dropped after a while so
+ * that the set of tracked clients doesn't grow without bound.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeAdmissionControl {
+
+  private static final int LOCK_STRIPES = 64;
+
+  private final Striped<Lock> _locks = Striped.lock(LOCK_STRIPES);
+
+  private final AtomicLong _rateLimitedRequests = new AtomicLong();
+
+  private final AtomicLong _overCapacityRequests = new AtomicLong();
+
+  private Cache<String, TokenBucket> _buckets;
+
+  private Semaphore _responses;
+
+  private double _requestsPerSecond = 0;
+
+  private int _burst = 1;
+
+  private int _maxConcurrentResponses = 0;
+
+  private String _apiKeyParameter;
+
+  private Set<String> _apiKeys = Collections.emptySet();
+
+  private long _idleClientTimeout = 10 * 60 * 1000;
+
+  /**
+   * @param requestsPerSecond the sustained request rate allowed for each
+   *          client, or zero for no rate limit
+   */
+  public void setRequestsPerSecond(double requestsPerSecond) {
+    _requestsPerSecond = requestsPerSecond;
+  }
+
+  /**
+   * @param burst the number of requests a client may make back-to-back after
+   *          being idle
+   */
+  public void setBurst(int burst) {
+    _burst = burst;
+  }
+
+  /**
+   * @param maxConcurrentResponses the number of full-feed responses that may
+   *          be in progress at once, or zero for no limit
+   */
+  public void setMaxConcurrentResponses(int maxConcurrentResponses) {
+    _maxConcurrentResponses = maxConcurrentResponses;
+  }
+
+  /**
+   * The key is only honored if it's one of the keys passed to
+   * {@link #setApiKeys(Collection)}. Keys should also be validated upstream,
+   * since anyone who learns a known key can share its limit.
+   * 
+   * @param apiKeyParameter the request parameter that identifies a client,
+   *          taking precedence over the client's remote address
+   */
+  public void setApiKeyParameter(String apiKeyParameter) {
+    _apiKeyParameter = apiKeyParameter;
+  }
+
+  /**
+   * @param apiKeys the API keys that get their own rate limit; requests with
+   *          any other key are limited by remote address
+   */
+  public void setApiKeys(Collection<String> apiKeys) {
+    _apiKeys = new HashSet<String>(apiKeys);
+  }
+
+  /**
+   * @param idleClientTimeoutInMilliseconds how long we track a client's rate
+   *          limit after its last request
+   */
+  public void setIdleClientTimeout(long idleClientTimeoutInMilliseconds) {
+    _idleClientTimeout = idleClientTimeoutInMilliseconds;
+  }
+
+  /**
+   * @return the number of requests rejected for exceeding a client's rate limit
+   */
+  public long getRateLimitedRequests() {
+    return _rateLimitedRequests.get();
+  }
+
+  /**
+   * @return the number of requests rejected because too many responses were
+   *         already in progress
+   */
+  public long getOverCapacityRequests() {
+    return _overCapacityRequests.get();
+  }
+
+  /**
+   * @return how long, in seconds, a rate-limited client should wait before
+   *         trying again
+   */
+  public int getRetryAfterSecs() {
+    if (_requestsPerSecond <= 0) {
+      return 1;
+    }
+    return (int) Math.max(1, Math.ceil(1 / _requestsPerSecond));
+  }
+
+  /**
+   * Must be called once configuration is complete and before the first
+   * request is admitted.
+   */
+  @PostConstruct
+  public synchronized void start() {
+    _buckets = CacheBuilder.newBuilder().expireAfterAccess(_idleClientTimeout,
+        TimeUnit.MILLISECONDS).build();
+    if (_maxConcurrentResponses > 0) {
+      _responses = new Semaphore(_maxConcurrentResponses);
+    }
+  }
+
+  /**
+   * Takes a token from the requesting client's bucket.
+   * 
+   * @param req the request
+   * @return true if the request is within the client's rate limit
+   */
+  public boolean tryAcquire(HttpServletRequest req) {
+    return tryAcquire(getClientKey(req), System.nanoTime());
+  }
+
+  /**
+   * Reserves one of the full-feed response slots, which must be returned with
+   * {@link #endResponse()} once the response has been written.
+   * 
+   * @return true if a slot was available
+   */
+  public boolean tryBeginResponse() {
+    Semaphore responses = _responses;
+    if (responses == null || responses.tryAcquire()) {
+      return true;
+    }
+    _overCapacityRequests.incrementAndGet();
+    return false;
+  }
+
+  public void endResponse() {
+    Semaphore responses = _responses;
+    if (responses != null) {
+      responses.release();
+    }
+  }
+
+  /****
+   * Package-Private Methods
+   ****/
+
+  String getClientKey(HttpServletRequest req) {
+    if (_apiKeyParameter != null) {
+      String key = req.getParameter(_apiKeyParameter);
+      if (key != null && _apiKeys.contains(key)) {
+        return "key:" + key;
+      }
+    }
+    return "addr:" + req.getRemoteAddr();
+  }
+
+  boolean tryAcquire(String clientKey, long now) {
+    if (_requestsPerSecond <= 0) {
+      return true;
+    }
+    TokenBucket bucket = getBucket(clientKey, now);
+    Lock lock = _locks.get(clientKey);
+    lock.lock();
+    try {
+      if (bucket.tryAcquire(now, _requestsPerSecond / 1e9, _burst)) {
+        return true;
+      }
+    } finally {
+      lock.unlock();
+    }
+    _rateLimitedRequests.incrementAndGet();
+    return false;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private TokenBucket getBucket(String clientKey, long now) {
+    TokenBucket bucket = _buckets.getIfPresent(clientKey);
+    if (bucket == null) {
+      bucket = new TokenBucket(_burst, now);
+      TokenBucket existing = _buckets.asMap().putIfAbsent(clientKey, bucket);
+      if (existing != null) {
+        bucket = existing;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Guarded by the lock stripe of its client key.
+   */
+  private static class TokenBucket {
+
+    private double _tokens;
+
+    private long _lastRefill;
+
+    public TokenBucket(double tokens, long now) {
+      _tokens = tokens;
+      _lastRefill = now;
+    }
+
+    public boolean tryAcquire(long now, double tokensPerNano, int burst) {
+      _tokens = Math.min(burst, _tokens + (now - _lastRefill) * tokensPerNano);
+      _lastRefill = now;
+      if (_tokens < 1) {
+        return false;
+      }
+      _tokens -= 1;
+      return true;
+    }
+  }
+}
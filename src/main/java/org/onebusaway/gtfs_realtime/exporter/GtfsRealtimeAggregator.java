@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+
+/**
+ * Builds a single feed out of many upstream feeds, each of which owns a
+ * partition of the downstream {@link GtfsRealtimeSink}.
+ * 
+ * Each source gets its own sink from {@link #getSink(String)}, and the ids of
+ * its entities are prefixed with the source name so that ids from different
+ * agencies can't collide. A full update from one source replaces only that
+ * source's partition: it reaches the downstream sink as an incremental update
+ * containing just the entities that changed and deletions for those that
+ * disappeared, so the other partitions, and their cached entity bytes, are
+ * untouched.
+ * 
+ * Sources may push updates concurrently; namespacing and diffing happen under
+ * a per-source lock, and only the resulting differential is serialized
+ * through the downstream sink. Upstream feeds can also be polled with
+ * {@link #addUpstream(String, URL)}. Polling runs on the aggregator's own
+ * fetch pool, which by default has a thread per upstream, so that feeds are
+ * fetched concurrently and one hanging upstream doesn't hold up the others
+ * (see aggregator.fetch.threads).
+ * 
+ * A partition's state only changes once the downstream sink has accepted the
+ * differential, so an update the sink rejects can simply be pushed again.
+ * Since unchanged entities aren't published, when the downstream sink expires
+ * entities (see cache.expire.secs) each partition periodically re-publishes
+ * all of its entities along with the next update it receives, and polled
+ * upstreams are refreshed often enough to provide that update.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeAggregator {
+
+  private final ConcurrentMap<String, Partition> _partitions = new ConcurrentHashMap<String, Partition>();
+
+  private final Map<String, GtfsRealtimeUpstreamPoller> _pollers = new HashMap<String, GtfsRealtimeUpstreamPoller>();
+
+  private GtfsRealtimeSink _sink;
+
+  private ScheduledThreadPoolExecutor _fetchExecutor;
+
+  private int _fetchThreads = 0;
+
+  private String _separator = ":";
+
+  private long _refreshInterval = 0;
+
+  /**
+   * @param sink the sink that receives the aggregated feed
+   */
+  public void setSink(GtfsRealtimeSink sink) {
+    _sink = sink;
+  }
+
+  @Inject
+  void setFetchThreads(@Named("aggregator.fetch.threads") String fetchThreads) {
+    setFetchThreads(Integer.parseInt(fetchThreads));
+  }
+
+  /**
+   * @param fetchThreads the most upstream feeds polled at once, or zero for a
+   *          thread per upstream
+   */
+  public synchronized void setFetchThreads(int fetchThreads) {
+    _fetchThreads = fetchThreads;
+    resizeFetchExecutor();
+  }
+
+  /**
+   * Sets the refresh interval to half the expiry time of the downstream
+   * sink's entities.
+   */
+  @Inject
+  public void setCacheExpireSecs(@Named("cache.expire.secs")
+  String cacheExpireSecs) {
+    setRefreshInterval(TimeUnit.SECONDS.toMillis(Integer.parseInt(cacheExpireSecs)) / 2);
+  }
+
+  /**
+   * @param refreshIntervalInMilliseconds how often each partition re-publishes
+   *          all of its entities, even when unchanged, so that they don't
+   *          expire downstream, or zero to only publish changes
+   */
+  public void setRefreshInterval(long refreshIntervalInMilliseconds) {
+    _refreshInterval = refreshIntervalInMilliseconds;
+  }
+
+  /**
+   * @param separator placed between the source name and the upstream entity
+   *          id (default ":")
+   */
+  public void setSeparator(String separator) {
+    _separator = separator;
+  }
+
+  /**
+   * Sets the header defaults of the aggregated feed. Header defaults pushed by
+   * individual sources are ignored.
+   */
+  public void setFeedHeaderDefaults(FeedHeader header) {
+    _sink.setFeedHeaderDefaults(header);
+  }
+
+  /**
+   * @param name the source name, which prefixes its entity ids
+   * @return the sink into which the named source should push its updates
+   */
+  public GtfsRealtimeSink getSink(String name) {
+    Partition partition = _partitions.get(name);
+    if (partition == null) {
+      partition = new Partition(name + _separator);
+      Partition existing = _partitions.putIfAbsent(name, partition);
+      if (existing != null) {
+        partition = existing;
+      }
+    }
+    return partition;
+  }
+
+  /**
+   * @return the names of the sources that have been given a sink
+   */
+  public Set<String> getSourceNames() {
+    return new HashSet<String>(_partitions.keySet());
+  }
+
+  /**
+   * Polls an upstream feed into the named source's partition.
+   * 
+   * @param name the source name
+   * @param url the upstream feed url
+   * @return the poller, already started
+   */
+  public synchronized GtfsRealtimeUpstreamPoller addUpstream(String name,
+      URL url) {
+    if (_pollers.containsKey(name)) {
+      throw new IllegalArgumentException("upstream already exists: " + name);
+    }
+    GtfsRealtimeUpstreamPoller poller = new GtfsRealtimeUpstreamPoller();
+    poller.setUrl(url);
+    poller.setSink(getSink(name));
+    if (_fetchExecutor == null) {
+      _fetchExecutor = new ScheduledThreadPoolExecutor(1,
+          new ThreadFactoryBuilder().setNameFormat(
+              "gtfs-realtime-aggregator-%d").setDaemon(true).build());
+    }
+    poller.setExecutor(_fetchExecutor);
+    /**
+     * The poller's refreshes are what drive the partition's refresh when the
+     * upstream feed doesn't change, so they need to come more often.
+     */
+    poller.setRefreshInterval(_refreshInterval / 2);
+    _pollers.put(name, poller);
+    resizeFetchExecutor();
+    poller.start();
+    return poller;
+  }
+
+  /**
+   * Stops polling the named source, if it was polled, and deletes all of its
+   * entities from the aggregated feed.
+   */
+  public void removeSource(String name) {
+    GtfsRealtimeUpstreamPoller poller;
+    synchronized (this) {
+      poller = _pollers.remove(name);
+      resizeFetchExecutor();
+    }
+    if (poller != null) {
+      poller.stop();
+    }
+    Partition partition = _partitions.remove(name);
+    if (partition != null) {
+      partition.clear();
+    }
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    for (GtfsRealtimeUpstreamPoller poller : _pollers.values()) {
+      poller.stop();
+    }
+    _pollers.clear();
+    if (_fetchExecutor != null) {
+      _fetchExecutor.shutdownNow();
+      _fetchExecutor = null;
+    }
+  }
+
+  /**
+   * Called with our lock held whenever the upstreams or the configured number
+   * of fetch threads change.
+   */
+  private void resizeFetchExecutor() {
+    if (_fetchExecutor == null) {
+      return;
+    }
+    int threads = _fetchThreads > 0 ? _fetchThreads : _pollers.size();
+    _fetchExecutor.setCorePoolSize(Math.max(1, threads));
+  }
+
+  private class Partition implements GtfsRealtimeSink {
+
+    private final String _prefix;
+
+    /**
+     * The partition's entities as last pushed downstream, keyed by their
+     * namespaced id.
+     */
+    private Map<String, FeedEntity> _entities = new HashMap<String, FeedEntity>();
+
+    private long _lastRefreshTime = System.currentTimeMillis();
+
+    public Partition(String prefix) {
+      _prefix = prefix;
+    }
+
+    @Override
+    public void setFeedHeaderDefaults(FeedHeader header) {
+
+    }
+
+    @Override
+    public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+      boolean refresh = isRefreshDue();
+      Map<String, FeedEntity> entities = new HashMap<String, FeedEntity>();
+      GtfsRealtimeIncrementalUpdate differential = new GtfsRealtimeIncrementalUpdate();
+      for (FeedEntity entity : update.getEntities()) {
+        FeedEntity namespaced = namespace(entity);
+        entities.put(namespaced.getId(), namespaced);
+        if (refresh || !namespaced.equals(_entities.get(namespaced.getId()))) {
+          differential.addUpdatedEntity(namespaced);
+        }
+      }
+      for (String id : _entities.keySet()) {
+        if (!entities.containsKey(id)) {
+          differential.addDeletedEntity(id);
+        }
+      }
+      publish(differential, refresh);
+      _entities = entities;
+    }
+
+    @Override
+    public synchronized void handleIncrementalUpdate(
+        GtfsRealtimeIncrementalUpdate update) {
+      boolean refresh = isRefreshDue();
+      Map<String, FeedEntity> updated = new HashMap<String, FeedEntity>();
+      GtfsRealtimeIncrementalUpdate differential = new GtfsRealtimeIncrementalUpdate();
+      differential.setExpirationTime(update.getExpirationTime());
+      for (FeedEntity entity : update.getUpdatedEntities()) {
+        FeedEntity namespaced = namespace(entity);
+        updated.put(namespaced.getId(), namespaced);
+        // An update with an expiration time also refreshes the entity's expiry.
+        if (refresh || update.getExpirationTime() >= 0
+            || !namespaced.equals(_entities.get(namespaced.getId()))) {
+          differential.addUpdatedEntity(namespaced);
+        }
+      }
+      Set<String> deleted = new HashSet<String>();
+      for (String id : update.getDeletedEntities()) {
+        String namespaced = _prefix + id;
+        if (_entities.containsKey(namespaced) && deleted.add(namespaced)) {
+          differential.addDeletedEntity(namespaced);
+        }
+      }
+      if (refresh) {
+        for (FeedEntity entity : _entities.values()) {
+          if (!updated.containsKey(entity.getId())
+              && !deleted.contains(entity.getId())) {
+            differential.addUpdatedEntity(entity);
+          }
+        }
+      }
+      publish(differential, refresh);
+      _entities.putAll(updated);
+      _entities.keySet().removeAll(deleted);
+    }
+
+    public synchronized void clear() {
+      GtfsRealtimeIncrementalUpdate differential = new GtfsRealtimeIncrementalUpdate();
+      for (String id : _entities.keySet()) {
+        differential.addDeletedEntity(id);
+      }
+      publish(differential, false);
+      _entities.clear();
+    }
+
+    private boolean isRefreshDue() {
+      return _refreshInterval > 0
+          && System.currentTimeMillis() - _lastRefreshTime >= _refreshInterval;
+    }
+
+    private FeedEntity namespace(FeedEntity entity) {
+      return entity.toBuilder().setId(_prefix + entity.getId()).build();
+    }
+
+    private void publish(GtfsRealtimeIncrementalUpdate differential,
+        boolean refresh) {
+      if (!differential.getUpdatedEntities().isEmpty()
+          || !differential.getDeletedEntities().isEmpty()) {
+        _sink.handleIncrementalUpdate(differential);
+      }
+      if (refresh) {
+        _lastRefreshTime = System.currentTimeMillis();
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for WebSocket message compression, used to weigh the
+ * bandwidth saved against the CPU spent. All counts cover data messages that
+ * were sent compressed; messages served from the shared compression cache
+ * count towards the bytes saved but cost no compression time.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeCompressionStats {
+
+  private final AtomicLong _messages = new AtomicLong();
+
+  private final AtomicLong _sharedMessages = new AtomicLong();
+
+  private final AtomicLong _uncompressedBytes = new AtomicLong();
+
+  private final AtomicLong _compressedBytes = new AtomicLong();
+
+  private final AtomicLong _compressionNanos = new AtomicLong();
+
+  /**
+   * @return the number of messages sent compressed
+   */
+  public long getMessages() {
+    return _messages.get();
+  }
+
+  /**
+   * @return the number of compressed messages that reused a payload already
+   *         compressed for another session
+   */
+  public long getSharedMessages() {
+    return _sharedMessages.get();
+  }
+
+  /**
+   * @return the total size of the messages before compression
+   */
+  public long getUncompressedBytes() {
+    return _uncompressedBytes.get();
+  }
+
+  /**
+   * @return the total size of the messages as sent
+   */
+  public long getCompressedBytes() {
+    return _compressedBytes.get();
+  }
+
+  public long getBytesSaved() {
+    return getUncompressedBytes() - getCompressedBytes();
+  }
+
+  /**
+   * @return the CPU time spent compressing, in nanoseconds. Where the runtime
+   *         doesn't support per-thread CPU time, this is elapsed time instead.
+   */
+  public long getCompressionNanos() {
+    return _compressionNanos.get();
+  }
+
+  void addMessage(int uncompressedSize, int compressedSize, boolean shared) {
+    _messages.incrementAndGet();
+    if (shared) {
+      _sharedMessages.incrementAndGet();
+    }
+    _uncompressedBytes.addAndGet(uncompressedSize);
+    _compressedBytes.addAndGet(compressedSize);
+  }
+
+  void addCompressionTime(long nanos) {
+    _compressionNanos.addAndGet(nanos);
+  }
+
+  @Override
+  public String toString() {
+    return "messages=" + getMessages() + " shared=" + getSharedMessages()
+        + " uncompressed=" + getUncompressedBytes() + " compressed="
+        + getCompressedBytes() + " saved=" + getBytesSaved() + " cpuMs="
+        + (getCompressionNanos() / 1000000);
+  }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.VehiclePositionsExporter;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+
+/**
+ * A {@link GtfsRealtimeSink} that sits in front of another sink, typically the
+ * {@link VehiclePositions} exporter, and drops vehicle position updates that
+ * don't tell consumers anything new. An update is dropped when the vehicle has
+ * moved less than the distance threshold, turned less than the bearing
+ * threshold, and nothing else about it has changed apart from its timestamp,
+ * speed and odometer. Any such vehicle is still forwarded once its last
+ * forwarded update reaches the maximum age, so consumers never see a position
+ * older than that.
+ * 
+ * Full updates, deletions and entities without a vehicle position are always
+ * forwarded. If the downstream exporter expires entities, keep the maximum age
+ * below its expiration time, so parked vehicles don't expire.
+ * 
+ * A vehicle that stops reporting without being deleted is forgotten once its
+ * last forwarded update is several maximum ages old, so vehicles that come and
+ * go don't accumulate.
+ * 
+ * The filter is opt-in: setting the deadband.enabled system property binds the
+ * {@link VehiclePositions} sink to it in {@link GtfsRealtimeExporterModule},
+ * and its thresholds are set by the deadband.distance.threshold,
+ * deadband.bearing.threshold and deadband.max.age properties.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeDeadBandFilter implements GtfsRealtimeSink {
+
+  private static final double EARTH_RADIUS_IN_METERS = 6371010.0;
+
+  /**
+   * How many maximum ages a vehicle's last forwarded update can reach before
+   * we forget the vehicle.
+   */
+  private static final int EVICTION_AGE_MULTIPLE = 4;
+
+  /**
+   * Kept in the order vehicles were last forwarded, oldest first, so stale
+   * vehicles can be evicted from the head.
+   */
+  private final Map<String, ForwardedPosition> _forwarded = new LinkedHashMap<String, ForwardedPosition>();
+
+  private GtfsRealtimeSink _sink;
+
+  private double _distanceThreshold = 10;
+
+  private double _bearingThreshold = 15;
+
+  private long _maxAge = TimeUnit.SECONDS.toMillis(60);
+
+  private long _suppressedCount = 0;
+
+  /**
+   * Injected with the {@link VehiclePositions} exporter itself, rather than
+   * its sink binding, which is bound to this filter when it is enabled.
+   */
+  @Inject
+  public void setSink(VehiclePositionsExporter sink) {
+    setSink((GtfsRealtimeSink) sink);
+  }
+
+  public void setSink(GtfsRealtimeSink sink) {
+    _sink = sink;
+  }
+
+  @Inject
+  void setDistanceThreshold(@Named("deadband.distance.threshold")
+  String distanceThreshold) {
+    setDistanceThreshold(Double.parseDouble(distanceThreshold));
+  }
+
+  /**
+   * @param distanceThresholdInMeters movement below which a position update is
+   *          dropped
+   */
+  public void setDistanceThreshold(double distanceThresholdInMeters) {
+    _distanceThreshold = distanceThresholdInMeters;
+  }
+
+  @Inject
+  void setBearingThreshold(@Named("deadband.bearing.threshold")
+  String bearingThreshold) {
+    setBearingThreshold(Double.parseDouble(bearingThreshold));
+  }
+
+  /**
+   * @param bearingThresholdInDegrees turns below which a position update is
+   *          dropped
+   */
+  public void setBearingThreshold(double bearingThresholdInDegrees) {
+    _bearingThreshold = bearingThresholdInDegrees;
+  }
+
+  @Inject
+  void setMaxAge(@Named("deadband.max.age")
+  String maxAge) {
+    setMaxAge(Long.parseLong(maxAge));
+  }
+
+  /**
+   * @param maxAgeInMilliseconds how long a vehicle can go without being
+   *          forwarded before an update is forwarded regardless
+   */
+  public void setMaxAge(long maxAgeInMilliseconds) {
+    _maxAge = maxAgeInMilliseconds;
+  }
+
+  /**
+   * @return the number of entity updates dropped so far
+   */
+  public synchronized long getSuppressedCount() {
+    return _suppressedCount;
+  }
+
+  /**
+   * @return the number of vehicles whose last forwarded update we remember
+   */
+  public synchronized int getTrackedCount() {
+    return _forwarded.size();
+  }
+
+  /****
+   * {@link GtfsRealtimeSink} Interface
+   ****/
+
+  @Override
+  public void setFeedHeaderDefaults(FeedHeader header) {
+    _sink.setFeedHeaderDefaults(header);
+  }
+
+  @Override
+  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    long now = System.currentTimeMillis();
+    _forwarded.clear();
+    for (FeedEntity entity : update.getEntities()) {
+      if (entity.hasVehicle()) {
+        _forwarded.put(entity.getId(), new ForwardedPosition(entity.getVehicle(), now));
+      }
+    }
+    _sink.handleFullUpdate(update);
+  }
+
+  @Override
+  public synchronized void handleIncrementalUpdate(
+      GtfsRealtimeIncrementalUpdate update) {
+    long now = System.currentTimeMillis();
+    evictStaleVehicles(now);
+    GtfsRealtimeIncrementalUpdate filtered = new GtfsRealtimeIncrementalUpdate();
+    filtered.setExpirationTime(update.getExpirationTime());
+    for (FeedEntity entity : update.getUpdatedEntities()) {
+      if (!entity.hasVehicle()) {
+        _forwarded.remove(entity.getId());
+        filtered.addUpdatedEntity(entity);
+        continue;
+      }
+      ForwardedPosition forwarded = _forwarded.get(entity.getId());
+      if (forwarded != null && now - forwarded.getTime() < _maxAge
+          && !isSignificantChange(forwarded.getVehicle(), entity.getVehicle())) {
+        _suppressedCount++;
+        continue;
+      }
+      // Re-inserted, rather than replaced, to move it to the tail.
+      _forwarded.remove(entity.getId());
+      _forwarded.put(entity.getId(), new ForwardedPosition(entity.getVehicle(), now));
+      filtered.addUpdatedEntity(entity);
+    }
+    for (String id : update.getDeletedEntities()) {
+      _forwarded.remove(id);
+      filtered.addDeletedEntity(id);
+    }
+    if (!filtered.getUpdatedEntities().isEmpty()
+        || !filtered.getDeletedEntities().isEmpty()) {
+      _sink.handleIncrementalUpdate(filtered);
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Forgets vehicles that haven't been forwarded for several maximum ages. If
+   * such a vehicle reports again, its update is simply forwarded.
+   */
+  private void evictStaleVehicles(long now) {
+    long cutoff = now - _maxAge * EVICTION_AGE_MULTIPLE;
+    Iterator<ForwardedPosition> it = _forwarded.values().iterator();
+    while (it.hasNext() && it.next().getTime() < cutoff) {
+      it.remove();
+    }
+  }
+
+  private boolean isSignificantChange(VehiclePosition from, VehiclePosition to) {
+    if (from.hasPosition() != to.hasPosition()) {
+      return true;
+    }
+    if (from.hasPosition()) {
+      Position a = from.getPosition();
+      Position b = to.getPosition();
+      if (getDistance(a, b) >= _distanceThreshold) {
+        return true;
+      }
+      if (a.hasBearing() != b.hasBearing()) {
+        return true;
+      }
+      if (a.hasBearing()
+          && getBearingDifference(a.getBearing(), b.getBearing()) >= _bearingThreshold) {
+        return true;
+      }
+    }
+    return !stripInsignificantFields(from).equals(stripInsignificantFields(to));
+  }
+
+  private static VehiclePosition stripInsignificantFields(
+      VehiclePosition vehicle) {
+    VehiclePosition.Builder builder = vehicle.toBuilder();
+    builder.clearPosition();
+    builder.clearTimestamp();
+    return builder.build();
+  }
+
+  /**
+   * An equirectangular approximation, which is plenty accurate over the short
+   * distances we compare against.
+   */
+  private static double getDistance(Position a, Position b) {
+    double lat = Math.toRadians((a.getLatitude() + b.getLatitude()) / 2);
+    double x = Math.toRadians(b.getLongitude() - a.getLongitude())
+        * Math.cos(lat);
+    double y = Math.toRadians(b.getLatitude() - a.getLatitude());
+    return Math.sqrt(x * x + y * y) * EARTH_RADIUS_IN_METERS;
+  }
+
+  private static double getBearingDifference(double a, double b) {
+    double difference = Math.abs(a - b) % 360;
+    return difference > 180 ? 360 - difference : difference;
+  }
+
+  private static class ForwardedPosition {
+
+    private final VehiclePosition _vehicle;
+
+    private final long _time;
+
+    public ForwardedPosition(VehiclePosition vehicle, long time) {
+      _vehicle = vehicle;
+      _time = time;
+    }
+
+    public VehiclePosition getVehicle() {
+      return _vehicle;
+    }
+
+    public long getTime() {
+      return _time;
+    }
+  }
+}
@@ -0,0 +1,476 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.websocket.api.BadPayloadException;
+import org.eclipse.jetty.websocket.api.MessageTooLargeException;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Extension;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.extensions.AbstractExtension;
+import org.eclipse.jetty.websocket.common.extensions.ExtensionStack;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692), which the version of
+ * Jetty we build against predates.
+ * 
+ * Unless context takeover is enabled, each message is compressed on its own.
+ * Identical messages then compress to identical bytes, so a differential
+ * published to many sessions is compressed once and the result shared by all
+ * sessions using the same compression level. Messages are matched by the
+ * exporter publication they were delivered from (see
+ * {@link GtfsRealtimeExporterImpl#getCurrentPublication()}) rather than by
+ * content, so finding a shared message doesn't cost a pass over its bytes.
+ * 
+ * Jetty creates extensions by class, so settings are registered per
+ * {@link WebSocketServletFactory} with
+ * {@link #register(WebSocketServletFactory, int, boolean)}, and looked up
+ * through the factory's policy, which Jetty hands to each extension it
+ * creates. Each session's {@link Deflater} and {@link Inflater} are released
+ * when it sends a close frame or is passed to {@link #close(Session)}.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeDeflateExtension extends AbstractExtension {
+
+  public static final String NAME = "permessage-deflate";
+
+  private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+  private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+  /**
+   * The empty stored block that ends each sync-flushed message, which RFC 7692
+   * has us strip before sending and restore before inflating.
+   */
+  private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+  /**
+   * Messages smaller than this, such as heartbeats, aren't worth compressing.
+   */
+  private static final int MIN_COMPRESSED_SIZE = 64;
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+
+  private static final GtfsRealtimeCompressionStats _stats = new GtfsRealtimeCompressionStats();
+
+  /**
+   * Recently compressed payloads, per compression level, keyed by the identity
+   * of the publication they came from.
+   */
+  private static final ConcurrentMap<Integer, Cache<Object, byte[]>> _sharedPayloads = new ConcurrentHashMap<Integer, Cache<Object, byte[]>>();
+
+  /**
+   * Settings registered for each factory, keyed by the factory's policy.
+   */
+  private static final Map<WebSocketPolicy, Settings> _settings = Collections.synchronizedMap(new WeakHashMap<WebSocketPolicy, Settings>());
+
+  private ExtensionConfig _offer;
+
+  private int _compressionLevel;
+
+  private boolean _contextTakeover;
+
+  private Deflater _deflater;
+
+  private Inflater _inflater;
+
+  private boolean _compressingOutgoing = false;
+
+  private boolean _decompressingIncoming = false;
+
+  private long _incomingSize = 0;
+
+  private boolean _closed = false;
+
+  /**
+   * Makes the extension available to sessions created by the factory.
+   * 
+   * By default, the server compresses each message on its own, trading some
+   * compression ratio for the ability to share compressed messages between
+   * sessions and a smaller per-session memory footprint.
+   * 
+   * @param compressionLevel the {@link Deflater} compression level for the
+   *          factory's sessions
+   * @param contextTakeover true if the factory's sessions should keep
+   *          compression context between messages, where the client allows
+   */
+  public static void register(WebSocketServletFactory factory,
+      int compressionLevel, boolean contextTakeover) {
+    _settings.put(factory.getPolicy(), new Settings(compressionLevel,
+        contextTakeover));
+    factory.getExtensionFactory().register(NAME,
+        GtfsRealtimeDeflateExtension.class);
+  }
+
+  /**
+   * Releases the compression state of the session's extension, if it
+   * negotiated one. Call this once the session has closed, since a session
+   * that disconnects without a close frame never tells us so.
+   */
+  public static void close(Session session) {
+    if (!(session instanceof WebSocketSession)) {
+      return;
+    }
+    OutgoingFrames outgoing = ((WebSocketSession) session).getOutgoingHandler();
+    if (!(outgoing instanceof ExtensionStack)) {
+      return;
+    }
+    for (Extension extension : ((ExtensionStack) outgoing).getExtensions()) {
+      if (extension instanceof GtfsRealtimeDeflateExtension) {
+        ((GtfsRealtimeDeflateExtension) extension).close();
+      }
+    }
+  }
+
+  public static GtfsRealtimeCompressionStats getStats() {
+    return _stats;
+  }
+
+  @Override
+  public boolean isRsv1User() {
+    return true;
+  }
+
+  /**
+   * Releases the session's {@link Deflater} and {@link Inflater}. Messages sent
+   * afterwards, if any, go out uncompressed.
+   */
+  public synchronized void close() {
+    _closed = true;
+    if (_deflater != null) {
+      _deflater.end();
+      _deflater = null;
+    }
+    if (_inflater != null) {
+      _inflater.end();
+      _inflater = null;
+    }
+  }
+
+  @Override
+  public void setConfig(ExtensionConfig offer) {
+    _offer = offer;
+    negotiate();
+  }
+
+  /**
+   * Jetty hands us the offer before the policy, so we negotiate again once we
+   * know whose settings apply.
+   */
+  @Override
+  public void setPolicy(WebSocketPolicy policy) {
+    super.setPolicy(policy);
+    if (_offer != null) {
+      negotiate();
+    }
+  }
+
+  private void negotiate() {
+    ResponseConfig response = new ResponseConfig();
+    Set<String> keys = _offer.getParameterKeys();
+    Settings settings = getPolicy() != null ? _settings.get(getPolicy()) : null;
+    if (settings == null) {
+      settings = Settings.DEFAULT;
+    }
+
+    _compressionLevel = settings.compressionLevel;
+    _contextTakeover = settings.contextTakeover
+        && !keys.contains(SERVER_NO_CONTEXT_TAKEOVER);
+    if (!_contextTakeover) {
+      response.setParameter(SERVER_NO_CONTEXT_TAKEOVER, "");
+    }
+
+    /**
+     * The JDK's Deflater always uses a full 32KB window. If the client asks
+     * for a smaller one, we can still honor it by sending stored blocks, which
+     * never refer back into the window.
+     */
+    if (keys.contains(SERVER_MAX_WINDOW_BITS)) {
+      int windowBits = _offer.getParameter(SERVER_MAX_WINDOW_BITS, 15);
+      if (windowBits < 15) {
+        _compressionLevel = Deflater.NO_COMPRESSION;
+      }
+      response.setParameter(SERVER_MAX_WINDOW_BITS, windowBits);
+    }
+
+    super.setConfig(response);
+  }
+
+  @Override
+  public void incomingFrame(Frame frame) {
+    byte opCode = frame.getOpCode();
+    if (OpCode.isControlFrame(opCode)) {
+      nextIncomingFrame(frame);
+      return;
+    }
+    if (opCode != OpCode.CONTINUATION) {
+      _decompressingIncoming = frame.isRsv1();
+      _incomingSize = 0;
+    }
+    if (!_decompressingIncoming) {
+      nextIncomingFrame(frame);
+      return;
+    }
+
+    byte[] input = getBytes(frame.getPayload());
+    if (frame.isFin()) {
+      input = Arrays.copyOf(input, input.length + TAIL.length);
+      System.arraycopy(TAIL, 0, input, input.length - TAIL.length,
+          TAIL.length);
+    }
+    byte[] output = inflate(input);
+
+    WebSocketFrame inflated = new WebSocketFrame(opCode);
+    inflated.setFin(frame.isFin());
+    inflated.setPayload(output);
+    nextIncomingFrame(inflated);
+  }
+
+  @Override
+  public synchronized void outgoingFrame(Frame frame, WriteCallback callback) {
+    byte opCode = frame.getOpCode();
+    if (OpCode.isControlFrame(opCode)) {
+      nextOutgoingFrame(frame, callback);
+      if (opCode == OpCode.CLOSE) {
+        close();
+      }
+      return;
+    }
+    boolean first = opCode != OpCode.CONTINUATION;
+    ByteBuffer payload = frame.hasPayload() ? frame.getPayload() : ByteBuffer.allocate(0);
+    if (first) {
+      _compressingOutgoing = !_closed
+          && payload.remaining() >= MIN_COMPRESSED_SIZE;
+    }
+    if (!_compressingOutgoing) {
+      nextOutgoingFrame(frame, callback);
+      return;
+    }
+
+    byte[] output = null;
+    Object publication = GtfsRealtimeExporterImpl.getCurrentPublication();
+    if (first && frame.isFin() && !_contextTakeover && publication != null
+        && payload.isReadOnly()) {
+      output = getSharedPayload(publication, payload);
+      _stats.addMessage(payload.remaining(), output.length, true);
+    } else {
+      if (first && !_contextTakeover && _deflater != null) {
+        _deflater.reset();
+      }
+      output = deflate(payload, frame.isFin());
+      if (frame.isFin()) {
+        _stats.addMessage(payload.remaining(), output.length, false);
+      }
+    }
+
+    WebSocketFrame compressed = new WebSocketFrame(opCode);
+    compressed.setFin(frame.isFin());
+    compressed.setRsv1(first);
+    compressed.setPayload(output);
+    nextOutgoingFrame(compressed, callback);
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * The cache compresses a given publication at most once, having any other
+   * session that asks for it in the meantime wait for the result. Its keys are
+   * weak, and so compared by identity, and dropped once the publication has
+   * been delivered to every listener.
+   */
+  private byte[] getSharedPayload(Object publication, final ByteBuffer payload) {
+    Cache<Object, byte[]> cache = _sharedPayloads.get(_compressionLevel);
+    if (cache == null) {
+      cache = CacheBuilder.newBuilder().weakKeys().maximumSize(16).expireAfterWrite(
+          1, TimeUnit.MINUTES).build();
+      Cache<Object, byte[]> existing = _sharedPayloads.putIfAbsent(
+          _compressionLevel, cache);
+      if (existing != null) {
+        cache = existing;
+      }
+    }
+    try {
+      return cache.get(publication, new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          if (_deflater != null) {
+            _deflater.reset();
+          }
+          return deflate(payload, true);
+        }
+      });
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  /**
+   * Compresses the payload, continuing the current deflate stream.
+   */
+  private byte[] deflate(ByteBuffer payload, boolean fin) {
+    long start = getTime();
+    if (_deflater == null) {
+      _deflater = new Deflater(_compressionLevel, true);
+    }
+    _deflater.setInput(getBytes(payload));
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(
+        BUFFER_SIZE, payload.remaining() / 4));
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (true) {
+      int count = _deflater.deflate(buffer, 0, buffer.length,
+          Deflater.SYNC_FLUSH);
+      out.write(buffer, 0, count);
+      if (count < buffer.length) {
+        break;
+      }
+    }
+    byte[] output = out.toByteArray();
+    if (fin && endsWithTail(output)) {
+      output = Arrays.copyOf(output, output.length - TAIL.length);
+    }
+    _stats.addCompressionTime(getTime() - start);
+    return output;
+  }
+
+  private synchronized byte[] inflate(byte[] input) {
+    if (_closed) {
+      throw new BadPayloadException("compressed message after close");
+    }
+    if (_inflater == null) {
+      _inflater = new Inflater(true);
+    }
+    long maxSize = getPolicy() != null ? getPolicy().getMaxMessageSize() : -1;
+    _inflater.setInput(input);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(
+        BUFFER_SIZE, input.length * 2));
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try {
+      while (!_inflater.needsInput() && !_inflater.finished()) {
+        int count = _inflater.inflate(buffer);
+        if (count == 0 && _inflater.needsDictionary()) {
+          throw new BadPayloadException("unexpected deflate dictionary");
+        }
+        out.write(buffer, 0, count);
+        _incomingSize += count;
+        if (maxSize > 0 && _incomingSize > maxSize) {
+          throw new MessageTooLargeException("inflated message exceeds "
+              + maxSize + " bytes");
+        }
+      }
+    } catch (DataFormatException ex) {
+      throw new BadPayloadException(ex);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] getBytes(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.duplicate().get(data);
+    return data;
+  }
+
+  private static boolean endsWithTail(byte[] data) {
+    if (data.length < TAIL.length) {
+      return false;
+    }
+    for (int i = 0; i < TAIL.length; ++i) {
+      if (data[data.length - TAIL.length + i] != TAIL[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long getTime() {
+    if (_threads.isCurrentThreadCpuTimeSupported()) {
+      return _threads.getCurrentThreadCpuTime();
+    }
+    return System.nanoTime();
+  }
+
+  private static class Settings {
+
+    public static final Settings DEFAULT = new Settings(
+        Deflater.DEFAULT_COMPRESSION, false);
+
+    public final int compressionLevel;
+
+    public final boolean contextTakeover;
+
+    public Settings(int compressionLevel, boolean contextTakeover) {
+      this.compressionLevel = compressionLevel;
+      this.contextTakeover = contextTakeover;
+    }
+  }
+
+  /**
+   * Jetty's {@link ExtensionConfig} can't render parameters without a value,
+   * which RFC 7692 uses for its flags, so we render empty values as bare
+   * parameter names.
+   */
+  private static class ResponseConfig extends ExtensionConfig {
+
+    public ResponseConfig() {
+      super(NAME);
+    }
+
+    @Override
+    public String getParameterizedName() {
+      StringBuilder b = new StringBuilder(getName());
+      for (Map.Entry<String, String> entry : getParameters().entrySet()) {
+        b.append(';').append(entry.getKey());
+        if (entry.getValue().length() > 0) {
+          b.append('=').append(entry.getValue());
+        }
+      }
+      return b.toString();
+    }
+  }
+}
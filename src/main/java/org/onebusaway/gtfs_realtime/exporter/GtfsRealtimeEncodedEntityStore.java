@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Stores each entity only as its encoded bytes, parsing it again when a caller
+ * needs the {@link FeedEntity} object. An encoded entity typically takes a
+ * fraction of the heap of its object graph, and snapshot encoding becomes a
+ * straight copy of the stored bytes.
+ * 
+ * @author agent
+ */
+class GtfsRealtimeEncodedEntityStore extends GtfsRealtimeEntityStore<byte[]> {
+
+  public GtfsRealtimeEncodedEntityStore(int expireSecs) {
+    super(expireSecs);
+  }
+
+  @Override
+  protected byte[] encode(FeedEntity entity) {
+    return entity.toByteArray();
+  }
+
+  @Override
+  protected byte[] encode(byte[] data) {
+    return data;
+  }
+
+  @Override
+  protected FeedEntity decode(byte[] value) {
+    try {
+      return FeedEntity.parseFrom(value,
+          GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+    } catch (InvalidProtocolBufferException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @Override
+  protected int getSerializedSize(byte[] value) {
+    return value.length;
+  }
+
+  @Override
+  protected void writeEntity(CodedOutputStream out, byte[] value)
+      throws IOException {
+    GtfsRealtimeWireFormat.writeEntity(out, value);
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.nio.ByteBuffer;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * A {@link GtfsRealtimeIncrementalListener} that would rather receive feed
+ * updates already encoded. A source that supports this calls
+ * {@link #handleEncodedFeed(ByteBuffer)} in place of
+ * {@link #handleFeed(FeedMessage)}, encoding each update once for all such
+ * listeners, or forwarding the bytes it was given.
+ * 
+ * @author agent
+ */
+public interface GtfsRealtimeEncodedListener extends
+    GtfsRealtimeIncrementalListener {
+
+  /**
+   * The buffer is a read-only view of bytes shared with other listeners. Each
+   * listener gets its own view, so it is free to consume it.
+   * 
+   * @param feed the feed update, encoded as a {@link FeedMessage}
+   */
+  public void handleEncodedFeed(ByteBuffer feed);
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Collection;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * A {@link GtfsRealtimeSink} that also accepts updates already encoded in the
+ * protocol buffer wire format, for producers that receive GTFS-realtime data
+ * as bytes (eg. from an upstream feed or a message queue). Only each entity's
+ * {@link FeedEntity#getId()} and {@link FeedEntity#getIsDeleted()} fields are
+ * read; the entity bytes are otherwise stored and forwarded unchanged.
+ * 
+ * Invalid input is reported with an {@link IllegalArgumentException}.
+ * 
+ * @author agent
+ */
+public interface GtfsRealtimeEncodedSink extends GtfsRealtimeSink {
+
+  /**
+   * Send a full dataset update, encoded as a {@link FeedMessage}. The message
+   * header is ignored: use {@link #setFeedHeaderDefaults(com.google.transit.realtime.GtfsRealtime.FeedHeader)}
+   * to control the headers sent to clients. Deleted entities are skipped.
+   * 
+   * @param feedMessage an encoded {@link FeedMessage}
+   */
+  public void handleEncodedFullUpdate(byte[] feedMessage);
+
+  /**
+   * Send an incremental update, encoded as a {@link FeedMessage}. Entities
+   * with {@link FeedEntity#getIsDeleted()} set remove any previous entity
+   * with the same id. The message header is ignored.
+   * 
+   * @param feedMessage an encoded {@link FeedMessage}
+   */
+  public void handleEncodedIncrementalUpdate(byte[] feedMessage);
+
+  /**
+   * Send an incremental update made up of individually encoded entities.
+   * 
+   * @param entities encoded {@link FeedEntity} values
+   */
+  public void handleEncodedIncrementalUpdate(Collection<byte[]> entities);
+}
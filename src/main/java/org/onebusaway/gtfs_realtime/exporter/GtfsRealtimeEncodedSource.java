@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * A {@link GtfsRealtimeSource} that can also provide its full-dataset view in
+ * already-encoded form, such that the encoding can be shared between every
+ * client that requests the feed.
+ * 
+ * @author agent
+ */
+public interface GtfsRealtimeEncodedSource extends GtfsRealtimeSource {
+
+  /**
+   * The returned buffer is a read-only view of the encoded snapshot, possibly
+   * shared with other callers. Each call returns a new view, so callers are
+   * free to adjust its position and limit. A source may have to join the
+   * pieces of its encoding to produce it, so callers that can write several
+   * buffers should prefer {@link #getEncodedFeedBuffers()}.
+   * 
+   * @return the full-dataset view of a GTFS-realtime feed, encoded as a
+   *         {@link FeedMessage}
+   */
+  public ByteBuffer getEncodedFeed();
+
+  /**
+   * The same bytes as {@link #getEncodedFeed()}, but split into the pieces the
+   * source keeps them in, such as the header and the entities, so that callers
+   * can write them out one after another rather than having them joined
+   * first. The buffers are read-only views shared with other callers.
+   * 
+   * @return the full-dataset view of a GTFS-realtime feed, encoded as a
+   *         {@link FeedMessage} and split across one or more buffers
+   */
+  public ByteBuffer[] getEncodedFeedBuffers();
+
+  /**
+   * Streams the full-dataset view of the feed, encoded as a
+   * {@link FeedMessage}, writing each entity in turn rather than building the
+   * message first. The output is not closed.
+   * 
+   * @param out the destination stream
+   * @throws IOException if writing to the stream fails
+   */
+  public void writeFeed(OutputStream out) throws IOException;
+
+  /**
+   * Changes whenever the entities or header defaults of the feed change, but
+   * not when only the header timestamp moves forward. Successive values are
+   * strictly increasing, so the value also serves as a version of the feed.
+   * Cheap to call, since it touches neither the feed nor its encoding.
+   * 
+   * @return the time, in milliseconds, at which the feed last changed
+   */
+  public long getLastModified();
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Arrays;
+
+/**
+ * Maps entity ids to small, dense ints, so that per-entity state can be kept
+ * in flat arrays indexed by those ints rather than in maps of boxed entries.
+ * Ids are interned: the dictionary keeps one canonical copy of each id, and
+ * the int of a released id is recycled for the next new id.
+ * 
+ * The lookup table uses open addressing with linear probing over a plain
+ * int array, with deleted entries shifted back rather than tombstoned, so
+ * probe sequences stay short under heavy churn.
+ * 
+ * Not thread-safe.
+ * 
+ * @author agent
+ */
+final class GtfsRealtimeEntityIdDictionary {
+
+  private static final int EMPTY = -1;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * Pairs of (hash, index) per slot, so probing compares hashes without
+   * touching the id strings themselves.
+   */
+  private int[] _table = newTable(INITIAL_CAPACITY * 2);
+
+  private String[] _ids = new String[INITIAL_CAPACITY];
+
+  private int[] _free = new int[INITIAL_CAPACITY];
+
+  private int _freeCount = 0;
+
+  private int _nextIndex = 0;
+
+  private int _size = 0;
+
+  /**
+   * @return the index of the id, or -1 if it isn't in the dictionary
+   */
+  public int lookup(String id) {
+    int slot = find(id, hash(id));
+    return slot >= 0 ? _table[slot + 1] : -1;
+  }
+
+  /**
+   * @return the index of the id, which is added to the dictionary if needed
+   */
+  public int intern(String id) {
+    int hash = hash(id);
+    int slot = find(id, hash);
+    if (slot >= 0) {
+      return _table[slot + 1];
+    }
+    if ((_size + 1) * 4 > _table.length) {
+      rehash(_table.length);
+    }
+    int index = 0;
+    if (_freeCount > 0) {
+      index = _free[--_freeCount];
+    } else {
+      index = _nextIndex++;
+      if (index == _ids.length) {
+        _ids = Arrays.copyOf(_ids, _ids.length * 2);
+      }
+    }
+    _ids[index] = id;
+    insert(hash, index);
+    _size++;
+    return index;
+  }
+
+  /**
+   * Removes the id with the specified index, making the index available for
+   * reuse.
+   */
+  public void release(int index) {
+    int mask = _table.length - 1;
+    int i = (hash(_ids[index]) << 1) & mask;
+    while (_table[i + 1] != index) {
+      i = (i + 2) & mask;
+    }
+    /**
+     * Shift later entries of the probe sequence back into the gap, so lookups
+     * never stop early at it.
+     */
+    _table[i + 1] = EMPTY;
+    for (int j = (i + 2) & mask; _table[j + 1] != EMPTY; j = (j + 2) & mask) {
+      int home = (_table[j] << 1) & mask;
+      boolean reachable = i <= j ? (i < home && home <= j)
+          : (i < home || home <= j);
+      if (!reachable) {
+        _table[i] = _table[j];
+        _table[i + 1] = _table[j + 1];
+        _table[j + 1] = EMPTY;
+        i = j;
+      }
+    }
+    _ids[index] = null;
+    if (_freeCount == _free.length) {
+      _free = Arrays.copyOf(_free, _free.length * 2);
+    }
+    _free[_freeCount++] = index;
+    _size--;
+  }
+
+  public String getId(int index) {
+    return _ids[index];
+  }
+
+  /**
+   * @return one more than the largest index handed out so far
+   */
+  public int getIndexLimit() {
+    return _nextIndex;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * @return the table offset of the id's slot, or -1 if it isn't present
+   */
+  private int find(String id, int hash) {
+    int mask = _table.length - 1;
+    for (int i = (hash << 1) & mask;; i = (i + 2) & mask) {
+      int index = _table[i + 1];
+      if (index == EMPTY) {
+        return -1;
+      }
+      if (_table[i] == hash && _ids[index].equals(id)) {
+        return i;
+      }
+    }
+  }
+
+  private void insert(int hash, int index) {
+    int mask = _table.length - 1;
+    int i = (hash << 1) & mask;
+    while (_table[i + 1] != EMPTY) {
+      i = (i + 2) & mask;
+    }
+    _table[i] = hash;
+    _table[i + 1] = index;
+  }
+
+  private void rehash(int slots) {
+    int[] table = _table;
+    _table = newTable(slots);
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i + 1] != EMPTY) {
+        insert(table[i], table[i + 1]);
+      }
+    }
+  }
+
+  private static int[] newTable(int slots) {
+    int[] table = new int[slots * 2];
+    for (int i = 1; i < table.length; i += 2) {
+      table[i] = EMPTY;
+    }
+    return table;
+  }
+
+  /**
+   * Spreads the bits of String.hashCode(), which the String caches, since
+   * linear probing is sensitive to clustered hashes.
+   */
+  private static int hash(String id) {
+    int h = id.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
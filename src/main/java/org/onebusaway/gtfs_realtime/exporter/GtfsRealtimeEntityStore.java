@@ -0,0 +1,800 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Holds the current set of feed entities for an exporter, keyed by entity id.
+ * Subclasses decide how each entity is represented in memory, from the full
+ * {@link FeedEntity} object graph to just its encoded bytes.
+ * 
+ * Entity ids are mapped to dense ints by a
+ * {@link GtfsRealtimeEntityIdDictionary}, and everything else we keep per
+ * entity lives in arrays indexed by those ints, so an entity costs a few
+ * array slots rather than a map entry object.
+ * 
+ * When constructed with an expiration time, entities are dropped once they
+ * have gone that long without being written, and their ids are queued until
+ * the exporter collects them with {@link #drainExpiredEntityIds(List)}.
+ * Expired entities are hidden from reads straight away, and swept out on the
+ * next write or drain.
+ * 
+ * Each entity is accounted an approximate memory size: its encoded size plus
+ * a fixed overhead for its id and slots. Subclasses that pack entities into
+ * shared storage also account the part of it that isn't holding live
+ * entities (see {@link #getStorageOverhead()}). Once write order tracking is
+ * switched on, {@link #evictOldest()} removes entities in the order they were
+ * last written, so an exporter can hold its store to a memory budget.
+ * 
+ * Writes, along with {@link #get(String)} and {@link #contains(String)}, must
+ * be serialized by the caller. Iteration may run concurrently with writes, in
+ * which case it is weakly consistent: each entity is seen either before or
+ * after a concurrent update.
+ * 
+ * @author agent
+ */
+abstract class GtfsRealtimeEntityStore<T> {
+
+  /**
+   * The representation used to store entities.
+   */
+  enum Mode {
+    /**
+     * Entities are kept as {@link FeedEntity} objects.
+     */
+    OBJECT,
+
+    /**
+     * Entities are kept as encoded bytes on the heap, parsed on demand.
+     */
+    ENCODED,
+
+    /**
+     * Entities are kept as encoded bytes in off-heap slabs, parsed on demand.
+     */
+    OFF_HEAP
+  }
+
+  /**
+   * Chunks any smaller than this aren't worth the overhead of a task.
+   */
+  private static final int MIN_CHUNK_SIZE = 256;
+
+  /**
+   * More chunks than threads evens out chunks that encode at different speeds.
+   */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * A rough per-entity cost on top of the encoded entity and its id's
+   * characters: the id string and its dictionary entry, plus the entity's
+   * array slots.
+   */
+  static final int ENTITY_OVERHEAD = 96;
+
+  private final long _expireNanos;
+
+  private final Collection<FeedEntity> _entityView = new EntityCollection();
+
+  private GtfsRealtimeEntityIdDictionary _ids = new GtfsRealtimeEntityIdDictionary();
+
+  /**
+   * Indexed by id, and replaced rather than resized when it grows, so that
+   * iteration can run without the writer's lock.
+   */
+  private volatile AtomicReferenceArray<T> _values = new AtomicReferenceArray<T>(
+      INITIAL_CAPACITY);
+
+  /**
+   * When expiring, the {@link System#nanoTime()} of each entity's last write,
+   * indexed by id.
+   */
+  private volatile AtomicLongArray _writeTimes;
+
+  private volatile int _size = 0;
+
+  /**
+   * The accounted memory size of each entity, indexed by id.
+   */
+  private int[] _memorySizes = new int[INITIAL_CAPACITY];
+
+  private volatile long _memorySize = 0;
+
+  /**
+   * When expiring or tracking write order, a log of writes in time order, as
+   * parallel ring buffers of entity index and write time. An entry is stale
+   * once its entity has been written again or removed.
+   */
+  private int[] _writeLogIndices;
+
+  private long[] _writeLogTimes;
+
+  private int _writeLogHead = 0;
+
+  private int _writeLogSize = 0;
+
+  private long _lastWriteTime = Long.MIN_VALUE;
+
+  private final List<String> _expiredEntityIds = new ArrayList<String>();
+
+  static GtfsRealtimeEntityStore<?> create(Mode mode, int expireSecs) {
+    switch (mode) {
+      case ENCODED:
+        return new GtfsRealtimeEncodedEntityStore(expireSecs);
+      case OFF_HEAP:
+        return new GtfsRealtimeOffHeapEntityStore(expireSecs);
+      default:
+        return new GtfsRealtimeObjectEntityStore(expireSecs);
+    }
+  }
+
+  protected GtfsRealtimeEntityStore(int expireSecs) {
+    _expireNanos = TimeUnit.SECONDS.toNanos(Math.max(0, expireSecs));
+    if (isExpiring()) {
+      setWriteOrderTracked();
+    }
+  }
+
+  /**
+   * Estimates the memory an entity would be accounted in a store.
+   * 
+   * @param id the entity id
+   * @param serializedSize the encoded size of the entity
+   */
+  static int estimateMemorySize(String id, int serializedSize) {
+    return ENTITY_OVERHEAD + 2 * id.length() + serializedSize;
+  }
+
+  public boolean isExpiring() {
+    return _expireNanos > 0;
+  }
+
+  /**
+   * Tracks the order in which entities are written, for
+   * {@link #evictOldest()}. Only entities written from now on are tracked, so
+   * this should be called while the store is still empty.
+   */
+  public void setWriteOrderTracked() {
+    if (_writeLogIndices == null) {
+      _writeTimes = new AtomicLongArray(_values.length());
+      _writeLogIndices = new int[INITIAL_CAPACITY];
+      _writeLogTimes = new long[INITIAL_CAPACITY];
+    }
+  }
+
+  public boolean isWriteOrderTracked() {
+    return _writeLogIndices != null;
+  }
+
+  public void put(FeedEntity entity) {
+    setValue(entity.getId(), encode(entity));
+  }
+
+  /**
+   * @param id the id of the entity
+   * @param data the encoded {@link FeedEntity}, which the store may keep as-is
+   */
+  public void putEncoded(String id, byte[] data) {
+    setValue(id, encode(data));
+  }
+
+  public void remove(String id) {
+    if (isExpiring()) {
+      sweep(System.nanoTime());
+    }
+    int index = _ids.lookup(id);
+    if (index >= 0) {
+      removeIndex(index);
+    }
+  }
+
+  public boolean contains(String id) {
+    return getValue(id) != null;
+  }
+
+  public FeedEntity get(String id) {
+    T value = getValue(id);
+    return value != null ? decode(value) : null;
+  }
+
+  public void clear() {
+    _ids = new GtfsRealtimeEntityIdDictionary();
+    _values = new AtomicReferenceArray<T>(INITIAL_CAPACITY);
+    if (isWriteOrderTracked()) {
+      _writeTimes = new AtomicLongArray(INITIAL_CAPACITY);
+      _writeLogHead = 0;
+      _writeLogSize = 0;
+    }
+    _memorySizes = new int[INITIAL_CAPACITY];
+    _size = 0;
+    _memorySize = 0;
+    _expiredEntityIds.clear();
+  }
+
+  /**
+   * Expired entities still count until they are swept out.
+   */
+  public int size() {
+    return _size;
+  }
+
+  /**
+   * Expired entities still count until they are swept out.
+   * 
+   * @return the accounted memory size of all stored entities, plus any
+   *         storage overhead, in bytes
+   */
+  public long getMemorySize() {
+    return _memorySize + getStorageOverhead();
+  }
+
+  /**
+   * @return the accounted memory size of the entity, in bytes, or zero if
+   *         there is no such entity
+   */
+  public int getMemorySize(String id) {
+    int index = _ids.lookup(id);
+    return index >= 0 && _values.get(index) != null ? _memorySizes[index] : 0;
+  }
+
+  /**
+   * Removes the entity that was written longest ago. Requires write order
+   * tracking.
+   * 
+   * @return the id of the evicted entity, or null if the store is empty
+   */
+  public String evictOldest() {
+    if (isExpiring()) {
+      sweep(System.nanoTime());
+    }
+    while (_writeLogSize > 0) {
+      int index = _writeLogIndices[_writeLogHead];
+      long time = _writeLogTimes[_writeLogHead];
+      _writeLogHead = (_writeLogHead + 1) % _writeLogIndices.length;
+      _writeLogSize--;
+      if (isCurrentWrite(index, time)) {
+        String id = _ids.getId(index);
+        removeIndex(index);
+        return id;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return a live view of the stored entities, decoded as they are iterated
+   */
+  public Collection<FeedEntity> getEntities() {
+    return _entityView;
+  }
+
+  /**
+   * @return the number of bytes needed to encode all stored entities as
+   *         {@link com.google.transit.realtime.GtfsRealtime.FeedMessage}
+   *         entity fields
+   */
+  public int getSerializedSize() {
+    int size = 0;
+    for (T value : getValues()) {
+      size += GtfsRealtimeWireFormat.computeEntityFieldSize(getSerializedSize(value));
+    }
+    return size;
+  }
+
+  /**
+   * Writes all stored entities as
+   * {@link com.google.transit.realtime.GtfsRealtime.FeedMessage} entity fields.
+   */
+  public void writeEntities(CodedOutputStream out) throws IOException {
+    for (T value : new ValueIterable()) {
+      writeEntity(out, value);
+    }
+  }
+
+  /**
+   * Encodes all stored entities as
+   * {@link com.google.transit.realtime.GtfsRealtime.FeedMessage} entity fields
+   * into a new direct buffer.
+   * 
+   * When a pool is given and there are at least parallelThreshold entities,
+   * the work is split across the pool: entity sizes are computed in parallel
+   * to lay out the buffer, then each chunk of entities is encoded into its own
+   * region of it, so no final copy is needed to join the chunks.
+   * 
+   * @param pool the pool to encode on, or null to always encode sequentially
+   * @param parallelThreshold the minimum entity count for parallel encoding
+   * @return the encoded entities, positioned at zero
+   */
+  public ByteBuffer encodeEntities(ForkJoinPool pool, int parallelThreshold) {
+    // Both passes over the entities have to see exactly the same ones.
+    List<T> values = getValues();
+    if (pool == null || pool.getParallelism() <= 1
+        || values.size() < parallelThreshold) {
+      int size = 0;
+      for (T value : values) {
+        size += GtfsRealtimeWireFormat.computeEntityFieldSize(getSerializedSize(value));
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+      writeEntities(buffer, values);
+      buffer.flip();
+      return buffer;
+    }
+
+    int chunkSize = Math.max(MIN_CHUNK_SIZE, values.size()
+        / (pool.getParallelism() * CHUNKS_PER_THREAD));
+
+    // offsets[i] is where entity i starts, offsets[n] the total size.
+    int[] offsets = new int[values.size() + 1];
+    pool.invoke(new SizeTask(values, offsets, 0, values.size(), chunkSize));
+    for (int i = 1; i < offsets.length; ++i) {
+      offsets[i] += offsets[i - 1];
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(offsets[values.size()]);
+    pool.invoke(new WriteTask(values, offsets, buffer, 0, values.size(),
+        chunkSize));
+    return buffer;
+  }
+
+  /**
+   * Sweeps expired entities and collects the ids of any entities that have
+   * expired since the last call.
+   */
+  public void drainExpiredEntityIds(List<String> expiredEntityIds) {
+    if (!isExpiring()) {
+      return;
+    }
+    sweep(System.nanoTime());
+    for (String id : _expiredEntityIds) {
+      // The entity may have been written again since it expired.
+      if (_ids.lookup(id) < 0) {
+        expiredEntityIds.add(id);
+      }
+    }
+    _expiredEntityIds.clear();
+  }
+
+  private void setValue(String id, T value) {
+    long now = 0;
+    if (isWriteOrderTracked()) {
+      now = System.nanoTime();
+      if (isExpiring()) {
+        sweep(now);
+      }
+    }
+    int index = _ids.intern(id);
+    AtomicReferenceArray<T> values = _values;
+    if (index >= values.length()) {
+      values = grow(index);
+    }
+    if (index >= _memorySizes.length) {
+      _memorySizes = Arrays.copyOf(_memorySizes, values.length());
+    }
+    if (isWriteOrderTracked()) {
+      // Write times must differ, so that stale log entries can be told apart.
+      now = Math.max(now, _lastWriteTime + 1);
+      _lastWriteTime = now;
+      _writeTimes.lazySet(index, now);
+      appendToWriteLog(index, now);
+    }
+    int memorySize = estimateMemorySize(id, getSerializedSize(value));
+    T previous = values.get(index);
+    if (previous == null) {
+      _size++;
+    } else {
+      _memorySize -= _memorySizes[index];
+    }
+    _memorySizes[index] = memorySize;
+    _memorySize += memorySize;
+    // Only the writer stores values, so an ordered store is enough to publish.
+    values.lazySet(index, value);
+    if (previous != null) {
+      release(previous);
+    }
+  }
+
+  private T getValue(String id) {
+    int index = _ids.lookup(id);
+    if (index < 0) {
+      return null;
+    }
+    if (isExpiring() && isExpired(index, System.nanoTime())) {
+      return null;
+    }
+    return _values.get(index);
+  }
+
+  private void removeIndex(int index) {
+    AtomicReferenceArray<T> values = _values;
+    T value = values.get(index);
+    if (value != null) {
+      values.lazySet(index, null);
+      _size--;
+      _memorySize -= _memorySizes[index];
+      _memorySizes[index] = 0;
+    }
+    _ids.release(index);
+    if (value != null) {
+      release(value);
+    }
+  }
+
+  private boolean isCurrentWrite(int index, long time) {
+    return _values.get(index) != null && _writeTimes.get(index) == time;
+  }
+
+  private boolean isExpired(int index, long now) {
+    return now - _writeTimes.get(index) >= _expireNanos;
+  }
+
+  /**
+   * Copies the per-entity arrays into larger ones. Concurrent readers of the
+   * old arrays may miss writes made after the copy, which weak consistency
+   * allows.
+   */
+  private AtomicReferenceArray<T> grow(int index) {
+    AtomicReferenceArray<T> values = _values;
+    int capacity = Math.max(values.length() * 2, index + 1);
+    AtomicReferenceArray<T> grownValues = new AtomicReferenceArray<T>(capacity);
+    for (int i = 0; i < values.length(); ++i) {
+      grownValues.set(i, values.get(i));
+    }
+    if (isWriteOrderTracked()) {
+      AtomicLongArray writeTimes = _writeTimes;
+      AtomicLongArray grownWriteTimes = new AtomicLongArray(capacity);
+      for (int i = 0; i < writeTimes.length(); ++i) {
+        grownWriteTimes.set(i, writeTimes.get(i));
+      }
+      // Write times first, so readers never pair a value with a missing time.
+      _writeTimes = grownWriteTimes;
+    }
+    _values = grownValues;
+    return grownValues;
+  }
+
+  private void appendToWriteLog(int index, long now) {
+    /**
+     * A full log is compacted, and then grown unless that freed at least half
+     * of it, so compactions are amortized against the appends that filled it.
+     */
+    if (_writeLogSize == _writeLogIndices.length) {
+      compactWriteLog();
+      if (_writeLogSize > _writeLogIndices.length / 2) {
+        growWriteLog();
+      }
+    }
+    int tail = (_writeLogHead + _writeLogSize) % _writeLogIndices.length;
+    _writeLogIndices[tail] = index;
+    _writeLogTimes[tail] = now;
+    _writeLogSize++;
+  }
+
+  private void growWriteLog() {
+    int[] indices = new int[_writeLogIndices.length * 2];
+    long[] times = new long[indices.length];
+    for (int i = 0; i < _writeLogSize; ++i) {
+      int from = (_writeLogHead + i) % _writeLogIndices.length;
+      indices[i] = _writeLogIndices[from];
+      times[i] = _writeLogTimes[from];
+    }
+    _writeLogIndices = indices;
+    _writeLogTimes = times;
+    _writeLogHead = 0;
+  }
+
+  /**
+   * Drops stale entries from a full write log, since entities rewritten
+   * faster than they expire, or never expired at all, would otherwise pile
+   * them up without bound.
+   */
+  private void compactWriteLog() {
+    int live = 0;
+    for (int i = 0; i < _writeLogSize; ++i) {
+      int from = (_writeLogHead + i) % _writeLogIndices.length;
+      int to = (_writeLogHead + live) % _writeLogIndices.length;
+      if (isCurrentWrite(_writeLogIndices[from], _writeLogTimes[from])) {
+        _writeLogIndices[to] = _writeLogIndices[from];
+        _writeLogTimes[to] = _writeLogTimes[from];
+        live++;
+      }
+    }
+    _writeLogSize = live;
+  }
+
+  /**
+   * Removes expired entities. Since every entity expires the same time after
+   * its last write, they can only have expired in write order, so we only
+   * ever look at the head of the write log.
+   */
+  private void sweep(long now) {
+    while (_writeLogSize > 0) {
+      long time = _writeLogTimes[_writeLogHead];
+      if (now - time < _expireNanos) {
+        break;
+      }
+      int index = _writeLogIndices[_writeLogHead];
+      _writeLogHead = (_writeLogHead + 1) % _writeLogIndices.length;
+      _writeLogSize--;
+      if (isCurrentWrite(index, time)) {
+        _expiredEntityIds.add(_ids.getId(index));
+        removeIndex(index);
+      }
+    }
+  }
+
+  /**
+   * @return the live values, as of now
+   */
+  private List<T> getValues() {
+    List<T> values = new ArrayList<T>(_size);
+    for (T value : new ValueIterable()) {
+      values.add(value);
+    }
+    return values;
+  }
+
+  private void writeEntities(ByteBuffer buffer, Collection<T> values) {
+    CodedOutputStream out = GtfsRealtimeWireFormat.newInstance(buffer);
+    try {
+      for (T value : values) {
+        writeEntity(out, value);
+      }
+      out.flush();
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    if (buffer.hasRemaining()) {
+      throw new IllegalStateException("entity size mismatch");
+    }
+  }
+
+  protected abstract T encode(FeedEntity entity);
+
+  protected abstract T encode(byte[] data);
+
+  protected abstract FeedEntity decode(T value);
+
+  protected abstract int getSerializedSize(T value);
+
+  protected abstract void writeEntity(CodedOutputStream out, T value)
+      throws IOException;
+
+  /**
+   * Called once a value has been replaced or removed, and is no longer
+   * reachable through the store.
+   */
+  protected void release(T value) {
+
+  }
+
+  /**
+   * @return memory, in bytes, that the store holds on to beyond the accounted
+   *         size of its entities
+   */
+  protected long getStorageOverhead() {
+    return 0;
+  }
+
+  /**
+   * Replaces each stored value with whatever the relocator returns for it,
+   * for subclasses that need to move values between their storage. A
+   * relocated value must hold the same entity, with the same encoded size.
+   * Concurrent readers see either value.
+   */
+  protected void relocateValues(Relocator<T> relocator) {
+    AtomicReferenceArray<T> values = _values;
+    for (int i = 0; i < values.length(); ++i) {
+      T value = values.get(i);
+      if (value != null) {
+        T relocated = relocator.relocate(value);
+        if (relocated != value) {
+          values.lazySet(i, relocated);
+        }
+      }
+    }
+  }
+
+  protected interface Relocator<T> {
+    public T relocate(T value);
+  }
+
+  /**
+   * Records the encoded size of entity i in offsets[i + 1].
+   */
+  private class SizeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<T> _values;
+
+    private final int[] _offsets;
+
+    private final int _from;
+
+    private final int _to;
+
+    private final int _chunkSize;
+
+    public SizeTask(List<T> values, int[] offsets, int from, int to,
+        int chunkSize) {
+      _values = values;
+      _offsets = offsets;
+      _from = from;
+      _to = to;
+      _chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (_to - _from > _chunkSize) {
+        int mid = (_from + _to) >>> 1;
+        invokeAll(new SizeTask(_values, _offsets, _from, mid, _chunkSize),
+            new SizeTask(_values, _offsets, mid, _to, _chunkSize));
+        return;
+      }
+      for (int i = _from; i < _to; ++i) {
+        _offsets[i + 1] = GtfsRealtimeWireFormat.computeEntityFieldSize(getSerializedSize(_values.get(i)));
+      }
+    }
+  }
+
+  /**
+   * Encodes a range of entities into its region of the shared buffer.
+   */
+  private class WriteTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<T> _values;
+
+    private final int[] _offsets;
+
+    private final ByteBuffer _buffer;
+
+    private final int _from;
+
+    private final int _to;
+
+    private final int _chunkSize;
+
+    public WriteTask(List<T> values, int[] offsets, ByteBuffer buffer,
+        int from, int to, int chunkSize) {
+      _values = values;
+      _offsets = offsets;
+      _buffer = buffer;
+      _from = from;
+      _to = to;
+      _chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (_to - _from > _chunkSize) {
+        int mid = (_from + _to) >>> 1;
+        invokeAll(new WriteTask(_values, _offsets, _buffer, _from, mid,
+            _chunkSize), new WriteTask(_values, _offsets, _buffer, mid, _to,
+            _chunkSize));
+        return;
+      }
+      ByteBuffer region = _buffer.duplicate();
+      region.limit(_offsets[_to]);
+      region.position(_offsets[_from]);
+      writeEntities(region.slice(), _values.subList(_from, _to));
+    }
+  }
+
+  /**
+   * Iterates over the live values, as of its creation, skipping free and
+   * expired slots.
+   */
+  private class ValueIterable implements Iterable<T>, Iterator<T> {
+
+    // Read in the opposite order to which grow() publishes them.
+    private final AtomicReferenceArray<T> _iteratedValues = _values;
+
+    private final AtomicLongArray _iteratedWriteTimes = _writeTimes;
+
+    private final long _now = isExpiring() ? System.nanoTime() : 0;
+
+    private int _index = 0;
+
+    private T _next;
+
+    @Override
+    public Iterator<T> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (_next == null && _index < _iteratedValues.length()) {
+        int index = _index++;
+        T value = _iteratedValues.get(index);
+        if (value != null && isExpiring() && _iteratedWriteTimes != null
+            && (index >= _iteratedWriteTimes.length() || _now
+                - _iteratedWriteTimes.get(index) >= _expireNanos)) {
+          value = null;
+        }
+        _next = value;
+      }
+      return _next != null;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      T value = _next;
+      _next = null;
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private class EntityCollection extends AbstractCollection<FeedEntity> {
+
+    @Override
+    public Iterator<FeedEntity> iterator() {
+      final Iterator<T> it = new ValueIterable();
+      return new Iterator<FeedEntity>() {
+
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public FeedEntity next() {
+          return decode(it.next());
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return _size;
+    }
+  }
+}
@@ -15,18 +15,46 @@
  */
 package org.onebusaway.gtfs_realtime.exporter;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
-import com.google.common.cache.CacheBuilder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.name.Named;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeLatencyTracer.Stage;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeWireFormat.EncodedEntity;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.AlertsExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.MixedFeedExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.TripUpdatesExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.VehiclePositionsExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader;
@@ -44,23 +72,179 @@ import javax.inject.Inject;
  * @author bdferris
  */
 class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
-    VehiclePositionsExporter, MixedFeedExporter {
+    VehiclePositionsExporter, MixedFeedExporter, GtfsRealtimeEncodedSource,
+    GtfsRealtimeEncodedSink, GtfsRealtimeHistorySource,
+    GtfsRealtimeResumableSource, GtfsRealtimeSnapshotSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeExporterImpl.class);
+
+  /**
+   * The publication being delivered to a listener on this thread.
+   */
+  private static final ThreadLocal<Object> _currentPublication = new ThreadLocal<Object>();
+
+  private List<ListenerDispatch> _listeners = new CopyOnWriteArrayList<ListenerDispatch>();
 
-  private List<GtfsRealtimeIncrementalListener> _listeners = new CopyOnWriteArrayList<GtfsRealtimeIncrementalListener>();
+  private final SnapshotSource _snapshotSource = new SnapshotSource();
 
   private FeedHeader _header;
 
-  private Map<String, FeedEntity> _feedEntities;
+  private final GtfsRealtimeEntityStore.Mode _storeMode;
+
+  /**
+   * Replaced, rather than cleared, on a full update so that a concurrent
+   * {@link #writeFeed(OutputStream)} keeps streaming the previous dataset.
+   */
+  private volatile GtfsRealtimeEntityStore<?> _feedEntities;
+
+  /**
+   * The full-dataset header, shared by the cached snapshots below. It is
+   * replaced whenever its timestamp falls behind the clock, without touching
+   * the cached entities.
+   */
+  private FeedHeader _cachedHeader = null;
 
   private FeedMessage _cachedFeed = null;
 
+  /**
+   * The encoded entities of the full dataset, which only change along with the
+   * entities themselves.
+   */
+  private ByteBuffer _cachedEncodedEntities = null;
+
+  /**
+   * The encoding of {@link #_cachedHeader}. The encoded feed is this followed
+   * by {@link #_cachedEncodedEntities}, which are never copied in behind it:
+   * readers write the two buffers out in turn.
+   */
+  private ByteBuffer _cachedEncodedHeader = null;
+
   private long _incrementalIndex = 1;
 
+  private volatile long _lastModified = System.currentTimeMillis();
+
   private int _incrementalHeartbeatInterval = 60;
 
+  private int _cacheExpireSecs;
+
+  private Executor _listenerExecutor = MoreExecutors.directExecutor();
+
+  private ScheduledExecutorService _expiryExecutor;
+
+  private ScheduledFuture<?> _expiryTask;
+
+  private ScheduledFuture<?> _heartbeatTask;
+
+  private ForkJoinPool _encoderPool;
+
+  private long _snapshotRebuildInterval = 0;
+
+  private ScheduledFuture<?> _snapshotTask;
+
+  /**
+   * When snapshots are rebuilt in the background, the last completed snapshot,
+   * which readers are served without taking the lock.
+   */
+  private volatile Snapshot _snapshot = null;
+
+  /**
+   * Which forms of the snapshot have been asked for, and so are worth
+   * rebuilding in the background.
+   */
+  private volatile boolean _feedRequested = false;
+
+  private volatile boolean _encodedFeedRequested = false;
+
+  private int _parallelEncodingThreshold = 10000;
+
+  private final String _streamId = UUID.randomUUID().toString();
+
+  private int _resumeWindow = 1000;
+
+  /**
+   * The most recent differentials, so that a listener that reconnects can be
+   * sent just the ones it missed. They're consecutive, following
+   * {@link #_resumeBase}.
+   */
+  private final ArrayDeque<Publication> _retainedDifferentials = new ArrayDeque<Publication>();
+
+  /**
+   * The encoded size of {@link #_retainedDifferentials}, which is held against
+   * the memory budget.
+   */
+  private long _retainedDifferentialsMemorySize = 0;
+
+  /**
+   * The incremental index of the state the oldest retained differential
+   * applies to.
+   */
+  private long _resumeBase = 0;
+
+  private long _historyRetention = 0;
+
+  private int _historyMaxVersions = 10000;
+
+  /**
+   * The current entities, as {@link FeedEntity} objects or encoded bytes,
+   * kept in a persistent map so that each retained version shares everything
+   * but its changes with the versions around it.
+   */
+  private GtfsRealtimePersistentMap<String, Object> _historyEntities = GtfsRealtimePersistentMap.empty();
+
+  /**
+   * Retained versions, keyed by their modification time. Guarded by itself,
+   * rather than the exporter lock, so historical reads don't contend with
+   * updates.
+   */
+  private final TreeMap<Long, HistoryVersion> _history = new TreeMap<Long, HistoryVersion>();
+
+  /**
+   * The most recently recorded version, which keeps alive every entity
+   * replaced or removed since, or null if none is retained.
+   */
+  private HistoryVersion _latestHistoryVersion = null;
+
+  /**
+   * The memory accounted to {@link #_historyEntities}, which the current state
+   * shares with the store.
+   */
+  private long _historyEntitiesMemorySize = 0;
+
+  /**
+   * The memory accounted to entities kept alive only by retained versions,
+   * which is held against the memory budget.
+   */
+  private long _historyMemorySize = 0;
+
+  private GtfsRealtimeLatencyTracer _latencyTracer;
+
+  private long _memoryBudget = 0;
+
+  private MemoryPolicy _memoryPolicy = MemoryPolicy.REJECT;
+
+  private long _memoryBlockTimeout = 10000;
+
+  /**
+   * Producers waiting, under {@link MemoryPolicy#BLOCK}, for memory to be
+   * released.
+   */
+  private int _blockedProducers = 0;
+
+  private long _evictedEntities = 0;
+
+  private long _rejectedUpdates = 0;
+
+  /**
+   * The trace of the update whose changes the next snapshot build will
+   * include, if it is being traced.
+   */
+  private GtfsRealtimeTrace _snapshotTrace;
+
   @Inject
-  GtfsRealtimeExporterImpl(@Named("cache.expire.secs") String cacheExpireSecs) {
-    this(Integer.parseInt(cacheExpireSecs));
+  GtfsRealtimeExporterImpl(@Named("cache.expire.secs") String cacheExpireSecs,
+      @Named("store.mode") String storeMode) {
+    this(Integer.parseInt(cacheExpireSecs),
+        GtfsRealtimeEntityStore.Mode.valueOf(storeMode.toUpperCase(Locale.ENGLISH)));
   }
 
   GtfsRealtimeExporterImpl() {
@@ -68,13 +252,269 @@ class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
   }
 
   GtfsRealtimeExporterImpl(int cacheExpireSecs) {
-    if (cacheExpireSecs > 0) {
-      _feedEntities = CacheBuilder.newBuilder()
-              .expireAfterWrite(cacheExpireSecs, TimeUnit.SECONDS)
-              .<String, FeedEntity>build().asMap();
+    this(cacheExpireSecs, GtfsRealtimeEntityStore.Mode.OBJECT);
+  }
+
+  GtfsRealtimeExporterImpl(int cacheExpireSecs,
+      GtfsRealtimeEntityStore.Mode storeMode) {
+    _cacheExpireSecs = cacheExpireSecs;
+    _storeMode = storeMode;
+    _feedEntities = GtfsRealtimeEntityStore.create(storeMode, cacheExpireSecs);
+  }
+
+  /**
+   * By default, listeners are notified on the thread that publishes an update.
+   * Specifying an executor moves delivery off the producer's thread, while
+   * still delivering updates to each individual listener in order.
+   */
+  @Inject
+  void setListenerExecutor(@Named(GtfsRealtimeExporterModule.NAME_LISTENER_EXECUTOR)
+  Executor listenerExecutor) {
+    _listenerExecutor = listenerExecutor;
+  }
+
+  @Inject
+  void setLatencyTracer(GtfsRealtimeLatencyTracer latencyTracer) {
+    _latencyTracer = latencyTracer;
+  }
+
+  @Inject
+  void setIncrementalHeartbeatInterval(@Named("incremental.heartbeat.interval")
+  String incrementalHeartbeatInterval) {
+    setIncrementalHeartbeatInterval(Integer.parseInt(incrementalHeartbeatInterval));
+  }
+
+  /**
+   * @param incrementalHeartbeatInterval the interval, in seconds, advertised to
+   *          clients and at which idle listeners are sent a heartbeat. Zero
+   *          disables heartbeats.
+   */
+  void setIncrementalHeartbeatInterval(int incrementalHeartbeatInterval) {
+    _incrementalHeartbeatInterval = incrementalHeartbeatInterval;
+  }
+
+  @Inject
+  void setExpiryExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXPIRY_EXECUTOR)
+  ScheduledExecutorService expiryExecutor) {
+    _expiryExecutor = expiryExecutor;
+  }
+
+  /**
+   * Large snapshots are encoded in parallel on the specified pool. By default,
+   * snapshots are encoded on the calling thread.
+   */
+  @Inject
+  void setEncoderPool(@Named(GtfsRealtimeExporterModule.NAME_ENCODER_POOL)
+  ForkJoinPool encoderPool) {
+    _encoderPool = encoderPool;
+  }
+
+  @Inject
+  void setParallelEncodingThreshold(@Named("encoder.parallel.threshold")
+  String parallelEncodingThreshold) {
+    setParallelEncodingThreshold(Integer.parseInt(parallelEncodingThreshold));
+  }
+
+  /**
+   * @param parallelEncodingThreshold the minimum number of entities before a
+   *          snapshot is encoded in parallel
+   */
+  void setParallelEncodingThreshold(int parallelEncodingThreshold) {
+    _parallelEncodingThreshold = parallelEncodingThreshold;
+  }
+
+  @Inject
+  void setSnapshotRebuildInterval(@Named("snapshot.rebuild.interval")
+  String snapshotRebuildInterval) {
+    setSnapshotRebuildInterval(Long.parseLong(snapshotRebuildInterval));
+  }
+
+  /**
+   * By default, the first read after an update rebuilds the snapshot, holding
+   * the lock while it does. With a rebuild interval, a background task on the
+   * expiry executor rebuilds the snapshot at most once per interval instead,
+   * and readers of {@link #getSnapshotSource()} are always served the last
+   * completed snapshot straight away. They may then see data up to an interval
+   * old, but never wait on a rebuild. Reads of the exporter itself always see
+   * the live feed.
+   * 
+   * @param snapshotRebuildIntervalInMilliseconds the minimum time between
+   *          background rebuilds, or zero to rebuild on read
+   */
+  void setSnapshotRebuildInterval(long snapshotRebuildIntervalInMilliseconds) {
+    _snapshotRebuildInterval = snapshotRebuildIntervalInMilliseconds;
+  }
+
+  @Inject
+  void setResumeWindow(@Named("incremental.resume.window")
+  String resumeWindow) {
+    setResumeWindow(Integer.parseInt(resumeWindow));
+  }
+
+  /**
+   * @param resumeWindow the number of recent differentials retained for
+   *          resuming listeners, or zero to always send a full dataset
+   */
+  void setResumeWindow(int resumeWindow) {
+    _resumeWindow = resumeWindow;
+  }
+
+  @Inject
+  void setHistoryRetention(@Named("history.retention.secs")
+  String historyRetentionSecs) {
+    setHistoryRetention(Integer.parseInt(historyRetentionSecs));
+  }
+
+  /**
+   * @param historyRetentionSecs how long past versions of the full dataset are
+   *          retained for {@link #getFeedAt(long)}, or zero to keep no history
+   */
+  void setHistoryRetention(int historyRetentionSecs) {
+    _historyRetention = TimeUnit.SECONDS.toMillis(historyRetentionSecs);
+  }
+
+  @Inject
+  void setHistoryMaxVersions(@Named("history.max.versions")
+  String historyMaxVersions) {
+    setHistoryMaxVersions(Integer.parseInt(historyMaxVersions));
+  }
+
+  /**
+   * @param historyMaxVersions the maximum number of past versions retained,
+   *          which bounds the memory used by history under a high update rate
+   */
+  void setHistoryMaxVersions(int historyMaxVersions) {
+    _historyMaxVersions = historyMaxVersions;
+  }
+
+  @Inject
+  void setMemoryBudget(@Named("memory.budget.bytes")
+  String memoryBudget) {
+    setMemoryBudget(Long.parseLong(memoryBudget));
+  }
+
+  /**
+   * @param memoryBudgetInBytes the most memory the exporter may be accounted,
+   *          as estimated by {@link #getMemorySize()}, or zero for no limit
+   */
+  synchronized void setMemoryBudget(long memoryBudgetInBytes) {
+    _memoryBudget = memoryBudgetInBytes;
+    trackWriteOrder(_feedEntities);
+    notifyAll();
+  }
+
+  @Inject
+  void setMemoryPolicy(@Named("memory.policy")
+  String memoryPolicy) {
+    setMemoryPolicy(MemoryPolicy.valueOf(memoryPolicy.toUpperCase(Locale.ENGLISH)));
+  }
+
+  /**
+   * @param memoryPolicy what to do with an update that would exceed the memory
+   *          budget
+   */
+  synchronized void setMemoryPolicy(MemoryPolicy memoryPolicy) {
+    _memoryPolicy = memoryPolicy;
+    trackWriteOrder(_feedEntities);
+  }
+
+  @Inject
+  void setMemoryBlockTimeout(@Named("memory.block.timeout")
+  String memoryBlockTimeout) {
+    setMemoryBlockTimeout(Long.parseLong(memoryBlockTimeout));
+  }
+
+  /**
+   * @param memoryBlockTimeoutInMilliseconds under {@link MemoryPolicy#BLOCK},
+   *          how long a producer waits for memory before its update is
+   *          rejected
+   */
+  void setMemoryBlockTimeout(long memoryBlockTimeoutInMilliseconds) {
+    _memoryBlockTimeout = memoryBlockTimeoutInMilliseconds;
+  }
+
+  /**
+   * The memory budget covers the entities, as estimated by
+   * {@link GtfsRealtimeEntityStore}, the differentials retained for resuming
+   * listeners, the entities kept alive only by past versions of the history,
+   * and the cached encoding of the full dataset. The retained differentials
+   * and history give way to the entities: they are trimmed, oldest first,
+   * before an update is rejected or an entity evicted. The cached encoding is
+   * dropped by every update anyway, so it is only kept while it fits
+   * alongside the rest.
+   * 
+   * @return the memory accounted to the exporter, in bytes
+   */
+  synchronized long getMemorySize() {
+    long memorySize = getBudgetedMemorySize();
+    if (_cachedEncodedEntities != null) {
+      memorySize += _cachedEncodedEntities.capacity();
+    }
+    if (_cachedEncodedHeader != null) {
+      memorySize += _cachedEncodedHeader.capacity();
+    }
+    return memorySize;
+  }
+
+  /**
+   * @return true if entities are expired locally after
+   *         {@code cache.expire.secs}, publishing differentials of our own
+   */
+  boolean isExpiring() {
+    return _feedEntities.isExpiring();
+  }
+
+  synchronized long getEvictedEntities() {
+    return _evictedEntities;
+  }
+
+  synchronized long getRejectedUpdates() {
+    return _rejectedUpdates;
+  }
+
+  @PostConstruct
+  public void start() {
+    /**
+     * Expired entities are otherwise only dropped lazily from the full dataset,
+     * so we periodically sweep them and let listeners know they are gone.
+     */
+    if (_feedEntities.isExpiring() && _expiryExecutor != null) {
+      long period = Math.min(TimeUnit.SECONDS.toMillis(_cacheExpireSecs), 1000);
+      _expiryTask = _expiryExecutor.scheduleAtFixedRate(new ExpiryTask(),
+          period, period, TimeUnit.MILLISECONDS);
     }
-    else {
-      _feedEntities = new HashMap<String, FeedEntity>();
+    /**
+     * Ticking at half the interval, and only skipping listeners that heard
+     * from us within the last tick, means no listener goes longer than the
+     * advertised interval without a message.
+     */
+    if (_incrementalHeartbeatInterval > 0 && _expiryExecutor != null) {
+      long period = Math.max(1000,
+          TimeUnit.SECONDS.toMillis(_incrementalHeartbeatInterval) / 2);
+      _heartbeatTask = _expiryExecutor.scheduleAtFixedRate(new HeartbeatTask(
+          period), period, period, TimeUnit.MILLISECONDS);
+    }
+    if (_snapshotRebuildInterval > 0 && _expiryExecutor != null) {
+      _snapshotTask = _expiryExecutor.scheduleWithFixedDelay(
+          new SnapshotTask(), 0, _snapshotRebuildInterval,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_expiryTask != null) {
+      _expiryTask.cancel(false);
+      _expiryTask = null;
+    }
+    if (_heartbeatTask != null) {
+      _heartbeatTask.cancel(false);
+      _heartbeatTask = null;
+    }
+    if (_snapshotTask != null) {
+      _snapshotTask.cancel(false);
+      _snapshotTask = null;
+      _snapshot = null;
     }
   }
 
@@ -85,50 +525,129 @@ class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
   @Override
   public synchronized void setFeedHeaderDefaults(FeedHeader header) {
     _header = header;
-    _cachedFeed = null;
+    invalidateCachedHeader();
+    touch();
   }
 
   @Override
   public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
-    _cachedFeed = null;
-    _feedEntities.clear();
+    GtfsRealtimeTrace trace = startTrace();
+    GtfsRealtimeEntityStore<?> feedEntities = createEntityStore();
     for (FeedEntity entity : update.getEntities()) {
-      _feedEntities.put(entity.getId(), entity);
+      feedEntities.put(entity);
     }
-    _incrementalIndex++;
-    FeedMessage feed = getFeed();
-    for (GtfsRealtimeIncrementalListener listener : _listeners) {
-      listener.handleFeed(feed);
+    fitFullDatasetToMemoryBudget(feedEntities);
+    invalidateCachedFeed(trace);
+    clearHistoryEntities();
+    for (FeedEntity entity : update.getEntities()) {
+      if (feedEntities.contains(entity.getId())) {
+        putHistoryEntity(entity.getId(), entity);
+      }
+    }
+    _feedEntities = feedEntities;
+    if (update.getIncrementalIndex() >= 0) {
+      _incrementalIndex = update.getIncrementalIndex() + 1;
+    } else {
+      _incrementalIndex++;
     }
+    recordStoreApply(trace);
+    publishFullDataset(trace);
+    recordHistory();
+    memoryReleased();
   }
 
   @Override
   public synchronized void handleIncrementalUpdate(
       GtfsRealtimeIncrementalUpdate update) {
-    _cachedFeed = null;
+    GtfsRealtimeTrace trace = startTrace();
+    if (isMemoryAdmissionControlled()) {
+      long deadline = 0;
+      long growth;
+      while ((growth = computeMemoryGrowth(update)) > 0
+          && !fitsMemoryBudget(growth)) {
+        deadline = awaitMemory(growth, deadline);
+      }
+    }
+    invalidateCachedFeed(trace);
 
     for (FeedEntity toAdd : update.getUpdatedEntities()) {
-      _feedEntities.put(toAdd.getId(), toAdd);
+      _feedEntities.put(toAdd);
+      putHistoryEntity(toAdd.getId(), toAdd);
     }
     for (String toRemove : update.getDeletedEntities()) {
       _feedEntities.remove(toRemove);
+      removeHistoryEntity(toRemove);
     }
+    List<String> evicted = evictOverMemoryBudget();
+    recordStoreApply(trace);
 
-    FeedMessage.Builder feed = FeedMessage.newBuilder();
-    feed.setHeader(createIncrementalHeader());
-    feed.addAllEntity(update.getUpdatedEntities());
-    for (String toRemove : update.getDeletedEntities()) {
-      FeedEntity.Builder entity = FeedEntity.newBuilder();
-      entity.setIsDeleted(true);
-      entity.setId(toRemove);
-      feed.addEntity(entity);
+    if (evicted.isEmpty()) {
+      publishDifferential(update.getUpdatedEntities(),
+          update.getDeletedEntities(), trace);
+    } else {
+      // Evicted entities may include some of those just updated.
+      Set<String> evictedIds = new HashSet<String>(evicted);
+      List<FeedEntity> updated = new ArrayList<FeedEntity>();
+      for (FeedEntity entity : update.getUpdatedEntities()) {
+        if (!evictedIds.contains(entity.getId())) {
+          updated.add(entity);
+        }
+      }
+      List<String> deleted = new ArrayList<String>(update.getDeletedEntities());
+      deleted.addAll(evicted);
+      publishDifferential(updated, deleted, trace);
     }
+    recordHistory();
+    memoryReleased();
+  }
 
-    FeedMessage differentialFeed = feed.build();
-    for (GtfsRealtimeIncrementalListener listener : _listeners) {
-      listener.handleFeed(differentialFeed);
+  /****
+   * {@link GtfsRealtimeEncodedSink} Interface
+   ****/
+
+  @Override
+  public synchronized void handleEncodedFullUpdate(byte[] feedMessage) {
+    GtfsRealtimeTrace trace = startTrace();
+    List<EncodedEntity> entities = GtfsRealtimeWireFormat.scanFeedMessage(feedMessage);
+    GtfsRealtimeEntityStore<?> feedEntities = createEntityStore();
+    for (EncodedEntity entity : entities) {
+      if (!entity.isDeleted()) {
+        feedEntities.putEncoded(entity.getId(), entity.getData());
+      }
+    }
+    fitFullDatasetToMemoryBudget(feedEntities);
+    invalidateCachedFeed(trace);
+    clearHistoryEntities();
+    for (EncodedEntity entity : entities) {
+      if (!entity.isDeleted() && feedEntities.contains(entity.getId())) {
+        putHistoryEntity(entity.getId(), entity.getData());
+      }
     }
+    _feedEntities = feedEntities;
     _incrementalIndex++;
+    recordStoreApply(trace);
+    publishFullDataset(trace);
+    recordHistory();
+    memoryReleased();
+  }
+
+  @Override
+  public synchronized void handleEncodedIncrementalUpdate(byte[] feedMessage) {
+    GtfsRealtimeTrace trace = startTrace();
+    applyEncodedIncrementalUpdate(
+        GtfsRealtimeWireFormat.scanFeedMessage(feedMessage), trace);
+  }
+
+  @Override
+  public synchronized void handleEncodedIncrementalUpdate(
+      Collection<byte[]> entities) {
+    GtfsRealtimeTrace trace = startTrace();
+    List<EncodedEntity> scanned = new ArrayList<EncodedEntity>(
+        entities.size());
+    for (byte[] entity : entities) {
+      scanned.add(GtfsRealtimeWireFormat.scanEntity(entity));
+    }
+    applyEncodedIncrementalUpdate(scanned, trace);
   }
 
   /****
@@ -136,60 +655,1369 @@ class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
    ****/
 
   @Override
-  public synchronized FeedMessage getFeed() {
-    if (_cachedFeed == null) {
-      FeedHeader.Builder header = FeedHeader.newBuilder();
-      if (_header != null) {
-        header.mergeFrom(_header);
+  public FeedMessage getFeed() {
+    return buildFeed();
+  }
+
+  /****
+   * {@link GtfsRealtimeEncodedSource} Interface
+   ****/
+
+  @Override
+  public ByteBuffer getEncodedFeed() {
+    return GtfsRealtimeWireFormat.join(buildEncodedFeed());
+  }
+
+  @Override
+  public ByteBuffer[] getEncodedFeedBuffers() {
+    return buildEncodedFeed();
+  }
+
+  /**
+   * Only the header is captured under the lock. The entities are then
+   * streamed straight from the store while updates continue, so the output
+   * may already reflect some updates newer than its incremental index. Since
+   * differentials replace or delete entities by id, a client applying the
+   * differentials that follow still converges on the same state.
+   */
+  @Override
+  public void writeFeed(OutputStream out) throws IOException {
+    FeedHeader header = null;
+    ByteBuffer[] encodedFeed = null;
+    GtfsRealtimeEntityStore<?> feedEntities = null;
+    synchronized (this) {
+      if (_cachedEncodedEntities != null) {
+        encodedFeed = buildEncodedFeed();
+      } else {
+        header = getFullDatasetHeader();
+        feedEntities = _feedEntities;
       }
-      header.setIncrementality(Incrementality.FULL_DATASET);
-      header.setTimestamp(System.currentTimeMillis() / 1000);
-      header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    }
+    if (encodedFeed != null) {
+      // The feed is already sitting in memory, so just copy it out.
+      writeBuffers(out, encodedFeed);
+      return;
+    }
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+    GtfsRealtimeWireFormat.writeHeader(codedOut, header);
+    feedEntities.writeEntities(codedOut);
+    codedOut.flush();
+  }
+
+  @Override
+  public long getLastModified() {
+    return _lastModified;
+  }
 
-      setIncrementalIndex(header, _incrementalIndex - 1);
+  /**
+   * Identifies the publication being delivered to a listener on the calling
+   * thread, if any. Every listener is handed the same publication for a given
+   * update, so it serves as a key for work derived from the update, such as
+   * compressing it, that can be shared between listeners.
+   * 
+   * @return the publication, or null if no delivery is in progress
+   */
+  static Object getCurrentPublication() {
+    return _currentPublication.get();
+  }
 
-      FeedMessage.Builder feed = FeedMessage.newBuilder();
-      feed.setHeader(header);
-      feed.addAllEntity(_feedEntities.values());
-      _cachedFeed = feed.build();
+  static void setCurrentPublication(Object publication) {
+    _currentPublication.set(publication);
+  }
+
+  /****
+   * {@link GtfsRealtimeSnapshotSource} Interface
+   ****/
+
+  @Override
+  public GtfsRealtimeEncodedSource getSnapshotSource() {
+    return _snapshotSource;
+  }
+
+  /****
+   * {@link GtfsRealtimeHistorySource} Interface
+   ****/
+
+  /**
+   * The version in effect at the specified time is looked up under the
+   * history lock alone, and the feed is then assembled from it without any
+   * lock, since versions never change once recorded.
+   */
+  @Override
+  public FeedMessage getFeedAt(long time) {
+    HistoryVersion version;
+    synchronized (_history) {
+      if (_historyRetention <= 0
+          || time < System.currentTimeMillis() - _historyRetention) {
+        return null;
+      }
+      Map.Entry<Long, HistoryVersion> entry = _history.floorEntry(time);
+      if (entry == null) {
+        return null;
+      }
+      version = entry.getValue();
     }
-    return _cachedFeed;
+
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    if (version.getHeader() != null) {
+      header.mergeFrom(version.getHeader());
+    }
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setTimestamp(version.getTime() / 1000);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    setIncrementalIndex(header, version.getIncrementalIndex());
+
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.setHeader(header);
+    List<Object> entities = new ArrayList<Object>(version.getEntities().size());
+    version.getEntities().collectValues(entities);
+    for (Object entity : entities) {
+      if (entity instanceof FeedEntity) {
+        feed.addEntity((FeedEntity) entity);
+      } else {
+        try {
+          feed.addEntity(FeedEntity.parseFrom((byte[]) entity,
+              GtfsRealtimeWireFormat.EXTENSION_REGISTRY));
+        } catch (InvalidProtocolBufferException ex) {
+          throw new IllegalStateException(ex);
+        }
+      }
+    }
+    return feed.build();
   }
 
   @Override
   public void addIncrementalListener(GtfsRealtimeIncrementalListener listener) {
-    _listeners.add(listener);
-    listener.handleFeed(getFeed());
+    ListenerDispatch dispatch = new ListenerDispatch(listener);
+    /**
+     * Register and queue the current full dataset while holding the lock, such
+     * that no differential can be dispatched to the listener ahead of it, but
+     * only start delivery once the lock is released, since a direct listener
+     * executor would otherwise write the whole feed to the listener while
+     * holding up every producer and reader.
+     */
+    boolean start;
+    synchronized (this) {
+      start = addListenerWithFullDataset(dispatch);
+    }
+    if (start) {
+      dispatch.start();
+    }
+  }
+
+  /****
+   * {@link GtfsRealtimeResumableSource} Interface
+   ****/
+
+  @Override
+  public String getStreamId() {
+    return _streamId;
+  }
+
+  @Override
+  public void addIncrementalListener(GtfsRealtimeIncrementalListener listener,
+      String streamId, long incrementalIndex) {
+    ListenerDispatch dispatch = new ListenerDispatch(listener);
+    boolean start = false;
+    synchronized (this) {
+      if (!_streamId.equals(streamId) || incrementalIndex < _resumeBase
+          || incrementalIndex > _incrementalIndex - 1) {
+        start = addListenerWithFullDataset(dispatch);
+      } else {
+        _listeners.add(dispatch);
+        long index = _resumeBase;
+        for (Publication publication : _retainedDifferentials) {
+          if (++index > incrementalIndex) {
+            start |= dispatch.enqueue(publication, null);
+          }
+        }
+      }
+    }
+    if (start) {
+      dispatch.start();
+    }
   }
 
   @Override
   public void removeIncrementalListener(GtfsRealtimeIncrementalListener listener) {
-    _listeners.remove(listener);
+    for (ListenerDispatch dispatch : _listeners) {
+      if (dispatch.getListener().equals(listener)) {
+        _listeners.remove(dispatch);
+      }
+    }
   }
 
   /***
    * Private Methods
    ****/
 
-  private FeedHeader createIncrementalHeader() {
-    FeedHeader.Builder header = FeedHeader.newBuilder();
-    if (_header != null) {
-      header.mergeFrom(_header);
+  private void invalidateCachedFeed(GtfsRealtimeTrace trace) {
+    invalidateCachedHeader();
+    touch();
+    _cachedFeed = null;
+    _cachedEncodedEntities = null;
+    _snapshotTrace = trace;
+  }
+
+  private GtfsRealtimeTrace startTrace() {
+    return _latencyTracer != null ? _latencyTracer.startTrace() : null;
+  }
+
+  /**
+   * Called once an update has been applied, which is the first thing done
+   * with it.
+   */
+  private void recordStoreApply(GtfsRealtimeTrace trace) {
+    if (trace != null) {
+      trace.record(Stage.STORE_APPLY, trace.getElapsedNanos());
     }
-    header.setIncrementality(Incrementality.DIFFERENTIAL);
-    header.setTimestamp(System.currentTimeMillis() / 1000);
-    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+  }
 
-    setIncrementalIndex(header, _incrementalIndex);
+  private void recordSnapshotBuild(long startNanos) {
+    if (_snapshotTrace != null) {
+      _snapshotTrace.record(Stage.SNAPSHOT_BUILD, System.nanoTime()
+          - startNanos);
+    }
+  }
 
-    return header.build();
+  /**
+   * Builds the current snapshot, or refreshes its header, if needed.
+   */
+  private synchronized FeedMessage buildFeed() {
+    FeedHeader header = getFullDatasetHeader();
+    if (_cachedFeed == null) {
+      long startNanos = System.nanoTime();
+      FeedMessage.Builder feed = FeedMessage.newBuilder();
+      feed.setHeader(header);
+      feed.addAllEntity(_feedEntities.getEntities());
+      _cachedFeed = feed.build();
+      recordSnapshotBuild(startNanos);
+    } else if (_cachedFeed.getHeader() != header) {
+      // Swap in the refreshed header, sharing the existing entity objects.
+      _cachedFeed = _cachedFeed.toBuilder().setHeader(header).build();
+    }
+    return _cachedFeed;
   }
 
-  private void setIncrementalIndex(FeedHeader.Builder header,
-      long incrementalIndex) {
-    OneBusAwayFeedHeader.Builder obaHeader = OneBusAwayFeedHeader.newBuilder();
-    obaHeader.setIncrementalIndex(incrementalIndex);
-    obaHeader.setIncrementalHeartbeatInterval(_incrementalHeartbeatInterval);
-    header.setExtension(GtfsRealtimeOneBusAway.obaFeedHeader, obaHeader.build());
+  /**
+   * @return the encoded header followed by the encoded entities, which
+   *         together make up the encoded feed
+   */
+  private synchronized ByteBuffer[] buildEncodedFeed() {
+    FeedHeader header = getFullDatasetHeader();
+    if (_cachedEncodedHeader == null || _cachedEncodedEntities == null) {
+      long startNanos = System.nanoTime();
+      /**
+       * The header and the entities are cached and handed out separately, so
+       * a refreshed timestamp costs only a few hundred bytes of encoding,
+       * rather than a rebuild or a copy of the entities.
+       */
+      if (_cachedEncodedHeader == null) {
+        byte[] encodedHeader = new byte[CodedOutputStream.computeMessageSize(
+            GtfsRealtimeWireFormat.FEED_MESSAGE_HEADER_FIELD, header)];
+        CodedOutputStream out = CodedOutputStream.newInstance(encodedHeader);
+        try {
+          GtfsRealtimeWireFormat.writeHeader(out, header);
+        } catch (IOException ex) {
+          throw new IllegalStateException(ex);
+        }
+        out.checkNoSpaceLeft();
+        _cachedEncodedHeader = ByteBuffer.wrap(encodedHeader).asReadOnlyBuffer();
+      }
+      ByteBuffer encodedEntities = getEncodedEntities();
+      recordSnapshotBuild(startNanos);
+      if (_cachedEncodedEntities == null) {
+        // Too large to keep alongside the rest of the memory budget.
+        ByteBuffer encodedHeader = _cachedEncodedHeader;
+        _cachedEncodedHeader = null;
+        return new ByteBuffer[] {encodedHeader, encodedEntities};
+      }
+    }
+    return new ByteBuffer[] {
+        _cachedEncodedHeader.duplicate(), _cachedEncodedEntities.duplicate()};
+  }
+
+  private GtfsRealtimeEntityStore<?> createEntityStore() {
+    GtfsRealtimeEntityStore<?> feedEntities = GtfsRealtimeEntityStore.create(
+        _storeMode, _cacheExpireSecs);
+    trackWriteOrder(feedEntities);
+    return feedEntities;
+  }
+
+  private void trackWriteOrder(GtfsRealtimeEntityStore<?> feedEntities) {
+    if (_memoryBudget > 0 && _memoryPolicy == MemoryPolicy.EVICT_OLDEST) {
+      feedEntities.setWriteOrderTracked();
+    }
+  }
+
+  /**
+   * @return true if updates that would exceed the memory budget are rejected
+   *         or held back, rather than applied and then evicted from
+   */
+  private boolean isMemoryAdmissionControlled() {
+    return _memoryBudget > 0 && _memoryPolicy != MemoryPolicy.EVICT_OLDEST;
+  }
+
+  private boolean fitsMemoryBudget(long growth) {
+    trimRetainedMemory(growth);
+    return getBudgetedMemorySize() + growth <= _memoryBudget;
+  }
+
+  /**
+   * @return the memory held against the budget: the entities, and the
+   *         differentials and history retained alongside them
+   */
+  private long getBudgetedMemorySize() {
+    return _feedEntities.getMemorySize() + _retainedDifferentialsMemorySize
+        + _historyMemorySize;
+  }
+
+  /**
+   * Drops retained differentials, and then history versions, oldest first,
+   * until the budgeted memory plus the specified growth fits the memory
+   * budget or there is nothing left to drop. A listener that can no longer
+   * resume is sent a full dataset instead.
+   */
+  private void trimRetainedMemory(long growth) {
+    if (_memoryBudget <= 0) {
+      return;
+    }
+    while (getBudgetedMemorySize() + growth > _memoryBudget
+        && !_retainedDifferentials.isEmpty()) {
+      pollOldestDifferential();
+    }
+    while (getBudgetedMemorySize() + growth > _memoryBudget
+        && pollOldestHistoryVersion()) {
+    }
+  }
+
+  /**
+   * Entities appearing more than once in an update are counted each time, so
+   * this may overestimate, but never underestimates, the growth.
+   */
+  private long computeMemoryGrowth(GtfsRealtimeIncrementalUpdate update) {
+    long growth = 0;
+    for (FeedEntity entity : update.getUpdatedEntities()) {
+      growth += GtfsRealtimeEntityStore.estimateMemorySize(entity.getId(),
+          entity.getSerializedSize())
+          - _feedEntities.getMemorySize(entity.getId());
+    }
+    for (String id : update.getDeletedEntities()) {
+      growth -= _feedEntities.getMemorySize(id);
+    }
+    return growth;
+  }
+
+  private long computeEncodedMemoryGrowth(List<EncodedEntity> entities) {
+    long growth = 0;
+    for (EncodedEntity entity : entities) {
+      growth -= _feedEntities.getMemorySize(entity.getId());
+      if (!entity.isDeleted()) {
+        growth += GtfsRealtimeEntityStore.estimateMemorySize(entity.getId(),
+            entity.getData().length);
+      }
+    }
+    return growth;
+  }
+
+  /**
+   * Rejects an update that doesn't fit the memory budget, or under
+   * {@link MemoryPolicy#BLOCK} waits for memory to be released, giving up the
+   * exporter's lock while it does.
+   * 
+   * @param deadline when to stop waiting, or zero on the first call
+   * @return the deadline to pass to the next call
+   */
+  private long awaitMemory(long growth, long deadline) {
+    long now = System.currentTimeMillis();
+    if (_memoryPolicy == MemoryPolicy.BLOCK) {
+      if (deadline == 0) {
+        deadline = now + _memoryBlockTimeout;
+      }
+      if (now < deadline) {
+        _blockedProducers++;
+        try {
+          wait(deadline - now);
+          return deadline;
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } finally {
+          _blockedProducers--;
+        }
+      }
+    }
+    _rejectedUpdates++;
+    throw new GtfsRealtimeMemoryBudgetExceededException("update of " + growth
+        + " bytes exceeds memory budget: used=" + getBudgetedMemorySize()
+        + " budget=" + _memoryBudget);
+  }
+
+  /**
+   * Wakes producers blocked on the memory budget after an update, since it may
+   * have released memory.
+   */
+  private void memoryReleased() {
+    if (_blockedProducers > 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * A full dataset replaces every entity, so waiting can't make room for it:
+   * it is rejected unless the policy is {@link MemoryPolicy#EVICT_OLDEST},
+   * which drops the entities that appear first in it. Listeners don't need to
+   * be told about those, since the full dataset they're sent omits them.
+   * 
+   * Retained differentials are dropped by a full dataset anyway, but the
+   * entities it replaces are kept alive by the latest history version, so
+   * history is trimmed to make room for it.
+   */
+  private void fitFullDatasetToMemoryBudget(
+      GtfsRealtimeEntityStore<?> feedEntities) {
+    if (_memoryBudget <= 0) {
+      return;
+    }
+    if (feedEntities.getMemorySize() <= _memoryBudget) {
+      while (feedEntities.getMemorySize()
+          + getHistoryMemorySizeAfterFullUpdate() > _memoryBudget
+          && pollOldestHistoryVersion()) {
+      }
+      return;
+    }
+    if (_memoryPolicy != MemoryPolicy.EVICT_OLDEST) {
+      _rejectedUpdates++;
+      throw new GtfsRealtimeMemoryBudgetExceededException("full dataset of "
+          + feedEntities.getMemorySize() + " bytes exceeds memory budget: budget="
+          + _memoryBudget);
+    }
+    while (pollOldestHistoryVersion()) {
+    }
+    while (feedEntities.getMemorySize() > _memoryBudget
+        && feedEntities.evictOldest() != null) {
+      _evictedEntities++;
+    }
+  }
+
+  /**
+   * Under {@link MemoryPolicy#EVICT_OLDEST}, evicts the entities written
+   * longest ago until the store fits the memory budget.
+   * 
+   * @return the ids of the evicted entities
+   */
+  private List<String> evictOverMemoryBudget() {
+    if (_memoryBudget <= 0 || _memoryPolicy != MemoryPolicy.EVICT_OLDEST) {
+      return Collections.emptyList();
+    }
+    trimRetainedMemory(0);
+    if (getBudgetedMemorySize() <= _memoryBudget) {
+      return Collections.emptyList();
+    }
+    List<String> evicted = new ArrayList<String>();
+    while (getBudgetedMemorySize() > _memoryBudget) {
+      String id = _feedEntities.evictOldest();
+      if (id == null) {
+        break;
+      }
+      removeHistoryEntity(id);
+      evicted.add(id);
+    }
+    _evictedEntities += evicted.size();
+    _log.debug("evicted " + evicted.size()
+        + " entities to fit memory budget of " + _memoryBudget + " bytes");
+    return evicted;
+  }
+
+  /**
+   * Only rebuilds when the feed has changed or its header timestamp has fallen
+   * behind the clock, and then only the forms readers have asked for. Either
+   * way, the cached pieces below are reused where they're still current.
+   */
+  private synchronized void rebuildSnapshot() {
+    Snapshot snapshot = _snapshot;
+    long now = System.currentTimeMillis() / 1000;
+    if (snapshot != null && snapshot.getLastModified() == _lastModified
+        && snapshot.getTimestamp() == now
+        && (snapshot.getFeed() != null || !_feedRequested)
+        && (snapshot.getEncodedFeed() != null || !_encodedFeedRequested)) {
+      return;
+    }
+    FeedMessage feed = _feedRequested ? buildFeed() : null;
+    ByteBuffer[] encodedFeed = _encodedFeedRequested ? buildEncodedFeed()
+        : null;
+    if (_cachedEncodedEntities == null) {
+      // Don't hold on to an encoding too large for the memory budget.
+      encodedFeed = null;
+    }
+    _snapshot = new Snapshot(feed, encodedFeed, _lastModified,
+        getFullDatasetHeader().getTimestamp());
+  }
+
+  private void clearHistoryEntities() {
+    if (_historyRetention > 0) {
+      supersedeHistoryEntities(_historyEntitiesMemorySize);
+      _historyEntities = GtfsRealtimePersistentMap.empty();
+    }
+  }
+
+  private void putHistoryEntity(String id, Object entity) {
+    if (_historyRetention > 0) {
+      supersedeHistoryEntity(id, _historyEntities.get(id));
+      _historyEntities = _historyEntities.put(id, entity);
+      _historyEntitiesMemorySize += estimateMemorySize(id, entity);
+    }
+  }
+
+  private void removeHistoryEntity(String id) {
+    if (_historyRetention > 0) {
+      supersedeHistoryEntity(id, _historyEntities.get(id));
+      _historyEntities = _historyEntities.remove(id);
+    }
+  }
+
+  private void supersedeHistoryEntity(String id, Object entity) {
+    if (entity != null) {
+      supersedeHistoryEntities(estimateMemorySize(id, entity));
+    }
+  }
+
+  /**
+   * Called as entities are replaced or removed, which from then on are kept
+   * alive only by the latest version, if there is one.
+   */
+  private void supersedeHistoryEntities(long memorySize) {
+    _historyEntitiesMemorySize -= memorySize;
+    if (_latestHistoryVersion != null) {
+      _latestHistoryVersion.addSupersededMemorySize(memorySize);
+      _historyMemorySize += memorySize;
+    }
+  }
+
+  /**
+   * @return the history memory once a full dataset has replaced every entity,
+   *         which the latest version then keeps alive
+   */
+  private long getHistoryMemorySizeAfterFullUpdate() {
+    if (_latestHistoryVersion == null) {
+      return _historyMemorySize;
+    }
+    return _historyMemorySize + _historyEntitiesMemorySize;
+  }
+
+  /**
+   * Drops the oldest retained version, along with the entities only it kept
+   * alive.
+   * 
+   * @return false if there was no version to drop
+   */
+  private boolean pollOldestHistoryVersion() {
+    synchronized (_history) {
+      Map.Entry<Long, HistoryVersion> entry = _history.pollFirstEntry();
+      if (entry == null) {
+        return false;
+      }
+      HistoryVersion version = entry.getValue();
+      _historyMemorySize -= version.getSupersededMemorySize();
+      if (version == _latestHistoryVersion) {
+        _latestHistoryVersion = null;
+      }
+      return true;
+    }
+  }
+
+  private static int estimateMemorySize(String id, Object entity) {
+    int serializedSize = entity instanceof byte[] ? ((byte[]) entity).length
+        : ((FeedEntity) entity).getSerializedSize();
+    return GtfsRealtimeEntityStore.estimateMemorySize(id, serializedSize);
+  }
+
+  /**
+   * Called with the lock held after each published change. Versions are
+   * evicted once they are both superseded and older than the retention
+   * period, or when there are more of them than the maximum.
+   */
+  private void recordHistory() {
+    if (_historyRetention <= 0) {
+      return;
+    }
+    HistoryVersion version = new HistoryVersion(_historyEntities, _header,
+        _incrementalIndex - 1, _lastModified);
+    synchronized (_history) {
+      _history.put(version.getTime(), version);
+      _latestHistoryVersion = version;
+      while (_history.size() > _historyMaxVersions) {
+        pollOldestHistoryVersion();
+      }
+      long cutoff = version.getTime() - _historyRetention;
+      while (_history.size() > 1) {
+        Long next = _history.higherKey(_history.firstKey());
+        if (next > cutoff) {
+          break;
+        }
+        pollOldestHistoryVersion();
+      }
+    }
+    trimRetainedMemory(0);
+  }
+
+  private void invalidateCachedHeader() {
+    _cachedHeader = null;
+    _cachedEncodedHeader = null;
+  }
+
+  /**
+   * Called with the lock held whenever the feed changes. Kept strictly
+   * increasing so that it can stand in for a version number.
+   */
+  private void touch() {
+    _lastModified = Math.max(System.currentTimeMillis(), _lastModified + 1);
+  }
+
+  private FeedHeader getFullDatasetHeader() {
+    long now = System.currentTimeMillis() / 1000;
+    if (_cachedHeader == null || _cachedHeader.getTimestamp() != now) {
+      invalidateCachedHeader();
+      _cachedHeader = createFullDatasetHeader();
+    }
+    return _cachedHeader;
+  }
+
+  /**
+   * Encode straight from the store, rather than via getFeed(), so that a store
+   * holding encoded entities can copy their bytes as-is.
+   */
+  private ByteBuffer getEncodedEntities() {
+    if (_cachedEncodedEntities != null) {
+      return _cachedEncodedEntities.duplicate();
+    }
+    ByteBuffer encodedEntities = _feedEntities.encodeEntities(_encoderPool,
+        _parallelEncodingThreshold).asReadOnlyBuffer();
+    if (_memoryBudget <= 0
+        || getMemorySize() + encodedEntities.capacity() <= _memoryBudget) {
+      _cachedEncodedEntities = encodedEntities;
+    }
+    return encodedEntities.duplicate();
+  }
+
+  private static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+    ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+    for (int i = 0; i < buffers.length; ++i) {
+      duplicates[i] = buffers[i].duplicate();
+    }
+    return duplicates;
+  }
+
+  private static void writeBuffers(OutputStream out, ByteBuffer[] buffers)
+      throws IOException {
+    WritableByteChannel channel = Channels.newChannel(out);
+    for (ByteBuffer buffer : buffers) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  private void applyEncodedIncrementalUpdate(List<EncodedEntity> entities,
+      GtfsRealtimeTrace trace) {
+    if (isMemoryAdmissionControlled()) {
+      long deadline = 0;
+      long growth;
+      while ((growth = computeEncodedMemoryGrowth(entities)) > 0
+          && !fitsMemoryBudget(growth)) {
+        deadline = awaitMemory(growth, deadline);
+      }
+    }
+    invalidateCachedFeed(trace);
+    for (EncodedEntity entity : entities) {
+      if (entity.isDeleted()) {
+        _feedEntities.remove(entity.getId());
+        removeHistoryEntity(entity.getId());
+      } else {
+        _feedEntities.putEncoded(entity.getId(), entity.getData());
+        putHistoryEntity(entity.getId(), entity.getData());
+      }
+    }
+    List<String> evicted = evictOverMemoryBudget();
+    recordStoreApply(trace);
+    if (!evicted.isEmpty()) {
+      // Evicted entities may include some of those just updated.
+      Set<String> evictedIds = new HashSet<String>(evicted);
+      List<EncodedEntity> published = new ArrayList<EncodedEntity>();
+      for (EncodedEntity entity : entities) {
+        if (entity.isDeleted() || !evictedIds.contains(entity.getId())) {
+          published.add(entity);
+        }
+      }
+      for (String id : evicted) {
+        FeedEntity.Builder deleted = FeedEntity.newBuilder();
+        deleted.setId(id);
+        deleted.setIsDeleted(true);
+        published.add(new EncodedEntity(id, true,
+            deleted.build().toByteArray()));
+      }
+      entities = published;
+    }
+    publishEncodedDifferential(entities, trace);
+    recordHistory();
+    memoryReleased();
+  }
+
+  private void publishFullDataset(GtfsRealtimeTrace trace) {
+    // Differentials from before a full dataset can't be applied after it.
+    _retainedDifferentials.clear();
+    _retainedDifferentialsMemorySize = 0;
+    _resumeBase = _incrementalIndex - 1;
+    List<ListenerDispatch> listeners = new ArrayList<ListenerDispatch>(
+        _listeners);
+    Publication publication = null;
+    if (!listeners.isEmpty()) {
+      publication = createFullDatasetPublication(listeners, trace);
+    }
+    dispatch(publication, listeners, trace);
+  }
+
+  /**
+   * Only materializes the forms of the full dataset that the specified
+   * listeners will actually consume.
+   */
+  private Publication createFullDatasetPublication(
+      Collection<ListenerDispatch> listeners, GtfsRealtimeTrace trace) {
+    FeedMessage feed = null;
+    ByteBuffer[] encodedFeed = null;
+    for (ListenerDispatch listener : listeners) {
+      if (listener.isEncoded()) {
+        if (encodedFeed == null) {
+          encodedFeed = buildEncodedFeed();
+        }
+      } else if (feed == null) {
+        feed = buildFeed();
+      }
+    }
+    return new Publication(feed, encodedFeed, trace);
+  }
+
+  private void publishDifferential(Collection<FeedEntity> updatedEntities,
+      Collection<String> deletedEntities, GtfsRealtimeTrace trace) {
+    long startNanos = System.nanoTime();
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.setHeader(createIncrementalHeader());
+    feed.addAllEntity(updatedEntities);
+    for (String toRemove : deletedEntities) {
+      FeedEntity.Builder entity = FeedEntity.newBuilder();
+      entity.setIsDeleted(true);
+      entity.setId(toRemove);
+      feed.addEntity(entity);
+    }
+
+    FeedMessage differentialFeed = feed.build();
+    if (trace != null) {
+      trace.record(Stage.ENCODING, System.nanoTime() - startNanos);
+    }
+    _incrementalIndex++;
+    Publication publication = new Publication(differentialFeed, null, trace);
+    retainDifferential(publication);
+    dispatch(publication, _listeners, trace);
+  }
+
+  /**
+   * Assembles the differential straight from the entity bytes we were given,
+   * including those of deleted entities, so they reach listeners unchanged.
+   */
+  private void publishEncodedDifferential(List<EncodedEntity> entities,
+      GtfsRealtimeTrace trace) {
+    long startNanos = System.nanoTime();
+    FeedHeader header = createIncrementalHeader();
+    int size = CodedOutputStream.computeMessageSize(
+        GtfsRealtimeWireFormat.FEED_MESSAGE_HEADER_FIELD, header);
+    for (EncodedEntity entity : entities) {
+      size += GtfsRealtimeWireFormat.computeEntityFieldSize(entity.getData().length);
+    }
+    byte[] data = new byte[size];
+    CodedOutputStream out = CodedOutputStream.newInstance(data);
+    try {
+      GtfsRealtimeWireFormat.writeHeader(out, header);
+      for (EncodedEntity entity : entities) {
+        GtfsRealtimeWireFormat.writeEntity(out, entity.getData());
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    out.checkNoSpaceLeft();
+    if (trace != null) {
+      trace.record(Stage.ENCODING, System.nanoTime() - startNanos);
+    }
+
+    _incrementalIndex++;
+    Publication publication = new Publication(null,
+        new ByteBuffer[] {ByteBuffer.wrap(data).asReadOnlyBuffer()}, trace);
+    retainDifferential(publication);
+    dispatch(publication, _listeners, trace);
+  }
+
+  /**
+   * Dispatches a publication to each of the specified listeners. A traced
+   * publication is first told how many deliveries to expect, so that the
+   * trace completes once the last of them has finished, or right away if
+   * there are none.
+   */
+  private void dispatch(Publication publication,
+      Collection<ListenerDispatch> listeners, GtfsRealtimeTrace trace) {
+    if (trace != null) {
+      // Copy, since listeners may be removed without holding our lock.
+      listeners = new ArrayList<ListenerDispatch>(listeners);
+      trace.published(_incrementalIndex - 1, listeners.size());
+    }
+    for (ListenerDispatch listener : listeners) {
+      listener.dispatch(publication, trace);
+    }
+  }
+
+  /**
+   * Registers a listener and queues the current full dataset for it. Must be
+   * called while holding our lock.
+   * 
+   * @return true if the caller must start the listener's delivery once it has
+   *         released the lock
+   */
+  private boolean addListenerWithFullDataset(ListenerDispatch dispatch) {
+    _listeners.add(dispatch);
+    return dispatch.enqueue(
+        createFullDatasetPublication(Collections.singletonList(dispatch), null),
+        null);
+  }
+
+  private void retainDifferential(Publication publication) {
+    _retainedDifferentials.add(publication);
+    _retainedDifferentialsMemorySize += publication.getEncodedSize();
+    while (_retainedDifferentials.size() > _resumeWindow) {
+      pollOldestDifferential();
+    }
+    trimRetainedMemory(0);
+  }
+
+  private void pollOldestDifferential() {
+    Publication publication = _retainedDifferentials.poll();
+    _retainedDifferentialsMemorySize -= publication.getEncodedSize();
+    _resumeBase++;
+  }
+
+  private synchronized void publishExpiredEntities() {
+    List<String> expiredEntityIds = new ArrayList<String>();
+    _feedEntities.drainExpiredEntityIds(expiredEntityIds);
+    if (!expiredEntityIds.isEmpty()) {
+      invalidateCachedFeed(null);
+      for (String id : expiredEntityIds) {
+        removeHistoryEntity(id);
+      }
+      publishDifferential(Collections.<FeedEntity> emptyList(),
+          expiredEntityIds, null);
+      recordHistory();
+      memoryReleased();
+    }
+  }
+
+  /**
+   * Sends an empty differential, carrying the current incremental index, to
+   * each listener that hasn't been sent anything within the specified time.
+   * The heartbeat is built once and shared, so encoding listeners also share
+   * a single encoding of it.
+   */
+  private synchronized void publishHeartbeat(long idleTime) {
+    long now = System.currentTimeMillis();
+    Publication heartbeat = null;
+    for (ListenerDispatch listener : _listeners) {
+      if (now - listener.getLastDispatchTime() < idleTime) {
+        continue;
+      }
+      if (heartbeat == null) {
+        FeedHeader.Builder header = createIncrementalHeader().toBuilder();
+        setIncrementalIndex(header, _incrementalIndex - 1);
+        FeedMessage.Builder feed = FeedMessage.newBuilder();
+        feed.setHeader(header);
+        heartbeat = new Publication(feed.build(), null, null);
+      }
+      listener.dispatch(heartbeat, null);
+    }
+  }
+
+  private FeedHeader createFullDatasetHeader() {
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    if (_header != null) {
+      header.mergeFrom(_header);
+    }
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setTimestamp(System.currentTimeMillis() / 1000);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+
+    setIncrementalIndex(header, _incrementalIndex - 1);
+
+    return header.build();
+  }
+
+  private FeedHeader createIncrementalHeader() {
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    if (_header != null) {
+      header.mergeFrom(_header);
+    }
+    header.setIncrementality(Incrementality.DIFFERENTIAL);
+    header.setTimestamp(System.currentTimeMillis() / 1000);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+
+    setIncrementalIndex(header, _incrementalIndex);
+
+    return header.build();
+  }
+
+  private void setIncrementalIndex(FeedHeader.Builder header,
+      long incrementalIndex) {
+    OneBusAwayFeedHeader.Builder obaHeader = OneBusAwayFeedHeader.newBuilder();
+    obaHeader.setIncrementalIndex(incrementalIndex);
+    obaHeader.setIncrementalHeartbeatInterval(_incrementalHeartbeatInterval);
+    header.setExtension(GtfsRealtimeOneBusAway.obaFeedHeader, obaHeader.build());
+  }
+
+  /**
+   * What an exporter does with an update that would take it over its memory
+   * budget.
+   */
+  enum MemoryPolicy {
+
+    /**
+     * The update is rejected with a
+     * {@link GtfsRealtimeMemoryBudgetExceededException}.
+     */
+    REJECT,
+
+    /**
+     * The update is applied, and then the entities written longest ago are
+     * evicted until the budget is met. Listeners are sent deletions for them.
+     */
+    EVICT_OLDEST,
+
+    /**
+     * The producer waits until deletions or expiry make room for the update,
+     * and if that takes too long, the update is rejected.
+     */
+    BLOCK
+  }
+
+  /**
+   * Delivers feed messages to a single listener using the listener executor,
+   * preserving the order in which they were published. At most one task per
+   * listener is active on the executor at a time.
+   */
+  private class ListenerDispatch implements Runnable {
+
+    private final GtfsRealtimeIncrementalListener _listener;
+
+    private final Queue<Delivery> _pending = new ArrayDeque<Delivery>();
+
+    private boolean _running = false;
+
+    private volatile long _lastDispatchTime = System.currentTimeMillis();
+
+    public ListenerDispatch(GtfsRealtimeIncrementalListener listener) {
+      _listener = listener;
+    }
+
+    public GtfsRealtimeIncrementalListener getListener() {
+      return _listener;
+    }
+
+    public long getLastDispatchTime() {
+      return _lastDispatchTime;
+    }
+
+    public boolean isEncoded() {
+      return _listener instanceof GtfsRealtimeEncodedListener;
+    }
+
+    /**
+     * @param trace the trace to report this delivery to, or null for an
+     *          untraced delivery, such as a replay of a past publication
+     */
+    public void dispatch(Publication publication, GtfsRealtimeTrace trace) {
+      if (enqueue(publication, trace)) {
+        start();
+      }
+    }
+
+    /**
+     * Queues a delivery without handing it to the listener executor, for
+     * callers that must not run the listener while holding a lock.
+     * 
+     * @return true if the caller must then call {@link #start()}
+     */
+    public boolean enqueue(Publication publication, GtfsRealtimeTrace trace) {
+      _lastDispatchTime = System.currentTimeMillis();
+      synchronized (this) {
+        _pending.add(new Delivery(publication, trace));
+        if (_running) {
+          return false;
+        }
+        _running = true;
+        return true;
+      }
+    }
+
+    public void start() {
+      try {
+        _listenerExecutor.execute(this);
+      } catch (RejectedExecutionException ex) {
+        _log.warn("listener executor rejected feed delivery", ex);
+        synchronized (this) {
+          for (Delivery delivery : _pending) {
+            if (delivery.getTrace() != null) {
+              delivery.getTrace().deliveryCompleted();
+            }
+          }
+          _pending.clear();
+          _running = false;
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Delivery delivery = null;
+        synchronized (this) {
+          delivery = _pending.poll();
+          if (delivery == null) {
+            _running = false;
+            return;
+          }
+        }
+        Publication publication = delivery.getPublication();
+        GtfsRealtimeTrace trace = delivery.getTrace();
+        Object previousPublication = getCurrentPublication();
+        setCurrentPublication(publication);
+        // A listener may itself publish, and so deliver, on this thread.
+        GtfsRealtimeTrace previousTrace = GtfsRealtimeLatencyTracer.getCurrentTrace();
+        if (trace != null) {
+          trace.deliveryStarted();
+          GtfsRealtimeLatencyTracer.setCurrentTrace(trace);
+        }
+        try {
+          if (isEncoded()) {
+            ((GtfsRealtimeEncodedListener) _listener).handleEncodedFeed(publication.getEncodedFeed());
+          } else {
+            _listener.handleFeed(publication.getFeed());
+          }
+        } catch (RuntimeException ex) {
+          _log.warn("error delivering feed to listener " + _listener, ex);
+        } finally {
+          setCurrentPublication(previousPublication);
+          if (trace != null) {
+            GtfsRealtimeLatencyTracer.setCurrentTrace(previousTrace);
+            trace.deliveryCompleted();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A feed update on its way to listeners, as a {@link FeedMessage}, an
+   * encoding of it, or both. A missing form is computed once, on first use,
+   * and shared by every listener that wants it.
+   * 
+   * The encoding may be given in pieces, such as the header and entities of a
+   * full dataset. Listeners take a single buffer, so the pieces are joined,
+   * once, by the first listener to ask for them, rather than by the exporter
+   * while it holds its lock.
+   */
+  private static class Publication {
+
+    private FeedMessage _feed;
+
+    private ByteBuffer[] _encodedFeedBuffers;
+
+    private ByteBuffer _encodedFeed;
+
+    private final GtfsRealtimeTrace _trace;
+
+    public Publication(FeedMessage feed, ByteBuffer[] encodedFeedBuffers,
+        GtfsRealtimeTrace trace) {
+      _feed = feed;
+      _encodedFeedBuffers = encodedFeedBuffers;
+      _trace = trace;
+    }
+
+    public synchronized FeedMessage getFeed() {
+      if (_feed == null) {
+        long startNanos = System.nanoTime();
+        ByteBuffer encodedFeed = getEncodedFeed();
+        byte[] data = new byte[encodedFeed.remaining()];
+        encodedFeed.get(data);
+        try {
+          _feed = FeedMessage.parseFrom(data,
+              GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+        } catch (InvalidProtocolBufferException ex) {
+          throw new IllegalStateException(ex);
+        }
+        recordEncoding(startNanos);
+      }
+      return _feed;
+    }
+
+    /**
+     * @return the size of the encoded feed, whichever forms of it have been
+     *         materialized
+     */
+    public synchronized long getEncodedSize() {
+      if (_encodedFeed != null) {
+        return _encodedFeed.remaining();
+      }
+      if (_encodedFeedBuffers != null) {
+        long size = 0;
+        for (ByteBuffer buffer : _encodedFeedBuffers) {
+          size += buffer.remaining();
+        }
+        return size;
+      }
+      return _feed.getSerializedSize();
+    }
+
+    public synchronized ByteBuffer getEncodedFeed() {
+      if (_encodedFeed == null && _encodedFeedBuffers != null) {
+        _encodedFeed = GtfsRealtimeWireFormat.join(_encodedFeedBuffers);
+        _encodedFeedBuffers = null;
+      } else if (_encodedFeed == null) {
+        long startNanos = System.nanoTime();
+        _encodedFeed = ByteBuffer.wrap(_feed.toByteArray()).asReadOnlyBuffer();
+        recordEncoding(startNanos);
+      }
+      return _encodedFeed.duplicate();
+    }
+
+    private void recordEncoding(long startNanos) {
+      if (_trace != null) {
+        _trace.record(Stage.ENCODING, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  /**
+   * A publication queued for a single listener, along with the trace its
+   * delivery is reported to, if any.
+   */
+  private static class Delivery {
+
+    private final Publication _publication;
+
+    private final GtfsRealtimeTrace _trace;
+
+    public Delivery(Publication publication, GtfsRealtimeTrace trace) {
+      _publication = publication;
+      _trace = trace;
+    }
+
+    public Publication getPublication() {
+      return _publication;
+    }
+
+    public GtfsRealtimeTrace getTrace() {
+      return _trace;
+    }
+  }
+
+  /**
+   * Serves reads from the last completed background snapshot, when there is
+   * one, falling back to the live feed otherwise. Its modification time is
+   * that of the snapshot, so that it never runs ahead of what was served.
+   */
+  private class SnapshotSource implements GtfsRealtimeEncodedSource {
+
+    @Override
+    public FeedMessage getFeed() {
+      Snapshot snapshot = _snapshot;
+      if (snapshot != null && snapshot.getFeed() != null) {
+        return snapshot.getFeed();
+      }
+      _feedRequested = true;
+      return buildFeed();
+    }
+
+    @Override
+    public ByteBuffer getEncodedFeed() {
+      return GtfsRealtimeWireFormat.join(getEncodedFeedBuffers());
+    }
+
+    @Override
+    public ByteBuffer[] getEncodedFeedBuffers() {
+      Snapshot snapshot = _snapshot;
+      if (snapshot != null && snapshot.getEncodedFeed() != null) {
+        return duplicate(snapshot.getEncodedFeed());
+      }
+      _encodedFeedRequested = true;
+      return buildEncodedFeed();
+    }
+
+    @Override
+    public void writeFeed(OutputStream out) throws IOException {
+      Snapshot snapshot = _snapshot;
+      if (snapshot != null && snapshot.getEncodedFeed() != null) {
+        writeBuffers(out, duplicate(snapshot.getEncodedFeed()));
+        return;
+      }
+      GtfsRealtimeExporterImpl.this.writeFeed(out);
+    }
+
+    @Override
+    public long getLastModified() {
+      Snapshot snapshot = _snapshot;
+      if (snapshot != null) {
+        return snapshot.getLastModified();
+      }
+      return _lastModified;
+    }
+
+    @Override
+    public void addIncrementalListener(GtfsRealtimeIncrementalListener listener) {
+      GtfsRealtimeExporterImpl.this.addIncrementalListener(listener);
+    }
+
+    @Override
+    public void removeIncrementalListener(
+        GtfsRealtimeIncrementalListener listener) {
+      GtfsRealtimeExporterImpl.this.removeIncrementalListener(listener);
+    }
+  }
+
+  /**
+   * A completed full-dataset snapshot, in whichever forms were requested.
+   */
+  private static class Snapshot {
+
+    private final FeedMessage _feed;
+
+    private final ByteBuffer[] _encodedFeed;
+
+    private final long _lastModified;
+
+    private final long _timestamp;
+
+    public Snapshot(FeedMessage feed, ByteBuffer[] encodedFeed,
+        long lastModified, long timestamp) {
+      _feed = feed;
+      _encodedFeed = encodedFeed;
+      _lastModified = lastModified;
+      _timestamp = timestamp;
+    }
+
+    public FeedMessage getFeed() {
+      return _feed;
+    }
+
+    /**
+     * @return the encoded header and entities, which callers must duplicate
+     *         before consuming
+     */
+    public ByteBuffer[] getEncodedFeed() {
+      return _encodedFeed;
+    }
+
+    public long getLastModified() {
+      return _lastModified;
+    }
+
+    public long getTimestamp() {
+      return _timestamp;
+    }
+  }
+
+  /**
+   * A retained version of the full dataset.
+   */
+  private static class HistoryVersion {
+
+    private final GtfsRealtimePersistentMap<String, Object> _entities;
+
+    private final FeedHeader _header;
+
+    private final long _incrementalIndex;
+
+    private final long _time;
+
+    /**
+     * The memory accounted to entities replaced or removed after this version,
+     * which only it keeps alive once older versions are gone. Guarded by the
+     * exporter's lock.
+     */
+    private long _supersededMemorySize = 0;
+
+    public HistoryVersion(GtfsRealtimePersistentMap<String, Object> entities,
+        FeedHeader header, long incrementalIndex, long time) {
+      _entities = entities;
+      _header = header;
+      _incrementalIndex = incrementalIndex;
+      _time = time;
+    }
+
+    public GtfsRealtimePersistentMap<String, Object> getEntities() {
+      return _entities;
+    }
+
+    public FeedHeader getHeader() {
+      return _header;
+    }
+
+    public long getIncrementalIndex() {
+      return _incrementalIndex;
+    }
+
+    public long getTime() {
+      return _time;
+    }
+
+    public long getSupersededMemorySize() {
+      return _supersededMemorySize;
+    }
+
+    public void addSupersededMemorySize(long memorySize) {
+      _supersededMemorySize += memorySize;
+    }
+  }
+
+  private class HeartbeatTask implements Runnable {
+
+    private final long _idleTime;
+
+    public HeartbeatTask(long idleTime) {
+      _idleTime = idleTime;
+    }
+
+    @Override
+    public void run() {
+      try {
+        publishHeartbeat(_idleTime);
+      } catch (RuntimeException ex) {
+        _log.warn("error publishing heartbeat", ex);
+      }
+    }
+  }
+
+  private class SnapshotTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        rebuildSnapshot();
+      } catch (RuntimeException ex) {
+        _log.warn("error rebuilding snapshot", ex);
+      }
+    }
+  }
+
+  private class ExpiryTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        publishExpiredEntities();
+      } catch (RuntimeException ex) {
+        _log.warn("error publishing expired entities", ex);
+      }
+    }
   }
 }
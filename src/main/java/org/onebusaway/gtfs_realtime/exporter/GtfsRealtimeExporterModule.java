@@ -17,8 +17,14 @@ package org.onebusaway.gtfs_realtime.exporter;
 
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.AlertsExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.MixedFeedExporter;
@@ -29,7 +35,11 @@ import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Mixed
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 import org.onebusaway.guice.jetty_exporter.JettyExporterModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
@@ -53,8 +63,40 @@ import com.google.inject.name.Names;
  */
 public class GtfsRealtimeExporterModule extends AbstractModule {
 
+  /**
+   * Scheduled executor used for file output, eg. by
+   * {@link GtfsRealtimeFileWriter}. The pool size is set by the
+   * "executor.file.threads" system property, defaulting to one thread.
+   */
   public static final String NAME_EXECUTOR = "org.onebusway.gtfs_realtime.exporter.GtfsRealtimeExporterModule.executor";
 
+  /**
+   * Executor used to deliver feed updates to incremental listeners, such as
+   * WebSocket clients. Controlled by the "executor.listener.threads" system
+   * property: "0" (the default) delivers updates on the producer's thread, a
+   * positive number specifies a fixed pool size, and "virtual" uses a virtual
+   * thread per delivery on runtimes that support it.
+   */
+  public static final String NAME_LISTENER_EXECUTOR = "org.onebusway.gtfs_realtime.exporter.GtfsRealtimeExporterModule.listenerExecutor";
+
+  /**
+   * Scheduled executor used for periodic exporter maintenance, such as
+   * expiring stale entities and sending heartbeats. The pool size is set by the
+   * "executor.expiry.threads" system property, defaulting to one thread.
+   */
+  public static final String NAME_EXPIRY_EXECUTOR = "org.onebusway.gtfs_realtime.exporter.GtfsRealtimeExporterModule.expiryExecutor";
+
+  /**
+   * Fork/join pool used to encode large feed snapshots in parallel. The
+   * parallelism is set by the "executor.encoder.threads" system property,
+   * defaulting to the number of available processors; "1" encodes
+   * sequentially. Only snapshots with at least "encoder.parallel.threshold"
+   * entities (default 10000) are split up.
+   */
+  public static final String NAME_ENCODER_POOL = "org.onebusway.gtfs_realtime.exporter.GtfsRealtimeExporterModule.encoderPool";
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeExporterModule.class);
+
   /**
    * Adds a {@link GtfsRealtimeExporterModule} instance to the specified set of
    * modules, along with all its dependencies.
@@ -91,8 +133,19 @@ public class GtfsRealtimeExporterModule extends AbstractModule {
     bind(TripUpdatesExporter.class).to(GtfsRealtimeExporterImpl.class).in(
         Singleton.class);
 
-    bind(GtfsRealtimeSink.class).annotatedWith(VehiclePositions.class).to(
-        VehiclePositionsExporter.class);
+    /**
+     * Optionally, updates pushed to the vehicle positions sink first pass
+     * through a {@link GtfsRealtimeDeadBandFilter}. The exporter itself, as
+     * injected through its source and exporter bindings, is unaffected.
+     */
+    if (Boolean.parseBoolean(System.getProperty("deadband.enabled", "false"))) {
+      bind(GtfsRealtimeSink.class).annotatedWith(VehiclePositions.class).to(
+          GtfsRealtimeDeadBandFilter.class);
+      bind(GtfsRealtimeDeadBandFilter.class).in(Singleton.class);
+    } else {
+      bind(GtfsRealtimeSink.class).annotatedWith(VehiclePositions.class).to(
+          VehiclePositionsExporter.class);
+    }
     bind(GtfsRealtimeSource.class).annotatedWith(VehiclePositions.class).to(
         VehiclePositionsExporter.class);
     bind(GtfsRealtimeExporter.class).annotatedWith(VehiclePositions.class).to(
@@ -109,10 +162,176 @@ public class GtfsRealtimeExporterModule extends AbstractModule {
 
     bind(ScheduledExecutorService.class).annotatedWith(
         Names.named(NAME_EXECUTOR)).toInstance(
-        Executors.newSingleThreadScheduledExecutor());
+        createScheduledExecutor("gtfs-realtime-file-%d",
+            System.getProperty("executor.file.threads", "1")));
+    bind(Executor.class).annotatedWith(Names.named(NAME_LISTENER_EXECUTOR)).toInstance(
+        createListenerExecutor(System.getProperty(
+            "executor.listener.threads", "0")));
+    bind(ScheduledExecutorService.class).annotatedWith(
+        Names.named(NAME_EXPIRY_EXECUTOR)).toInstance(
+        createScheduledExecutor("gtfs-realtime-expiry-%d",
+            System.getProperty("executor.expiry.threads", "1")));
+
+    bind(ForkJoinPool.class).annotatedWith(Names.named(NAME_ENCODER_POOL)).toInstance(
+        createForkJoinPool("gtfs-realtime-encoder-", System.getProperty(
+            "executor.encoder.threads",
+            Integer.toString(Runtime.getRuntime().availableProcessors()))));
+    bindConstant().annotatedWith(Names.named("encoder.parallel.threshold")).to(
+        System.getProperty("encoder.parallel.threshold", "10000"));
+
+    /**
+     * How often, in seconds, idle incremental listeners are sent an empty
+     * heartbeat differential. Zero disables heartbeats.
+     */
+    String heartbeatInterval = System.getProperty(
+        "incremental.heartbeat.interval", "60");
+    bindConstant().annotatedWith(Names.named("incremental.heartbeat.interval")).to(
+        heartbeatInterval);
+
+    /**
+     * How many recent differentials each exporter retains, so that incremental
+     * listeners can resume where they left off rather than starting over with
+     * a full dataset.
+     */
+    bindConstant().annotatedWith(Names.named("incremental.resume.window")).to(
+        System.getProperty("incremental.resume.window", "1000"));
+
+    /**
+     * Zero rebuilds the full-dataset snapshot on the first read after an
+     * update. Otherwise, it is rebuilt in the background at most once per
+     * interval, in milliseconds.
+     */
+    bindConstant().annotatedWith(Names.named("snapshot.rebuild.interval")).to(
+        System.getProperty("snapshot.rebuild.interval", "0"));
+
+    /**
+     * How long, in seconds, past versions of each full dataset are retained
+     * for point-in-time queries, and the most versions retained. A retention
+     * of zero keeps no history.
+     */
+    bindConstant().annotatedWith(Names.named("history.retention.secs")).to(
+        System.getProperty("history.retention.secs", "0"));
+    bindConstant().annotatedWith(Names.named("history.max.versions")).to(
+        System.getProperty("history.max.versions", "10000"));
+
+    /**
+     * Whether each update is traced from the sink to its listeners, for the
+     * latency histograms reported by {@link GtfsRealtimeMetricsServlet}.
+     */
+    bindConstant().annotatedWith(Names.named("tracing.enabled")).to(
+        System.getProperty("tracing.enabled", "false"));
+
+    /**
+     * The most memory, in bytes, each exporter may take up, or zero for no
+     * limit, and what happens to an update that would exceed it: "reject" it,
+     * "evict_oldest" entities to make room, or "block" the producer for up to
+     * the timeout, in milliseconds, and then reject it. The budget covers the
+     * entities, the resume window, history and the cached encoded feed, but
+     * the others give way to the entities before any update is refused.
+     */
+    bindConstant().annotatedWith(Names.named("memory.budget.bytes")).to(
+        System.getProperty("memory.budget.bytes", "0"));
+    bindConstant().annotatedWith(Names.named("memory.policy")).to(
+        System.getProperty("memory.policy", "reject"));
+    bindConstant().annotatedWith(Names.named("memory.block.timeout")).to(
+        System.getProperty("memory.block.timeout", "10000"));
+
+    /**
+     * How many upstream feeds a {@link GtfsRealtimeAggregator} polls at once.
+     * Zero gives each upstream its own thread.
+     */
+    bindConstant().annotatedWith(Names.named("aggregator.fetch.threads")).to(
+        System.getProperty("aggregator.fetch.threads", "0"));
+
+    /**
+     * The thresholds of the {@link GtfsRealtimeDeadBandFilter}, when enabled:
+     * the movement in meters and turn in degrees below which a vehicle
+     * position update is dropped, and the age in milliseconds after which an
+     * update is forwarded regardless.
+     */
+    bindConstant().annotatedWith(Names.named("deadband.distance.threshold")).to(
+        System.getProperty("deadband.distance.threshold", "10"));
+    bindConstant().annotatedWith(Names.named("deadband.bearing.threshold")).to(
+        System.getProperty("deadband.bearing.threshold", "15"));
+    bindConstant().annotatedWith(Names.named("deadband.max.age")).to(
+        System.getProperty("deadband.max.age", "60000"));
 
     String expire = System.getProperty("cache.expire.secs", "0");
     bindConstant().annotatedWith(Names.named("cache.expire.secs")).to(expire);
+
+    /**
+     * How each exporter holds its entities: "object" (the default) keeps
+     * FeedEntity objects, while "encoded" and "off_heap" keep only their
+     * encoded bytes, on and off the heap respectively.
+     */
+    String storeMode = System.getProperty("store.mode", "object");
+    bindConstant().annotatedWith(Names.named("store.mode")).to(storeMode);
+  }
+
+  private static ScheduledExecutorService createScheduledExecutor(
+      String nameFormat, String threads) {
+    ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(
+        nameFormat).build();
+    return Executors.newScheduledThreadPool(
+        Math.max(1, Integer.parseInt(threads)), threadFactory);
+  }
+
+  private static ForkJoinPool createForkJoinPool(final String namePrefix,
+      String threads) {
+    ForkJoinWorkerThreadFactory threadFactory = new ForkJoinWorkerThreadFactory() {
+
+      private final AtomicInteger _index = new AtomicInteger();
+
+      @Override
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName(namePrefix + _index.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    return new ForkJoinPool(Math.max(1, Integer.parseInt(threads)),
+        threadFactory, null, false);
+  }
+
+  private static Executor createListenerExecutor(String threads) {
+    if (threads.equals("virtual")) {
+      Executor executor = createVirtualThreadExecutor("gtfs-realtime-listener-");
+      if (executor != null) {
+        return executor;
+      }
+      _log.warn("virtual threads are not supported by this runtime, using a cached thread pool for listener delivery");
+      return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat(
+          "gtfs-realtime-listener-%d").build());
+    }
+    int count = Integer.parseInt(threads);
+    if (count <= 0) {
+      return MoreExecutors.directExecutor();
+    }
+    return Executors.newFixedThreadPool(count,
+        new ThreadFactoryBuilder().setNameFormat("gtfs-realtime-listener-%d").build());
+  }
+
+  /**
+   * Virtual threads are only available on newer runtimes, so we look them up
+   * reflectively.
+   * 
+   * @return an executor that starts a new named virtual thread for each task,
+   *         or null if virtual threads are not supported
+   */
+  private static Executor createVirtualThreadExecutor(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      builder = builderType.getMethod("name", String.class, long.class).invoke(
+          builder, namePrefix, 0L);
+      ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod(
+          "factory").invoke(builder);
+      return (Executor) Executors.class.getMethod("newThreadPerTaskExecutor",
+          ThreadFactory.class).invoke(null, threadFactory);
+    } catch (ReflectiveOperationException ex) {
+      return null;
+    }
   }
 
   /**
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * A registry of named exporters, created and removed at runtime, for hosting
+ * many feeds (eg. one per agency) in a single process. Pair it with a
+ * {@link GtfsRealtimeRegistryServlet} to serve every registered feed from one
+ * endpoint.
+ * 
+ * Each exporter has its own entity store, but all of them share the listener,
+ * maintenance and file-writer executors and the snapshot encoding pool, so
+ * adding a feed doesn't add threads. New exporters are configured from the
+ * same constants as the singleton exporters bound by
+ * {@link GtfsRealtimeExporterModule}.
+ * 
+ * The encoded snapshot buffers are not shared. Each exporter caches its own
+ * encoded entities, and views of them stay in use by client writes that may
+ * outlive the next update, so a pooled buffer could only be reused once every
+ * such view is gone, which would take reference counting on every send. An
+ * exporter's buffers are only as large as its own feed, and are rebuilt only
+ * when that feed changes.
+ * 
+ * @author agent
+ */
+@Singleton
+public class GtfsRealtimeExporterRegistry {
+
+  private final ConcurrentMap<String, Registration> _exporters = new ConcurrentHashMap<String, Registration>();
+
+  private Executor _listenerExecutor;
+
+  private ScheduledExecutorService _expiryExecutor;
+
+  private ScheduledExecutorService _fileExecutor;
+
+  private ForkJoinPool _encoderPool;
+
+  private int _cacheExpireSecs = 0;
+
+  private GtfsRealtimeEntityStore.Mode _storeMode = GtfsRealtimeEntityStore.Mode.OBJECT;
+
+  private int _incrementalHeartbeatInterval = 60;
+
+  private int _parallelEncodingThreshold = 10000;
+
+  private long _snapshotRebuildInterval = 0;
+
+  private int _resumeWindow = 1000;
+
+  private int _historyRetentionSecs = 0;
+
+  private int _historyMaxVersions = 10000;
+
+  private GtfsRealtimeLatencyTracer _latencyTracer;
+
+  private long _memoryBudget = 0;
+
+  private GtfsRealtimeExporterImpl.MemoryPolicy _memoryPolicy = GtfsRealtimeExporterImpl.MemoryPolicy.REJECT;
+
+  private long _memoryBlockTimeout = 10000;
+
+  @Inject
+  public void setListenerExecutor(@Named(GtfsRealtimeExporterModule.NAME_LISTENER_EXECUTOR)
+  Executor listenerExecutor) {
+    _listenerExecutor = listenerExecutor;
+  }
+
+  @Inject
+  public void setExpiryExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXPIRY_EXECUTOR)
+  ScheduledExecutorService expiryExecutor) {
+    _expiryExecutor = expiryExecutor;
+  }
+
+  @Inject
+  public void setFileExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXECUTOR)
+  ScheduledExecutorService fileExecutor) {
+    _fileExecutor = fileExecutor;
+  }
+
+  @Inject
+  public void setEncoderPool(@Named(GtfsRealtimeExporterModule.NAME_ENCODER_POOL)
+  ForkJoinPool encoderPool) {
+    _encoderPool = encoderPool;
+  }
+
+  @Inject
+  public void setCacheExpireSecs(@Named("cache.expire.secs")
+  String cacheExpireSecs) {
+    _cacheExpireSecs = Integer.parseInt(cacheExpireSecs);
+  }
+
+  @Inject
+  public void setStoreMode(@Named("store.mode") String storeMode) {
+    _storeMode = GtfsRealtimeEntityStore.Mode.valueOf(storeMode.toUpperCase(Locale.ENGLISH));
+  }
+
+  @Inject
+  public void setIncrementalHeartbeatInterval(@Named("incremental.heartbeat.interval")
+  String incrementalHeartbeatInterval) {
+    _incrementalHeartbeatInterval = Integer.parseInt(incrementalHeartbeatInterval);
+  }
+
+  @Inject
+  public void setParallelEncodingThreshold(@Named("encoder.parallel.threshold")
+  String parallelEncodingThreshold) {
+    _parallelEncodingThreshold = Integer.parseInt(parallelEncodingThreshold);
+  }
+
+  @Inject
+  public void setSnapshotRebuildInterval(@Named("snapshot.rebuild.interval")
+  String snapshotRebuildInterval) {
+    _snapshotRebuildInterval = Long.parseLong(snapshotRebuildInterval);
+  }
+
+  @Inject
+  public void setResumeWindow(@Named("incremental.resume.window")
+  String resumeWindow) {
+    _resumeWindow = Integer.parseInt(resumeWindow);
+  }
+
+  @Inject
+  public void setHistoryRetentionSecs(@Named("history.retention.secs")
+  String historyRetentionSecs) {
+    _historyRetentionSecs = Integer.parseInt(historyRetentionSecs);
+  }
+
+  @Inject
+  public void setHistoryMaxVersions(@Named("history.max.versions")
+  String historyMaxVersions) {
+    _historyMaxVersions = Integer.parseInt(historyMaxVersions);
+  }
+
+  @Inject
+  public void setMemoryBudget(@Named("memory.budget.bytes")
+  String memoryBudget) {
+    _memoryBudget = Long.parseLong(memoryBudget);
+  }
+
+  @Inject
+  public void setMemoryPolicy(@Named("memory.policy") String memoryPolicy) {
+    _memoryPolicy = GtfsRealtimeExporterImpl.MemoryPolicy.valueOf(memoryPolicy.toUpperCase(Locale.ENGLISH));
+  }
+
+  @Inject
+  public void setMemoryBlockTimeout(@Named("memory.block.timeout")
+  String memoryBlockTimeout) {
+    _memoryBlockTimeout = Long.parseLong(memoryBlockTimeout);
+  }
+
+  @Inject
+  public void setLatencyTracer(GtfsRealtimeLatencyTracer latencyTracer) {
+    _latencyTracer = latencyTracer;
+  }
+
+  /**
+   * Creates and starts a new exporter.
+   * 
+   * @param name the name of the feed, which also identifies it in request
+   *          paths, so it can't contain a '/'
+   * @return the new exporter
+   * @throws IllegalArgumentException if the name is invalid or already taken
+   */
+  public GtfsRealtimeExporter createExporter(String name) {
+    if (name == null || name.isEmpty() || name.indexOf('/') >= 0) {
+      throw new IllegalArgumentException("invalid exporter name: " + name);
+    }
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl(
+        _cacheExpireSecs, _storeMode);
+    if (_listenerExecutor != null) {
+      exporter.setListenerExecutor(_listenerExecutor);
+    }
+    exporter.setExpiryExecutor(_expiryExecutor);
+    exporter.setEncoderPool(_encoderPool);
+    exporter.setIncrementalHeartbeatInterval(_incrementalHeartbeatInterval);
+    exporter.setParallelEncodingThreshold(_parallelEncodingThreshold);
+    exporter.setSnapshotRebuildInterval(_snapshotRebuildInterval);
+    exporter.setResumeWindow(_resumeWindow);
+    exporter.setHistoryRetention(_historyRetentionSecs);
+    exporter.setHistoryMaxVersions(_historyMaxVersions);
+    exporter.setLatencyTracer(_latencyTracer);
+    exporter.setMemoryBudget(_memoryBudget);
+    exporter.setMemoryPolicy(_memoryPolicy);
+    exporter.setMemoryBlockTimeout(_memoryBlockTimeout);
+
+    Registration registration = new Registration(exporter);
+    if (_exporters.putIfAbsent(name, registration) != null) {
+      throw new IllegalArgumentException("duplicate exporter name: " + name);
+    }
+    exporter.start();
+    return exporter;
+  }
+
+  /**
+   * Lookups are lock-free, so this is cheap enough to call per request.
+   * 
+   * @param name the name of the feed
+   * @return the exporter with the specified name, or null if there is none
+   */
+  public GtfsRealtimeExporter getExporter(String name) {
+    Registration registration = _exporters.get(name);
+    return registration != null ? registration.getExporter() : null;
+  }
+
+  /**
+   * @param name the name of the feed
+   * @return the approximate memory held by the named exporter's entities, in
+   *         bytes, or -1 if there is no such exporter
+   */
+  public long getMemorySize(String name) {
+    Registration registration = _exporters.get(name);
+    return registration != null ? registration.getMemorySize() : -1;
+  }
+
+  /**
+   * @return the names of all registered exporters
+   */
+  public Set<String> getExporterNames() {
+    return _exporters.keySet();
+  }
+
+  /**
+   * Creates a file writer for the named exporter, using the shared file-writer
+   * executor. The writer still needs a path, and must then be started. It is
+   * stopped along with its exporter.
+   * 
+   * @param name the name of the feed
+   * @return the new file writer
+   * @throws IllegalArgumentException if there is no such exporter
+   */
+  public GtfsRealtimeFileWriter createFileWriter(String name) {
+    Registration registration = _exporters.get(name);
+    if (registration == null) {
+      throw new IllegalArgumentException("unknown exporter name: " + name);
+    }
+    GtfsRealtimeFileWriter writer = new GtfsRealtimeFileWriter();
+    writer.setSource(registration.getExporter());
+    writer.setExecutor(_fileExecutor);
+    registration.addFileWriter(writer);
+    return writer;
+  }
+
+  /**
+   * Stops and removes the named exporter, along with its file writers. Any
+   * WebSocket clients stay connected, but receive no further updates.
+   * 
+   * @param name the name of the feed
+   * @return true if there was such an exporter
+   */
+  public boolean removeExporter(String name) {
+    Registration registration = _exporters.remove(name);
+    if (registration == null) {
+      return false;
+    }
+    registration.stop();
+    return true;
+  }
+
+  @PreDestroy
+  public void stop() {
+    for (String name : new ArrayList<String>(_exporters.keySet())) {
+      removeExporter(name);
+    }
+  }
+
+  private static class Registration {
+
+    private final GtfsRealtimeExporterImpl _exporter;
+
+    private final List<GtfsRealtimeFileWriter> _fileWriters = new ArrayList<GtfsRealtimeFileWriter>();
+
+    public Registration(GtfsRealtimeExporterImpl exporter) {
+      _exporter = exporter;
+    }
+
+    public GtfsRealtimeExporter getExporter() {
+      return _exporter;
+    }
+
+    public long getMemorySize() {
+      return _exporter.getMemorySize();
+    }
+
+    public synchronized void addFileWriter(GtfsRealtimeFileWriter writer) {
+      _fileWriters.add(writer);
+    }
+
+    public synchronized void stop() {
+      for (GtfsRealtimeFileWriter writer : _fileWriters) {
+        writer.stop();
+      }
+      _fileWriters.clear();
+      _exporter.stop();
+    }
+  }
+}
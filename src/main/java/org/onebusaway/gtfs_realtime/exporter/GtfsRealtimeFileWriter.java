@@ -20,6 +20,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -33,10 +37,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.Message;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
 
 /**
- * Provides functionality for periodically writing a GTFS-realtime feed to an
- * output file.
+ * Provides functionality for writing a GTFS-realtime feed to an output file
+ * whenever the feed changes.
+ * 
+ * Rather than rewriting the file on a fixed period, the writer listens for
+ * updates from its {@link GtfsRealtimeSource} and writes the file a short
+ * debounce delay after a change is published. Bursts of updates are coalesced
+ * into a single write, and consecutive writes are spaced by at least the
+ * minimum interval, capping disk write frequency under load.
+ * 
+ * In memory-mapped mode, the file is instead a double-buffered region that
+ * consumers on the same host can poll through a
+ * {@link GtfsRealtimeMappedFileReader} without any copies or system calls.
  * 
  * @author bdferris
  * 
@@ -51,10 +67,35 @@ public class GtfsRealtimeFileWriter {
 
   private File _path;
 
-  private int _period = 5;
+  private long _debounce = 100;
+
+  private long _minimumInterval = 1000;
+
+  private final ListenerImpl _listener = new ListenerImpl();
 
   private ScheduledFuture<?> _task;
 
+  private boolean _writePending = false;
+
+  private long _lastWriteTime = 0;
+
+  private boolean _memoryMapped = false;
+
+  private final Object _mappedLock = new Object();
+
+  private RandomAccessFile _mappedFile;
+
+  private MappedByteBuffer _mapped;
+
+  private long _sequence;
+
+  /**
+   * The trace of the first traced update since the last write, which the next
+   * write is reported to. We hold a delivery on the trace until then, so it
+   * isn't completed before the file is written.
+   */
+  private GtfsRealtimeTrace _pendingTrace;
+
   public void setSource(GtfsRealtimeSource source) {
     _source = source;
   }
@@ -72,43 +113,268 @@ public class GtfsRealtimeFileWriter {
     _path = path;
   }
 
+  public long getDebounce() {
+    return _debounce;
+  }
+
+  /**
+   * @param debounceInMilliseconds how long to wait after a feed update before
+   *          writing the file, such that a burst of updates results in a single
+   *          write
+   */
+  public void setDebounce(long debounceInMilliseconds) {
+    _debounce = debounceInMilliseconds;
+  }
+
+  public long getMinimumInterval() {
+    return _minimumInterval;
+  }
+
+  /**
+   * @param minimumIntervalInMilliseconds the minimum time between consecutive
+   *          writes of the file
+   */
+  public void setMinimumInterval(long minimumIntervalInMilliseconds) {
+    _minimumInterval = minimumIntervalInMilliseconds;
+  }
+
+  public boolean isMemoryMapped() {
+    return _memoryMapped;
+  }
+
+  /**
+   * @param memoryMapped if true, the feed is published into a memory-mapped,
+   *          double-buffered file for {@link GtfsRealtimeMappedFileReader}
+   *          rather than written as a plain feed file
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    _memoryMapped = memoryMapped;
+  }
+
+  /**
+   * @deprecated the file is now written when the feed changes; see
+   *             {@link #getMinimumInterval()}
+   */
+  @Deprecated
   public int getPeriod() {
-    return _period;
+    return (int) TimeUnit.MILLISECONDS.toSeconds(_minimumInterval);
   }
 
+  /**
+   * @deprecated the file is now written when the feed changes; this is
+   *             equivalent to {@link #setMinimumInterval(long)}
+   */
+  @Deprecated
   public void setPeriod(int timeInSeconds) {
-    _period = timeInSeconds;
+    _minimumInterval = TimeUnit.SECONDS.toMillis(timeInSeconds);
   }
 
   @PostConstruct
   public void start() {
-    _task = _executor.scheduleAtFixedRate(new TaskEntryPoint(), 0, _period,
-        TimeUnit.SECONDS);
+    if (_memoryMapped) {
+      try {
+        openMappedFile();
+      } catch (IOException ex) {
+        throw new IllegalStateException("error opening mapped file: " + _path,
+            ex);
+      }
+    }
+    /**
+     * The source will immediately hand us the current feed, which schedules
+     * our initial write.
+     */
+    _source.addIncrementalListener(_listener);
   }
 
   @PreDestroy
   public void stop() {
-    if (_task != null) {
-      _task.cancel(false);
-      _task = null;
+    _source.removeIncrementalListener(_listener);
+    synchronized (this) {
+      if (_task != null) {
+        _task.cancel(false);
+        _task = null;
+      }
+      _writePending = false;
+      if (_pendingTrace != null) {
+        _pendingTrace.deliveryCompleted();
+        _pendingTrace = null;
+      }
+    }
+    synchronized (_mappedLock) {
+      if (_mappedFile != null) {
+        try {
+          _mappedFile.close();
+        } catch (IOException ex) {
+          _log.warn("error closing mapped file: " + _path, ex);
+        }
+        _mappedFile = null;
+        _mapped = null;
+      }
     }
   }
 
   protected void writeMessageToFile() throws IOException {
-    Message message = _source.getFeed();
+    if (_memoryMapped) {
+      ByteBuffer[] encoded;
+      if (_source instanceof GtfsRealtimeEncodedSource) {
+        encoded = ((GtfsRealtimeEncodedSource) _source).getEncodedFeedBuffers();
+      } else {
+        encoded = new ByteBuffer[] {ByteBuffer.wrap(_source.getFeed().toByteArray())};
+      }
+      writeMappedFile(encoded);
+      return;
+    }
     OutputStream out = new BufferedOutputStream(new FileOutputStream(_path));
-    message.writeTo(out);
-    out.close();
+    try {
+      if (_source instanceof GtfsRealtimeEncodedSource) {
+        // Stream the entities to disk rather than building the full message.
+        ((GtfsRealtimeEncodedSource) _source).writeFeed(out);
+      } else {
+        Message message = _source.getFeed();
+        message.writeTo(out);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void openMappedFile() throws IOException {
+    synchronized (_mappedLock) {
+      _mappedFile = new RandomAccessFile(_path, "rw");
+      /**
+       * Reuse an existing file rather than truncating it, since truncating a
+       * file that readers have mapped would crash them. Carrying the sequence
+       * over also means readers see our first write as a new version.
+       */
+      if (_mappedFile.length() >= GtfsRealtimeMappedFileReader.HEADER_SIZE) {
+        map(_mappedFile.length());
+        if (_mapped.getInt(GtfsRealtimeMappedFileReader.MAGIC_OFFSET) == GtfsRealtimeMappedFileReader.MAGIC
+            && _mapped.getInt(GtfsRealtimeMappedFileReader.FORMAT_VERSION_OFFSET) == GtfsRealtimeMappedFileReader.FORMAT_VERSION) {
+          _sequence = _mapped.getLong(GtfsRealtimeMappedFileReader.SEQUENCE_OFFSET);
+          return;
+        }
+      }
+      _mappedFile.setLength(GtfsRealtimeMappedFileReader.HEADER_SIZE);
+      map(GtfsRealtimeMappedFileReader.HEADER_SIZE);
+      _mapped.putInt(GtfsRealtimeMappedFileReader.MAGIC_OFFSET,
+          GtfsRealtimeMappedFileReader.MAGIC);
+      _mapped.putInt(GtfsRealtimeMappedFileReader.FORMAT_VERSION_OFFSET,
+          GtfsRealtimeMappedFileReader.FORMAT_VERSION);
+      _sequence = 0;
+      _mapped.putLong(GtfsRealtimeMappedFileReader.SEQUENCE_OFFSET, _sequence);
+    }
+  }
+
+  /**
+   * Fills the slot that isn't published, records its checksum, then publishes
+   * it by incrementing the sequence. A slot that is too small is moved to a new
+   * region at the end of the file, so that nothing a reader may be looking at
+   * ever moves.
+   */
+  private void writeMappedFile(ByteBuffer[] encoded) throws IOException {
+    synchronized (_mappedLock) {
+      if (_mappedFile == null) {
+        return;
+      }
+      int slot = GtfsRealtimeMappedFileReader.SLOT_OFFSET
+          + (int) ((_sequence + 1) & 1)
+          * GtfsRealtimeMappedFileReader.SLOT_HEADER_SIZE;
+      long offset = _mapped.getLong(slot);
+      long capacity = _mapped.getLong(slot + 8);
+      int length = 0;
+      for (ByteBuffer buffer : encoded) {
+        length += buffer.remaining();
+      }
+      if (length > capacity) {
+        offset = _mappedFile.length();
+        capacity = length + length / 2;
+        if (offset + capacity > Integer.MAX_VALUE) {
+          throw new IOException("feed too large to map: " + length + " bytes");
+        }
+        _mappedFile.setLength(offset + capacity);
+        map(offset + capacity);
+        _mapped.putLong(slot, offset);
+        _mapped.putLong(slot + 8, capacity);
+      }
+      _mapped.putLong(slot + 16, length);
+      ByteBuffer target = _mapped.duplicate();
+      target.position((int) offset);
+      for (ByteBuffer buffer : encoded) {
+        target.put(buffer);
+      }
+      /**
+       * Readers check what they copied out of the slot against its checksum,
+       * so they never accept a slot that was being overwritten, whatever order
+       * our stores become visible in.
+       */
+      target.flip();
+      target.position((int) offset);
+      _mapped.putLong(slot + 24, GtfsRealtimeMappedFileReader.checksum(target));
+      _sequence++;
+      _mapped.putLong(GtfsRealtimeMappedFileReader.SEQUENCE_OFFSET, _sequence);
+    }
+  }
+
+  private void map(long size) throws IOException {
+    _mapped = _mappedFile.getChannel().map(MapMode.READ_WRITE, 0, size);
+  }
+
+  private synchronized void scheduleWrite() {
+    if (_pendingTrace == null) {
+      _pendingTrace = GtfsRealtimeLatencyTracer.getCurrentTrace();
+      if (_pendingTrace != null) {
+        _pendingTrace.deliveryHeld();
+      }
+    }
+    if (_writePending) {
+      return;
+    }
+    long delay = Math.max(_debounce, _lastWriteTime + _minimumInterval
+        - System.currentTimeMillis());
+    _writePending = true;
+    _task = _executor.schedule(new TaskEntryPoint(), delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private class ListenerImpl implements GtfsRealtimeIncrementalListener {
+
+    @Override
+    public void handleFeed(FeedMessage feed) {
+      // An empty differential, eg. a heartbeat, changes nothing on disk.
+      if (feed.getHeader().getIncrementality() == Incrementality.DIFFERENTIAL
+          && feed.getEntityCount() == 0) {
+        return;
+      }
+      scheduleWrite();
+    }
   }
 
   private class TaskEntryPoint implements Runnable {
 
     @Override
     public void run() {
+      GtfsRealtimeTrace trace = null;
+      synchronized (GtfsRealtimeFileWriter.this) {
+        if (!_writePending) {
+          return;
+        }
+        _writePending = false;
+        _task = null;
+        _lastWriteTime = System.currentTimeMillis();
+        trace = _pendingTrace;
+        _pendingTrace = null;
+      }
+      long startNanos = System.nanoTime();
       try {
         writeMessageToFile();
       } catch (IOException ex) {
         _log.error("Error writing message to output file: " + _path, ex);
+      } finally {
+        if (trace != null) {
+          trace.record(GtfsRealtimeLatencyTracer.Stage.FILE_WRITE,
+              System.nanoTime() - startNanos);
+          trace.deliveryCompleted();
+        }
       }
     }
   }
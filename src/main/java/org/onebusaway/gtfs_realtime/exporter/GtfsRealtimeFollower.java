@@ -0,0 +1,387 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeExtensions;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+/**
+ * Replicates the state of a leader exporter into a local
+ * {@link GtfsRealtimeSink}, such that a single node can ingest data from
+ * upstream while any number of follower nodes serve it.
+ *
+ * The follower consumes the leader's full-plus-differential stream, either
+ * over the WebSocket endpoint of a {@link GtfsRealtimeServlet} or directly from
+ * an in-process {@link GtfsRealtimeSource}. The leader's incremental index is
+ * carried over to the local sink, so clients see the same index sequence from
+ * every node. If a differential arrives out of sequence, or the connection is
+ * lost, the follower re-subscribes to the leader. Where the leader is a
+ * {@link GtfsRealtimeResumableSource}, the follower resumes from the last
+ * index it applied and is only sent the differentials it missed; otherwise it
+ * receives a fresh full dataset.
+ *
+ * Since the local sink publishes the leader's index sequence, it must not
+ * publish differentials of its own. In particular, a local exporter must not
+ * expire entities (its {@code cache.expire.secs} must be 0): entities expire
+ * on the leader, and the follower replicates the resulting deletions.
+ *
+ * @author agent
+ */
+public class GtfsRealtimeFollower implements GtfsRealtimeIncrementalListener {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeFollower.class);
+
+  private final ExtensionRegistry _extensionRegistry = ExtensionRegistry.newInstance();
+
+  private GtfsRealtimeSink _sink;
+
+  private GtfsRealtimeSource _leader;
+
+  private URI _leaderUri;
+
+  private ScheduledExecutorService _executor;
+
+  private long _reconnectDelay = 5000;
+
+  private long _maxMessageSize = 64 * 1024 * 1024;
+
+  private WebSocketClient _client;
+
+  private Session _session;
+
+  private boolean _running = false;
+
+  /**
+   * The incremental index of the last update applied to the sink, or -1 if we
+   * are waiting for a full dataset.
+   */
+  private long _incrementalIndex = -1;
+
+  /**
+   * The leader's stream, in which {@link #_incrementalIndex} is a position, or
+   * null if the leader doesn't support resuming.
+   */
+  private String _streamId;
+
+  public GtfsRealtimeFollower() {
+    GtfsRealtimeExtensions.registerExtensions(_extensionRegistry);
+  }
+
+  /**
+   * @param sink the local sink that receives the replicated feed, which must
+   *          not expire entities locally
+   */
+  public void setSink(GtfsRealtimeSink sink) {
+    _sink = sink;
+  }
+
+  /**
+   * Follow an exporter in the same process.
+   *
+   * @param leader the leader source
+   */
+  public void setLeader(GtfsRealtimeSource leader) {
+    _leader = leader;
+  }
+
+  /**
+   * Follow a remote exporter over its WebSocket endpoint.
+   *
+   * @param leaderUri the leader's WebSocket uri (eg.
+   *          ws://leader:8080/trip-updates)
+   */
+  public void setLeaderUri(URI leaderUri) {
+    _leaderUri = leaderUri;
+  }
+
+  @Inject
+  public void setExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXPIRY_EXECUTOR)
+  ScheduledExecutorService executor) {
+    _executor = executor;
+  }
+
+  /**
+   * @param reconnectDelayInMilliseconds how long to wait before reconnecting
+   *          to a remote leader after the connection is lost
+   */
+  public void setReconnectDelay(long reconnectDelayInMilliseconds) {
+    _reconnectDelay = reconnectDelayInMilliseconds;
+  }
+
+  /**
+   * @param maxMessageSize the largest message, in bytes, we will accept from a
+   *          remote leader. Must be large enough to hold a full dataset.
+   */
+  public void setMaxMessageSize(long maxMessageSize) {
+    _maxMessageSize = maxMessageSize;
+  }
+
+  /**
+   * @return the incremental index of the last update applied to the sink, or
+   *         -1 if we are waiting for a full dataset
+   */
+  public synchronized long getIncrementalIndex() {
+    return _incrementalIndex;
+  }
+
+  @PostConstruct
+  public void start() throws Exception {
+    if (_sink instanceof GtfsRealtimeExporterImpl
+        && ((GtfsRealtimeExporterImpl) _sink).isExpiring()) {
+      throw new IllegalStateException(
+          "a follower's local exporter must not expire entities itself, as "
+              + "its expiry differentials would advance the leader's "
+              + "incremental index: set cache.expire.secs to 0");
+    }
+    synchronized (this) {
+      _running = true;
+    }
+    if (_leader != null) {
+      subscribe();
+    } else {
+      _client = new WebSocketClient();
+      _client.getPolicy().setMaxMessageSize(_maxMessageSize);
+      _client.start();
+      connect();
+    }
+  }
+
+  @PreDestroy
+  public void stop() throws Exception {
+    synchronized (this) {
+      _running = false;
+    }
+    if (_leader != null) {
+      _leader.removeIncrementalListener(this);
+    }
+    if (_client != null) {
+      _client.stop();
+      _client = null;
+    }
+  }
+
+  /****
+   * {@link GtfsRealtimeIncrementalListener} Interface
+   ****/
+
+  @Override
+  public synchronized void handleFeed(FeedMessage feed) {
+    FeedHeader header = feed.getHeader();
+    long index = header.getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+
+    if (header.getIncrementality() == Incrementality.FULL_DATASET) {
+      FeedHeader.Builder headerDefaults = header.toBuilder();
+      headerDefaults.clearExtension(GtfsRealtimeOneBusAway.obaFeedHeader);
+      _sink.setFeedHeaderDefaults(headerDefaults.build());
+
+      GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+      update.setIncrementalIndex(index);
+      for (FeedEntity entity : feed.getEntityList()) {
+        update.addEntity(entity);
+      }
+      _sink.handleFullUpdate(update);
+      _incrementalIndex = index;
+      return;
+    }
+
+    if (_incrementalIndex < 0 || index <= _incrementalIndex) {
+      /**
+       * Either we're waiting on a full dataset, or this is a repeat of the
+       * current index (eg. a heartbeat) or a differential we've already
+       * applied, left over from a previous subscription.
+       */
+      return;
+    }
+
+    if (index != _incrementalIndex + 1) {
+      _log.warn("gap in leader incremental index: expected="
+          + (_incrementalIndex + 1) + " actual=" + index + ", resyncing");
+      resync();
+      return;
+    }
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (FeedEntity entity : feed.getEntityList()) {
+      if (entity.getIsDeleted()) {
+        update.addDeletedEntity(entity.getId());
+      } else {
+        update.addUpdatedEntity(entity);
+      }
+    }
+    _sink.handleIncrementalUpdate(update);
+    _incrementalIndex = index;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Re-subscribes to the leader, resuming from the last index we applied where
+   * the leader supports it, and otherwise receiving a fresh full dataset.
+   */
+  private void resync() {
+    if (_leader != null) {
+      _leader.removeIncrementalListener(this);
+      subscribe();
+    } else if (_session != null) {
+      // Closing the session triggers a reconnect.
+      try {
+        _session.close();
+      } catch (IOException ex) {
+        _log.warn("error closing connection to leader " + _leaderUri, ex);
+      }
+    }
+  }
+
+  /**
+   * Called with the lock held when resyncing, or from {@link #start()} before
+   * any update can arrive.
+   */
+  private void subscribe() {
+    if (_leader instanceof GtfsRealtimeResumableSource) {
+      GtfsRealtimeResumableSource leader = (GtfsRealtimeResumableSource) _leader;
+      if (_incrementalIndex >= 0 && _streamId != null) {
+        leader.addIncrementalListener(this, _streamId, _incrementalIndex);
+      } else {
+        leader.addIncrementalListener(this);
+      }
+      _streamId = leader.getStreamId();
+    } else {
+      _leader.addIncrementalListener(this);
+    }
+  }
+
+  /**
+   * @return the leader's uri, asking to resume from the last index we applied
+   *         if we can
+   */
+  private synchronized URI getConnectUri() {
+    if (_incrementalIndex < 0 || _streamId == null) {
+      return _leaderUri;
+    }
+    try {
+      String query = "stream=" + URLEncoder.encode(_streamId, "UTF-8")
+          + "&since=" + _incrementalIndex;
+      String uri = _leaderUri.toString();
+      return URI.create(uri + (_leaderUri.getRawQuery() == null ? "?" : "&")
+          + query);
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private void connect() {
+    WebSocketClient client = _client;
+    if (client == null) {
+      return;
+    }
+    try {
+      client.connect(new FollowerSocket(), getConnectUri()).get(
+          _reconnectDelay, TimeUnit.MILLISECONDS);
+    } catch (Exception ex) {
+      _log.warn("error connecting to leader " + _leaderUri, ex);
+      scheduleReconnect();
+    }
+  }
+
+  private synchronized void scheduleReconnect() {
+    if (!_running) {
+      return;
+    }
+    _executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        connect();
+      }
+    }, _reconnectDelay, TimeUnit.MILLISECONDS);
+  }
+
+  @WebSocket
+  public class FollowerSocket {
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+      _log.info("connected to leader " + _leaderUri);
+      String streamId = session.getUpgradeResponse().getHeader(
+          GtfsRealtimeServlet.STREAM_ID_HEADER);
+      synchronized (GtfsRealtimeFollower.this) {
+        _session = session;
+        /**
+         * If the leader has started a new stream, it will send us a full
+         * dataset, and our index means nothing until then.
+         */
+        if (streamId == null || !streamId.equals(_streamId)) {
+          _incrementalIndex = -1;
+        }
+        _streamId = streamId;
+      }
+    }
+
+    @OnWebSocketMessage
+    public void onMessage(byte[] data, int offset, int length) {
+      try {
+        FeedMessage feed = FeedMessage.newBuilder().mergeFrom(data, offset,
+            length, _extensionRegistry).build();
+        handleFeed(feed);
+      } catch (InvalidProtocolBufferException ex) {
+        _log.warn("error parsing message from leader " + _leaderUri, ex);
+      }
+    }
+
+    @OnWebSocketError
+    public void onError(Throwable cause) {
+      _log.warn("error on connection to leader " + _leaderUri, cause);
+    }
+
+    @OnWebSocketClose
+    public void onClose(int closeCode, String message) {
+      _log.info("connection to leader " + _leaderUri + " closed: " + closeCode);
+      synchronized (GtfsRealtimeFollower.this) {
+        _session = null;
+      }
+      scheduleReconnect();
+    }
+  }
+}
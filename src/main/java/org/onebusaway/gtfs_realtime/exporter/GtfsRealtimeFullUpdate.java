@@ -32,6 +32,8 @@ public class GtfsRealtimeFullUpdate {
 
   private List<FeedEntity> entities = new ArrayList<FeedEntity>();
 
+  private long incrementalIndex = -1;
+
   public void addEntity(FeedEntity entity) {
     entities.add(entity);
   }
@@ -39,4 +41,20 @@ public class GtfsRealtimeFullUpdate {
   public List<FeedEntity> getEntities() {
     return entities;
   }
+
+  public long getIncrementalIndex() {
+    return incrementalIndex;
+  }
+
+  /**
+   * By default, the exporter assigns the next incremental index in sequence to
+   * each update. Restoring or replicating a feed from another source may
+   * instead specify the index that the full dataset corresponds to, such that
+   * subsequent incremental updates continue from that index.
+   * 
+   * @param incrementalIndex the incremental index of the full dataset
+   */
+  public void setIncrementalIndex(long incrementalIndex) {
+    this.incrementalIndex = incrementalIndex;
+  }
 }
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * A {@link GtfsRealtimeSource} that retains past versions of its full
+ * dataset, such that the feed can be viewed as it was at an earlier time.
+ * 
+ * @author agent
+ */
+public interface GtfsRealtimeHistorySource extends GtfsRealtimeSource {
+
+  /**
+   * @param time the time, in milliseconds, at which to view the feed
+   * @return the full-dataset view of the feed as it was at the specified time,
+   *         or null if that time is outside the retained history
+   */
+  public FeedMessage getFeedAt(long time);
+}
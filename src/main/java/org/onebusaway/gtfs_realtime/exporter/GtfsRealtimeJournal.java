@@ -0,0 +1,563 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeExtensions;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+/**
+ * Persists the state of a {@link GtfsRealtimeExporter} to disk so that the
+ * feed can be restored after a restart, rather than serving an empty feed until
+ * the next full update arrives from upstream.
+ *
+ * State is kept as a compacted snapshot of the full dataset plus an
+ * append-only, memory-mapped journal of the updates published since that
+ * snapshot was taken. Full datasets are journaled like differentials, and
+ * empty heartbeat differentials are skipped, so publishing never waits on a
+ * snapshot. Instead, the journal is compacted into a new snapshot on the
+ * executor, periodically and whenever it gets half full; only when it fills up
+ * before that can happen is a snapshot written on the publishing thread. On
+ * startup, the snapshot and journal are replayed into the exporter, preserving
+ * the incremental index and dropping any entities that expired while we were
+ * down.
+ *
+ * @author agent
+ */
+public class GtfsRealtimeJournal implements GtfsRealtimeIncrementalListener {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeJournal.class);
+
+  private static final int SNAPSHOT_MAGIC = 0x4752534e;
+
+  private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+  private static final String JOURNAL_FILE = "journal.bin";
+
+  /**
+   * Each journal record consists of a length prefix, write time and
+   * incremental index, followed by the encoded {@link FeedMessage}.
+   */
+  private static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+
+  private final ExtensionRegistry _extensionRegistry = ExtensionRegistry.newInstance();
+
+  private GtfsRealtimeExporter _exporter;
+
+  private File _directory;
+
+  private int _journalSize = 16 * 1024 * 1024;
+
+  private int _cacheExpireSecs = 0;
+
+  private ScheduledExecutorService _executor;
+
+  private long _snapshotInterval = TimeUnit.MINUTES.toMillis(1);
+
+  private ScheduledFuture<?> _task;
+
+  private FileChannel _channel;
+
+  private MappedByteBuffer _journal;
+
+  /**
+   * The incremental index of the current snapshot file, or -1 if a snapshot
+   * must be written before anything is journaled.
+   */
+  private long _snapshotIndex = -1;
+
+  private boolean _compactionPending = false;
+
+  /**
+   * Write time of each entity currently in the feed, used to expire restored
+   * entities on the same schedule as the exporter's entity cache.
+   */
+  private Map<String, Long> _writeTimes = new HashMap<String, Long>();
+
+  /**
+   * Write times recovered on startup, to be retained when the restored dataset
+   * is handed back to us as our first full update.
+   */
+  private Map<String, Long> _restoredWriteTimes = null;
+
+  public GtfsRealtimeJournal() {
+    GtfsRealtimeExtensions.registerExtensions(_extensionRegistry);
+  }
+
+  public void setExporter(GtfsRealtimeExporter exporter) {
+    _exporter = exporter;
+  }
+
+  /**
+   * @param directory the directory where the snapshot and journal files are
+   *          kept
+   */
+  public void setDirectory(File directory) {
+    _directory = directory;
+  }
+
+  /**
+   * @param journalSize the size, in bytes, of the memory-mapped journal file.
+   *          A new snapshot is written whenever the journal fills up.
+   */
+  public void setJournalSize(int journalSize) {
+    _journalSize = journalSize;
+  }
+
+  @Inject
+  public void setExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXECUTOR)
+  ScheduledExecutorService executor) {
+    _executor = executor;
+  }
+
+  /**
+   * @param snapshotIntervalInMilliseconds how often the journal is compacted
+   *          into a new snapshot, or zero to only compact once it is half full
+   */
+  public void setSnapshotInterval(long snapshotIntervalInMilliseconds) {
+    _snapshotInterval = snapshotIntervalInMilliseconds;
+  }
+
+  @Inject
+  public void setCacheExpireSecs(@Named("cache.expire.secs")
+  String cacheExpireSecs) {
+    _cacheExpireSecs = Integer.parseInt(cacheExpireSecs);
+  }
+
+  public void setCacheExpireSecs(int cacheExpireSecs) {
+    _cacheExpireSecs = cacheExpireSecs;
+  }
+
+  @PostConstruct
+  public void start() throws IOException {
+    if (!_directory.exists() && !_directory.mkdirs()) {
+      throw new IOException("unable to create journal directory: "
+          + _directory);
+    }
+    restore();
+    RandomAccessFile file = new RandomAccessFile(new File(_directory,
+        JOURNAL_FILE), "rw");
+    file.setLength(_journalSize);
+    _channel = file.getChannel();
+    _journal = _channel.map(MapMode.READ_WRITE, 0, _journalSize);
+    /**
+     * Registering as a listener immediately hands us the current full dataset,
+     * which becomes our new snapshot.
+     */
+    _exporter.addIncrementalListener(this);
+    if (_snapshotInterval > 0 && _executor != null) {
+      _task = _executor.scheduleWithFixedDelay(new CompactionTask(),
+          _snapshotInterval, _snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public synchronized void stop() throws IOException {
+    _exporter.removeIncrementalListener(this);
+    if (_task != null) {
+      _task.cancel(false);
+      _task = null;
+    }
+    if (_channel != null) {
+      _journal.force();
+      _channel.close();
+      _channel = null;
+      _journal = null;
+      _snapshotIndex = -1;
+    }
+  }
+
+  /****
+   * {@link GtfsRealtimeIncrementalListener} Interface
+   ****/
+
+  @Override
+  public synchronized void handleFeed(FeedMessage feed) {
+    if (_journal == null) {
+      return;
+    }
+    try {
+      FeedHeader header = feed.getHeader();
+      if (header.getIncrementality() == Incrementality.FULL_DATASET) {
+        if (_snapshotIndex < 0) {
+          /**
+           * The first full dataset we're handed is the restored dataset, if
+           * any, so its entities keep their restored write times.
+           */
+          Map<String, Long> restoredWriteTimes = _restoredWriteTimes;
+          _restoredWriteTimes = null;
+          writeSnapshot(feed, restoredWriteTimes);
+        } else if (!appendRecord(feed)) {
+          writeSnapshot(feed, null);
+        }
+      } else if (feed.getEntityCount() == 0) {
+        // A heartbeat changes nothing worth restoring.
+        return;
+      } else if (!appendRecord(feed)) {
+        writeSnapshot(_exporter.getFeed(), _writeTimes);
+      }
+      if (_journal.position() > _journalSize / 2) {
+        scheduleCompaction();
+      }
+    } catch (IOException ex) {
+      _log.error("error writing to feed journal: " + _directory, ex);
+    }
+  }
+
+  /**
+   * Writes the exporter's current dataset as a new snapshot and drops the
+   * journal records it covers. Only the final swap holds our lock, so
+   * publishing carries on while the snapshot is written.
+   */
+  public void compact() throws IOException {
+    FeedMessage feed = _exporter.getFeed();
+    long index = getIncrementalIndex(feed);
+    Map<String, Long> writeTimes;
+    synchronized (this) {
+      _compactionPending = false;
+      if (_journal == null || index <= _snapshotIndex) {
+        return;
+      }
+      writeTimes = new HashMap<String, Long>(_writeTimes);
+    }
+    File tmpPath = File.createTempFile(SNAPSHOT_FILE, ".tmp", _directory);
+    try {
+      writeSnapshotFile(tmpPath, feed, writeTimes);
+      synchronized (this) {
+        /**
+         * A snapshot written on the publishing thread in the meantime may
+         * already be more recent than ours.
+         */
+        if (_journal == null || index <= _snapshotIndex) {
+          return;
+        }
+        moveSnapshotFile(tmpPath);
+        _snapshotIndex = index;
+        truncateJournal(index);
+      }
+    } finally {
+      tmpPath.delete();
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void restore() throws IOException {
+    Map<String, FeedEntity> entities = new LinkedHashMap<String, FeedEntity>();
+    Map<String, Long> writeTimes = new HashMap<String, Long>();
+    long snapshotIndex = readSnapshot(entities, writeTimes);
+    long index = replayJournal(snapshotIndex, entities, writeTimes);
+    if (index < 0) {
+      return;
+    }
+
+    if (_cacheExpireSecs > 0) {
+      long expiredBefore = System.currentTimeMillis() - _cacheExpireSecs
+          * 1000L;
+      for (Iterator<Map.Entry<String, Long>> it = writeTimes.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<String, Long> entry = it.next();
+        if (entry.getValue() <= expiredBefore) {
+          entities.remove(entry.getKey());
+          it.remove();
+        }
+      }
+    }
+
+    GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+    update.setIncrementalIndex(index);
+    for (FeedEntity entity : entities.values()) {
+      update.addEntity(entity);
+    }
+    _restoredWriteTimes = writeTimes;
+    _exporter.handleFullUpdate(update);
+    _log.info("restored " + entities.size() + " entities at incremental index "
+        + index + " from " + _directory);
+  }
+
+  /**
+   * @return the incremental index of the snapshot, or -1 if no snapshot exists
+   */
+  private long readSnapshot(Map<String, FeedEntity> entities,
+      Map<String, Long> writeTimes) throws IOException {
+    File path = new File(_directory, SNAPSHOT_FILE);
+    if (!path.exists()) {
+      return -1;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(path)));
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        _log.warn("ignoring unrecognized snapshot file: " + path);
+        return -1;
+      }
+      long index = in.readLong();
+      int count = in.readInt();
+      byte[] buffer = new byte[1024];
+      for (int i = 0; i < count; ++i) {
+        long writeTime = in.readLong();
+        int length = in.readInt();
+        if (buffer.length < length) {
+          buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+        FeedEntity entity = FeedEntity.newBuilder().mergeFrom(buffer, 0,
+            length, _extensionRegistry).build();
+        entities.put(entity.getId(), entity);
+        writeTimes.put(entity.getId(), writeTime);
+      }
+      return index;
+    } catch (EOFException ex) {
+      _log.warn("ignoring truncated snapshot file: " + path);
+      entities.clear();
+      writeTimes.clear();
+      return -1;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Applies journal records more recent than the snapshot. Replay stops at the
+   * first empty or torn record.
+   *
+   * @return the incremental index of the restored dataset, or -1 if there was
+   *         nothing to restore
+   */
+  private long replayJournal(long snapshotIndex,
+      Map<String, FeedEntity> entities, Map<String, Long> writeTimes)
+      throws IOException {
+    File path = new File(_directory, JOURNAL_FILE);
+    if (!path.exists()) {
+      return snapshotIndex;
+    }
+    long index = snapshotIndex;
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      MappedByteBuffer journal = channel.map(MapMode.READ_ONLY, 0,
+          channel.size());
+      byte[] buffer = new byte[1024];
+      while (journal.remaining() >= RECORD_HEADER_SIZE) {
+        int length = journal.getInt();
+        long writeTime = journal.getLong();
+        long recordIndex = journal.getLong();
+        if (length <= 0 || length > journal.remaining()) {
+          break;
+        }
+        if (buffer.length < length) {
+          buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        journal.get(buffer, 0, length);
+        if (recordIndex <= snapshotIndex) {
+          continue;
+        }
+        FeedMessage feed = FeedMessage.newBuilder().mergeFrom(buffer, 0,
+            length, _extensionRegistry).build();
+        if (feed.getHeader().getIncrementality() == Incrementality.FULL_DATASET) {
+          entities.clear();
+          writeTimes.clear();
+        }
+        for (FeedEntity entity : feed.getEntityList()) {
+          if (entity.getIsDeleted()) {
+            entities.remove(entity.getId());
+            writeTimes.remove(entity.getId());
+          } else {
+            entities.put(entity.getId(), entity);
+            writeTimes.put(entity.getId(), writeTime);
+          }
+        }
+        index = recordIndex;
+      }
+    } finally {
+      file.close();
+    }
+    return index;
+  }
+
+  /**
+   * @param previousWriteTimes write times to retain for entities in the feed,
+   *          or null if all entities were just written
+   */
+  private void writeSnapshot(FeedMessage feed,
+      Map<String, Long> previousWriteTimes) throws IOException {
+    long now = System.currentTimeMillis();
+    Map<String, Long> writeTimes = new HashMap<String, Long>();
+    for (FeedEntity entity : feed.getEntityList()) {
+      Long writeTime = previousWriteTimes != null
+          ? previousWriteTimes.get(entity.getId()) : null;
+      writeTimes.put(entity.getId(), writeTime != null ? writeTime : now);
+    }
+
+    File tmpPath = new File(_directory, SNAPSHOT_FILE + ".tmp");
+    writeSnapshotFile(tmpPath, feed, writeTimes);
+    moveSnapshotFile(tmpPath);
+
+    _writeTimes = writeTimes;
+    _snapshotIndex = getIncrementalIndex(feed);
+    _journal.clear();
+    _journal.putInt(0, 0);
+  }
+
+  private void writeSnapshotFile(File path, FeedMessage feed,
+      Map<String, Long> writeTimes) throws IOException {
+    long now = System.currentTimeMillis();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(path)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeLong(getIncrementalIndex(feed));
+      out.writeInt(feed.getEntityCount());
+      for (FeedEntity entity : feed.getEntityList()) {
+        Long writeTime = writeTimes.get(entity.getId());
+        byte[] data = entity.toByteArray();
+        out.writeLong(writeTime != null ? writeTime : now);
+        out.writeInt(data.length);
+        out.write(data);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void moveSnapshotFile(File tmpPath) throws IOException {
+    Files.move(tmpPath.toPath(), new File(_directory, SNAPSHOT_FILE).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Drops the journal records up to and including the given incremental
+   * index, moving any later records to the front of the journal.
+   */
+  private void truncateJournal(long index) {
+    int end = _journal.position();
+    int start = 0;
+    while (start < end && _journal.getLong(start + 4 + 8) <= index) {
+      start += RECORD_HEADER_SIZE + _journal.getInt(start);
+    }
+    byte[] records = new byte[end - start];
+    _journal.position(start);
+    _journal.get(records);
+    /**
+     * Empty the journal before moving the later records down, and publish the
+     * first length prefix last, as in appendRecord.
+     */
+    _journal.putInt(0, 0);
+    _journal.position(4);
+    if (records.length > 0) {
+      _journal.put(records, 4, records.length - 4);
+      _journal.putInt(_journal.position(), 0);
+      _journal.putInt(0, ByteBuffer.wrap(records).getInt(0));
+    } else {
+      _journal.position(0);
+    }
+  }
+
+  private void scheduleCompaction() {
+    if (_executor == null || _compactionPending) {
+      return;
+    }
+    _compactionPending = true;
+    _executor.execute(new CompactionTask());
+  }
+
+  /**
+   * @return false if the journal is full and a new snapshot must be written
+   */
+  private boolean appendRecord(FeedMessage feed) {
+    byte[] data = feed.toByteArray();
+    if (_journal.remaining() < RECORD_HEADER_SIZE * 2 + data.length) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    int position = _journal.position();
+    /**
+     * Write the record body and the terminator for the next record before we
+     * publish the length prefix, so that a crash mid-write leaves a journal
+     * that replays cleanly up to the previous record.
+     */
+    _journal.position(position + 4);
+    _journal.putLong(now);
+    _journal.putLong(getIncrementalIndex(feed));
+    _journal.put(data);
+    _journal.putInt(_journal.position(), 0);
+    _journal.putInt(position, data.length);
+
+    if (feed.getHeader().getIncrementality() == Incrementality.FULL_DATASET) {
+      _writeTimes = new HashMap<String, Long>();
+    }
+    for (FeedEntity entity : feed.getEntityList()) {
+      if (entity.getIsDeleted()) {
+        _writeTimes.remove(entity.getId());
+      } else {
+        _writeTimes.put(entity.getId(), now);
+      }
+    }
+    return true;
+  }
+
+  private static long getIncrementalIndex(FeedMessage feed) {
+    return feed.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+  }
+
+  private class CompactionTask implements Runnable {
+    @Override
+    public void run() {
+      try {
+        compact();
+      } catch (IOException ex) {
+        _log.error("error compacting feed journal: " + _directory, ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, in power-of-two nanosecond buckets, so
+ * that recording a sample costs a few atomic increments and percentiles are
+ * accurate to within a factor of two.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeLatencyHistogram {
+
+  /**
+   * Bucket i holds durations in [2^(i-1), 2^i) nanoseconds, and bucket 0 holds
+   * zero.
+   */
+  private final AtomicLongArray _buckets = new AtomicLongArray(64);
+
+  private final AtomicLong _count = new AtomicLong();
+
+  private final AtomicLong _totalNanos = new AtomicLong();
+
+  private final AtomicLong _maxNanos = new AtomicLong();
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  public long getTotalNanos() {
+    return _totalNanos.get();
+  }
+
+  public long getMeanNanos() {
+    long count = getCount();
+    return count == 0 ? 0 : getTotalNanos() / count;
+  }
+
+  public long getMaxNanos() {
+    return _maxNanos.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket holding the specified percentile,
+   *         capped at the maximum recorded duration
+   */
+  public long getPercentileNanos(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < 64; ++i) {
+      seen += _buckets.get(i);
+      if (seen >= rank) {
+        return i == 0 ? 0 : Math.min((1L << i) - 1, getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    _buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+    _count.incrementAndGet();
+    _totalNanos.addAndGet(nanos);
+    long max = _maxNanos.get();
+    while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+      max = _maxNanos.get();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + " meanMs=" + toMillis(getMeanNanos())
+        + " p50Ms=" + toMillis(getPercentileNanos(50)) + " p99Ms="
+        + toMillis(getPercentileNanos(99)) + " maxMs="
+        + toMillis(getMaxNanos());
+  }
+
+  static String toMillis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Optional end-to-end latency tracing of feed updates. When enabled, each
+ * update entering an exporter is given a {@link GtfsRealtimeTrace}, and the
+ * time spent in each {@link Stage} on its way to listeners is recorded both
+ * on the trace and in a per-stage {@link GtfsRealtimeLatencyHistogram}. The
+ * slowest recently completed traces are kept, with their stage breakdown, for
+ * {@link GtfsRealtimeMetricsServlet}.
+ * 
+ * When disabled, which is the default, no traces are created and the cost to
+ * the update path is a null check.
+ * 
+ * @author agent
+ */
+@Singleton
+public class GtfsRealtimeLatencyTracer {
+
+  public enum Stage {
+
+    /**
+     * Applying the update to the exporter's entity store.
+     */
+    STORE_APPLY(false),
+
+    /**
+     * Rebuilding the full-dataset snapshot after the update.
+     */
+    SNAPSHOT_BUILD(false),
+
+    /**
+     * Encoding the update's differential for listeners.
+     */
+    ENCODING(false),
+
+    /**
+     * Waiting on the listener executor before delivery.
+     */
+    QUEUEING(true),
+
+    /**
+     * Writing the update to a WebSocket client.
+     */
+    WEBSOCKET_SEND(true),
+
+    /**
+     * Writing the feed to disk after the update.
+     */
+    FILE_WRITE(false);
+
+    private final boolean _perListener;
+
+    private Stage(boolean perListener) {
+      _perListener = perListener;
+    }
+
+    public boolean isPerListener() {
+      return _perListener;
+    }
+
+    public String getName() {
+      return name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  private static final ThreadLocal<GtfsRealtimeTrace> _currentTrace = new ThreadLocal<GtfsRealtimeTrace>();
+
+  private final GtfsRealtimeLatencyHistogram[] _histograms = new GtfsRealtimeLatencyHistogram[Stage.values().length];
+
+  private final GtfsRealtimeLatencyHistogram _endToEnd = new GtfsRealtimeLatencyHistogram();
+
+  /**
+   * The slowest traces completed within the recent window, slowest first.
+   */
+  private final List<GtfsRealtimeTrace> _slowest = new ArrayList<GtfsRealtimeTrace>();
+
+  private volatile boolean _enabled = false;
+
+  private int _slowestCount = 10;
+
+  private long _recentWindow = TimeUnit.MINUTES.toMillis(5);
+
+  public GtfsRealtimeLatencyTracer() {
+    for (int i = 0; i < _histograms.length; ++i) {
+      _histograms[i] = new GtfsRealtimeLatencyHistogram();
+    }
+  }
+
+  @Inject
+  public void setEnabled(@Named("tracing.enabled")
+  String enabled) {
+    setEnabled(Boolean.parseBoolean(enabled));
+  }
+
+  public void setEnabled(boolean enabled) {
+    _enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return _enabled;
+  }
+
+  /**
+   * @param slowestCount how many of the slowest recent traces to keep
+   */
+  public synchronized void setSlowestCount(int slowestCount) {
+    _slowestCount = slowestCount;
+  }
+
+  /**
+   * @param recentWindowInMilliseconds how long a trace counts as recent
+   */
+  public synchronized void setRecentWindow(long recentWindowInMilliseconds) {
+    _recentWindow = recentWindowInMilliseconds;
+  }
+
+  /**
+   * @return a new trace, or null if tracing is disabled
+   */
+  public GtfsRealtimeTrace startTrace() {
+    return _enabled ? new GtfsRealtimeTrace(this) : null;
+  }
+
+  public GtfsRealtimeLatencyHistogram getHistogram(Stage stage) {
+    return _histograms[stage.ordinal()];
+  }
+
+  /**
+   * @return the time from an update entering the sink until its last listener
+   *         had been delivered it
+   */
+  public GtfsRealtimeLatencyHistogram getEndToEndHistogram() {
+    return _endToEnd;
+  }
+
+  /**
+   * @return the slowest traces completed within the recent window, slowest
+   *         first
+   */
+  public synchronized List<GtfsRealtimeTrace> getSlowestTraces() {
+    evictStaleTraces();
+    return new ArrayList<GtfsRealtimeTrace>(_slowest);
+  }
+
+  /**
+   * @return the trace of the update being delivered on the current thread, if
+   *         any, so that listeners can record the time they spend on it
+   */
+  public static GtfsRealtimeTrace getCurrentTrace() {
+    return _currentTrace.get();
+  }
+
+  static void setCurrentTrace(GtfsRealtimeTrace trace) {
+    if (trace == null) {
+      _currentTrace.remove();
+    } else {
+      _currentTrace.set(trace);
+    }
+  }
+
+  void complete(GtfsRealtimeTrace trace) {
+    _endToEnd.record(trace.getTotalNanos());
+    synchronized (this) {
+      evictStaleTraces();
+      int i = _slowest.size();
+      while (i > 0 && _slowest.get(i - 1).getTotalNanos() < trace.getTotalNanos()) {
+        i--;
+      }
+      if (i < _slowestCount) {
+        _slowest.add(i, trace);
+        while (_slowest.size() > _slowestCount) {
+          _slowest.remove(_slowest.size() - 1);
+        }
+      }
+    }
+  }
+
+  private void evictStaleTraces() {
+    long cutoff = System.currentTimeMillis() - _recentWindow;
+    Iterator<GtfsRealtimeTrace> it = _slowest.iterator();
+    while (it.hasNext()) {
+      if (it.next().getStartTime() < cutoff) {
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeExtensions;
+
+/**
+ * Reads the feed published by a {@link GtfsRealtimeFileWriter} in
+ * memory-mapped mode, for consumers running on the same host as the exporter.
+ * 
+ * The file starts with a 128 byte header: a magic number and format version,
+ * the publication sequence, and the offset, capacity, length and CRC-32 of
+ * each of two slots. The writer fills the slot that isn't currently published
+ * and then increments the sequence, so the published slot is always
+ * {@code sequence & 1}. Checking for a new version costs a single read of the
+ * mapped sequence, with no system call.
+ * 
+ * Neither the Java memory model nor Java 7's APIs order plain accesses to
+ * memory shared with another process, so the reader can't rely on seeing a
+ * slot's contents before the sequence that publishes it, or on the slot not
+ * changing while it reads. Instead, {@link #readFeed()} copies the slot out and
+ * checks the copy against the slot's checksum, retrying a bounded number of
+ * times if the two don't match, which catches a torn read however the stores
+ * and loads were reordered.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeMappedFileReader {
+
+  static final int MAGIC = 0x47545246;
+
+  static final int FORMAT_VERSION = 2;
+
+  static final int HEADER_SIZE = 128;
+
+  static final int MAGIC_OFFSET = 0;
+
+  static final int FORMAT_VERSION_OFFSET = 4;
+
+  static final int SEQUENCE_OFFSET = 8;
+
+  static final int SLOT_OFFSET = 16;
+
+  /**
+   * Each slot's header is its offset, capacity, length and checksum, as longs.
+   */
+  static final int SLOT_HEADER_SIZE = 32;
+
+  private static final int CHECKSUM_CHUNK_SIZE = 8192;
+
+  private final ExtensionRegistry _extensionRegistry = ExtensionRegistry.newInstance();
+
+  private File _path;
+
+  private RandomAccessFile _file;
+
+  private volatile MappedByteBuffer _buffer;
+
+  private int _maxReadAttempts = 100;
+
+  public GtfsRealtimeMappedFileReader() {
+    GtfsRealtimeExtensions.registerExtensions(_extensionRegistry);
+  }
+
+  /**
+   * @param path the file written by a memory-mapped
+   *          {@link GtfsRealtimeFileWriter}
+   */
+  public void setPath(File path) {
+    _path = path;
+  }
+
+  /**
+   * @param maxReadAttempts how many times {@link #readFeed()} tries to read a
+   *          consistent feed, while the writer keeps publishing over it, before
+   *          giving up
+   */
+  public void setMaxReadAttempts(int maxReadAttempts) {
+    _maxReadAttempts = maxReadAttempts;
+  }
+
+  @PostConstruct
+  public synchronized void start() throws IOException {
+    _file = new RandomAccessFile(_path, "r");
+    map();
+    if (_buffer.getInt(MAGIC_OFFSET) != MAGIC
+        || _buffer.getInt(FORMAT_VERSION_OFFSET) != FORMAT_VERSION) {
+      stop();
+      throw new IOException("not a memory-mapped feed: " + _path);
+    }
+  }
+
+  @PreDestroy
+  public synchronized void stop() throws IOException {
+    if (_file != null) {
+      _file.close();
+      _file = null;
+    }
+    _buffer = null;
+  }
+
+  /**
+   * @return the sequence of the currently published feed, which increases with
+   *         each publication, or zero if nothing has been published yet
+   */
+  public long getSequence() {
+    return _buffer.getLong(SEQUENCE_OFFSET);
+  }
+
+  /**
+   * @param sequence a sequence previously returned by {@link #getSequence()}
+   * @return true if the feed published with that sequence is still current
+   */
+  public boolean isCurrent(long sequence) {
+    return getSequence() == sequence;
+  }
+
+  /**
+   * Returns a read-only view of the encoded feed published with the given
+   * sequence, directly over the mapped file. The writer may overwrite the view
+   * once two more versions have been published, and nothing orders its writes
+   * with our reads, so consumers reading the view in place should copy it and
+   * compare the copy's CRC-32 with {@link #getChecksum(long)}, as
+   * {@link #readFeed()} does.
+   * 
+   * @param sequence a sequence previously returned by {@link #getSequence()}
+   * @return the encoded {@link FeedMessage}, or null if nothing has been
+   *         published or the sequence is no longer current
+   */
+  public synchronized ByteBuffer getEncodedFeed(long sequence)
+      throws IOException {
+    if (sequence == 0) {
+      return null;
+    }
+    int slot = SLOT_OFFSET + (int) (sequence & 1) * SLOT_HEADER_SIZE;
+    long offset = _buffer.getLong(slot);
+    long length = _buffer.getLong(slot + 16);
+    if (!isCurrent(sequence) || offset < HEADER_SIZE || length < 0) {
+      return null;
+    }
+    if (offset + length > _buffer.capacity()) {
+      // The writer has grown the file since we mapped it.
+      map();
+      if (offset + length > _buffer.capacity()) {
+        return null;
+      }
+    }
+    ByteBuffer view = _buffer.asReadOnlyBuffer();
+    view.limit((int) (offset + length));
+    view.position((int) offset);
+    return view.slice();
+  }
+
+  /**
+   * @param sequence a sequence previously returned by {@link #getSequence()}
+   * @return the CRC-32 the writer recorded for the slot of that sequence
+   */
+  public synchronized long getChecksum(long sequence) {
+    int slot = SLOT_OFFSET + (int) (sequence & 1) * SLOT_HEADER_SIZE;
+    return _buffer.getLong(slot + 24);
+  }
+
+  /**
+   * @return the currently published feed, or null if nothing has been
+   *         published yet
+   * @throws IOException if the feed was being overwritten during every read
+   *           attempt
+   */
+  public FeedMessage readFeed() throws IOException {
+    for (int attempt = 0; attempt < _maxReadAttempts; ++attempt) {
+      long sequence = getSequence();
+      if (sequence == 0) {
+        return null;
+      }
+      ByteBuffer encoded = getEncodedFeed(sequence);
+      if (encoded == null) {
+        continue;
+      }
+      byte[] data = new byte[encoded.remaining()];
+      encoded.get(data);
+      if (checksum(ByteBuffer.wrap(data)) != getChecksum(sequence)) {
+        continue;
+      }
+      // The copy is intact, so it can't be changed out from under us.
+      return FeedMessage.parseFrom(CodedInputStream.newInstance(data),
+          _extensionRegistry);
+    }
+    throw new IOException("feed was overwritten during each of "
+        + _maxReadAttempts + " read attempts: " + _path);
+  }
+
+  /**
+   * @return the CRC-32 of the remaining bytes of the buffer, which is left
+   *         unconsumed
+   */
+  static long checksum(ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    ByteBuffer remaining = buffer.duplicate();
+    byte[] chunk = new byte[Math.min(CHECKSUM_CHUNK_SIZE, remaining.remaining())];
+    while (remaining.hasRemaining()) {
+      int length = Math.min(chunk.length, remaining.remaining());
+      remaining.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return crc.getValue();
+  }
+
+  private void map() throws IOException {
+    FileChannel channel = _file.getChannel();
+    long size = channel.size();
+    if (size < HEADER_SIZE) {
+      throw new IOException("not a memory-mapped feed: " + _path);
+    }
+    _buffer = channel.map(MapMode.READ_ONLY, 0, size);
+  }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+/**
+ * Thrown to a producer by an exporter's {@link GtfsRealtimeSink} methods when
+ * applying the update would take the exporter over its memory budget. The
+ * update has not been applied.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeMemoryBudgetExceededException extends
+    IllegalStateException {
+
+  private static final long serialVersionUID = 1L;
+
+  public GtfsRealtimeMemoryBudgetExceededException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+
+import javax.inject.Inject;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeLatencyTracer.Stage;
+import org.onebusaway.guice.jetty_exporter.ServletSource;
+
+/**
+ * Reports exporter metrics as plain text, one metric per line: update latency
+ * histograms, overall and per stage, along with the stage breakdown of the
+ * slowest recent updates, when tracing is enabled, plus WebSocket compression
+ * and admission control counters, and the memory held by each exporter in a
+ * registry.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeMetricsServlet extends HttpServlet implements
+    ServletSource {
+
+  private static final long serialVersionUID = 1L;
+
+  private URL _url;
+
+  private GtfsRealtimeLatencyTracer _latencyTracer;
+
+  private GtfsRealtimeAdmissionControl _admissionControl;
+
+  private GtfsRealtimeExporterRegistry _registry;
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  @Inject
+  public void setLatencyTracer(GtfsRealtimeLatencyTracer latencyTracer) {
+    _latencyTracer = latencyTracer;
+  }
+
+  /**
+   * @param admissionControl the admission control whose counters to report,
+   *          if any
+   */
+  public void setAdmissionControl(GtfsRealtimeAdmissionControl admissionControl) {
+    _admissionControl = admissionControl;
+  }
+
+  /**
+   * @param registry the registry whose exporters' memory to report, if any
+   */
+  public void setRegistry(GtfsRealtimeExporterRegistry registry) {
+    _registry = registry;
+  }
+
+  /****
+   * {@link HttpServlet} Interface
+   ****/
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    resp.setContentType("text/plain");
+    resp.setCharacterEncoding("UTF-8");
+    PrintWriter writer = resp.getWriter();
+    writeMetrics(writer);
+    writer.flush();
+  }
+
+  /****
+   * {@link ServletSource} Interface
+   ****/
+
+  @Override
+  public URL getUrl() {
+    return _url;
+  }
+
+  @Override
+  public Servlet getServlet() {
+    return this;
+  }
+
+  /****
+   * Package-Private Methods
+   ****/
+
+  void writeMetrics(PrintWriter writer) {
+    GtfsRealtimeLatencyTracer tracer = _latencyTracer;
+    if (tracer != null) {
+      writer.println("tracing.enabled " + tracer.isEnabled());
+      writer.println("latency.end_to_end " + tracer.getEndToEndHistogram());
+      for (Stage stage : Stage.values()) {
+        writer.println("latency." + stage.getName() + " "
+            + tracer.getHistogram(stage));
+      }
+      for (GtfsRealtimeTrace trace : tracer.getSlowestTraces()) {
+        writer.println("latency.slowest " + trace);
+      }
+    }
+    writer.println("websocket.compression "
+        + GtfsRealtimeDeflateExtension.getStats());
+    GtfsRealtimeAdmissionControl admissionControl = _admissionControl;
+    if (admissionControl != null) {
+      writer.println("admission rateLimited="
+          + admissionControl.getRateLimitedRequests() + " overCapacity="
+          + admissionControl.getOverCapacityRequests());
+    }
+    GtfsRealtimeExporterRegistry registry = _registry;
+    if (registry != null) {
+      for (String name : registry.getExporterNames()) {
+        long memorySize = registry.getMemorySize(name);
+        if (memorySize >= 0) {
+          writer.println("memory." + name + " bytes=" + memorySize);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Stores each entity as a {@link FeedEntity} object. This is the fastest
+ * option when callers mostly work with entity objects, at the cost of holding
+ * the full object graph for every entity.
+ * 
+ * @author agent
+ */
+class GtfsRealtimeObjectEntityStore extends
+    GtfsRealtimeEntityStore<FeedEntity> {
+
+  public GtfsRealtimeObjectEntityStore(int expireSecs) {
+    super(expireSecs);
+  }
+
+  @Override
+  protected FeedEntity encode(FeedEntity entity) {
+    return entity;
+  }
+
+  @Override
+  protected FeedEntity encode(byte[] data) {
+    try {
+      return FeedEntity.parseFrom(data,
+          GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+    } catch (InvalidProtocolBufferException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+  }
+
+  @Override
+  protected FeedEntity decode(FeedEntity value) {
+    return value;
+  }
+
+  @Override
+  protected int getSerializedSize(FeedEntity value) {
+    return value.getSerializedSize();
+  }
+
+  @Override
+  protected void writeEntity(CodedOutputStream out, FeedEntity value)
+      throws IOException {
+    GtfsRealtimeWireFormat.writeEntity(out, value);
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Stores each entity as its encoded bytes in large, off-heap slabs, keeping
+ * only a small buffer slice per entity on the heap. Slabs are filled
+ * sequentially and are never reused: a slab's memory is released once every
+ * entity written to it has been replaced or removed, and the slices pointing
+ * into it have been garbage collected.
+ * 
+ * Since a single live entity pins its whole slab, slabs are accounted in full
+ * in the store's memory size, and once more than half of the filled slabs'
+ * bytes are dead, the live entities of every slab that is less than half live
+ * are copied out into the current slab, letting those slabs go. Each
+ * compaction leaves every filled slab at least half live, so the slabs take at
+ * most about twice the memory of the live entities.
+ * 
+ * @author agent
+ */
+class GtfsRealtimeOffHeapEntityStore extends
+    GtfsRealtimeEntityStore<GtfsRealtimeOffHeapEntityStore.Entry> {
+
+  private static final int SLAB_SIZE = 1024 * 1024;
+
+  private final Relocator<Entry> _relocator = new SparseSlabRelocator();
+
+  /**
+   * The slab currently being filled.
+   */
+  private Slab _slab = null;
+
+  /**
+   * The total capacity and live bytes of every slab still holding live
+   * entities, plus the current slab.
+   */
+  private long _allocatedBytes = 0;
+
+  private long _liveBytes = 0;
+
+  private boolean _compacting = false;
+
+  public GtfsRealtimeOffHeapEntityStore(int expireSecs) {
+    super(expireSecs);
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    _slab = null;
+    _allocatedBytes = 0;
+    _liveBytes = 0;
+  }
+
+  @Override
+  protected Entry encode(FeedEntity entity) {
+    return encode(entity.toByteArray());
+  }
+
+  @Override
+  protected Entry encode(byte[] data) {
+    return allocate(ByteBuffer.wrap(data));
+  }
+
+  @Override
+  protected FeedEntity decode(Entry value) {
+    byte[] data = new byte[value.data.remaining()];
+    value.data.duplicate().get(data);
+    try {
+      return FeedEntity.parseFrom(data,
+          GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+    } catch (InvalidProtocolBufferException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @Override
+  protected int getSerializedSize(Entry value) {
+    return value.data.remaining();
+  }
+
+  @Override
+  protected void writeEntity(CodedOutputStream out, Entry value)
+      throws IOException {
+    GtfsRealtimeWireFormat.writeEntity(out, value.data);
+  }
+
+  @Override
+  protected void release(Entry value) {
+    free(value);
+    long filledAllocated = _allocatedBytes - _slab.capacity;
+    long filledLive = _liveBytes - _slab.live;
+    if (!_compacting && filledLive < filledAllocated / 2) {
+      _compacting = true;
+      try {
+        relocateValues(_relocator);
+      } finally {
+        _compacting = false;
+      }
+    }
+  }
+
+  @Override
+  protected long getStorageOverhead() {
+    return _allocatedBytes - _liveBytes;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private Entry allocate(ByteBuffer data) {
+    int length = data.remaining();
+    if (_slab == null || _slab.buffer.remaining() < length) {
+      if (_slab != null && _slab.live == 0) {
+        _allocatedBytes -= _slab.capacity;
+      }
+      _slab = new Slab(Math.max(SLAB_SIZE, length));
+      _allocatedBytes += _slab.capacity;
+    }
+    ByteBuffer buffer = _slab.buffer;
+    int position = buffer.position();
+    buffer.put(data);
+    ByteBuffer value = buffer.duplicate();
+    value.position(position);
+    value.limit(position + length);
+    _slab.live += length;
+    _liveBytes += length;
+    return new Entry(_slab, value.slice().asReadOnlyBuffer());
+  }
+
+  private void free(Entry value) {
+    Slab slab = value.slab;
+    int length = value.data.remaining();
+    slab.live -= length;
+    _liveBytes -= length;
+    if (slab.live == 0 && slab != _slab) {
+      _allocatedBytes -= slab.capacity;
+    }
+  }
+
+  static class Entry {
+
+    private final Slab slab;
+
+    private final ByteBuffer data;
+
+    public Entry(Slab slab, ByteBuffer data) {
+      this.slab = slab;
+      this.data = data;
+    }
+  }
+
+  private static class Slab {
+
+    private final ByteBuffer buffer;
+
+    private final int capacity;
+
+    private int live = 0;
+
+    public Slab(int capacity) {
+      this.buffer = ByteBuffer.allocateDirect(capacity);
+      this.capacity = capacity;
+    }
+  }
+
+  /**
+   * Copies entities out of filled slabs that are less than half live.
+   */
+  private class SparseSlabRelocator implements Relocator<Entry> {
+    @Override
+    public Entry relocate(Entry value) {
+      Slab slab = value.slab;
+      if (slab == _slab || slab.live >= slab.capacity / 2) {
+        return value;
+      }
+      Entry relocated = allocate(value.data.duplicate());
+      free(value);
+      return relocated;
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Collection;
+
+/**
+ * An immutable map in which each {@link #put(Object, Object)} or
+ * {@link #remove(Object)} returns a new map sharing all but the changed path
+ * with the original, so keeping many versions of a large map costs only their
+ * differences.
+ * 
+ * The map is a hash array mapped trie: each node consumes five bits of the key
+ * hash, and holds a bitmap of its occupied slots alongside an array sized to
+ * just those slots. An update copies the O(log32 n) nodes on the path to the
+ * key. Keys whose hashes collide entirely share a single collision node.
+ * 
+ * @author agent
+ */
+final class GtfsRealtimePersistentMap<K, V> {
+
+  private static final int BITS = 5;
+
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final GtfsRealtimePersistentMap<?, ?> EMPTY = new GtfsRealtimePersistentMap<Object, Object>(
+      null, 0);
+
+  /**
+   * A {@link BitmapNode}, or null if the map is empty.
+   */
+  private final BitmapNode _root;
+
+  private final int _size;
+
+  private GtfsRealtimePersistentMap(BitmapNode root, int size) {
+    _root = root;
+    _size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> GtfsRealtimePersistentMap<K, V> empty() {
+    return (GtfsRealtimePersistentMap<K, V>) EMPTY;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(K key) {
+    int hash = hash(key);
+    Object node = _root;
+    int shift = 0;
+    while (node != null) {
+      if (node instanceof BitmapNode) {
+        BitmapNode bitmapNode = (BitmapNode) node;
+        int bit = bit(hash, shift);
+        if ((bitmapNode.bitmap & bit) == 0) {
+          return null;
+        }
+        node = bitmapNode.children[index(bitmapNode.bitmap, bit)];
+        shift += BITS;
+      } else if (node instanceof Entry) {
+        Entry entry = (Entry) node;
+        return entry.hash == hash && entry.key.equals(key) ? (V) entry.value
+            : null;
+      } else {
+        CollisionNode collision = (CollisionNode) node;
+        int i = collision.find(key);
+        return i < 0 ? null : (V) collision.entries[i].value;
+      }
+    }
+    return null;
+  }
+
+  public GtfsRealtimePersistentMap<K, V> put(K key, V value) {
+    Entry entry = new Entry(key, value, hash(key));
+    boolean[] added = new boolean[1];
+    BitmapNode root = put(_root != null ? _root : BitmapNode.EMPTY, entry, 0,
+        added);
+    return new GtfsRealtimePersistentMap<K, V>(root, added[0] ? _size + 1
+        : _size);
+  }
+
+  public GtfsRealtimePersistentMap<K, V> remove(K key) {
+    if (_root == null) {
+      return this;
+    }
+    Object root = remove(_root, key, hash(key), 0);
+    if (root == _root) {
+      return this;
+    }
+    return new GtfsRealtimePersistentMap<K, V>((BitmapNode) root, _size - 1);
+  }
+
+  /**
+   * @param values receives every value in the map, in no particular order
+   */
+  @SuppressWarnings("unchecked")
+  public void collectValues(Collection<? super V> values) {
+    if (_root != null) {
+      collectValues(_root, (Collection<Object>) values);
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static BitmapNode put(BitmapNode node, Entry entry, int shift,
+      boolean[] added) {
+    int bit = bit(entry.hash, shift);
+    if ((node.bitmap & bit) == 0) {
+      added[0] = true;
+      return node.insert(bit, entry);
+    }
+    int index = index(node.bitmap, bit);
+    Object child = node.children[index];
+    Object replacement;
+    if (child instanceof BitmapNode) {
+      replacement = put((BitmapNode) child, entry, shift + BITS, added);
+    } else if (child instanceof Entry) {
+      Entry existing = (Entry) child;
+      if (existing.hash == entry.hash && existing.key.equals(entry.key)) {
+        replacement = entry;
+      } else if (existing.hash == entry.hash) {
+        added[0] = true;
+        replacement = new CollisionNode(new Entry[] {existing, entry});
+      } else {
+        added[0] = true;
+        BitmapNode pair = BitmapNode.EMPTY.insert(
+            bit(existing.hash, shift + BITS), existing);
+        replacement = put(pair, entry, shift + BITS, new boolean[1]);
+      }
+    } else {
+      CollisionNode collision = (CollisionNode) child;
+      if (collision.hash() == entry.hash) {
+        replacement = collision.put(entry, added);
+      } else {
+        // Push the collision node down a level, where the hashes differ.
+        added[0] = true;
+        BitmapNode pair = BitmapNode.EMPTY.insert(
+            bit(collision.hash(), shift + BITS), collision);
+        replacement = put(pair, entry, shift + BITS, new boolean[1]);
+      }
+    }
+    return node.replace(index, replacement);
+  }
+
+  /**
+   * @return the node without the key, the node itself if the key is absent,
+   *         a lone remaining {@link Entry} so that the parent can inline it, or
+   *         null if the node is left empty
+   */
+  private static Object remove(BitmapNode node, Object key, int hash, int shift) {
+    int bit = bit(hash, shift);
+    if ((node.bitmap & bit) == 0) {
+      return node;
+    }
+    int index = index(node.bitmap, bit);
+    Object child = node.children[index];
+    Object replacement;
+    if (child instanceof BitmapNode) {
+      replacement = remove((BitmapNode) child, key, hash, shift + BITS);
+    } else if (child instanceof Entry) {
+      Entry entry = (Entry) child;
+      if (entry.hash != hash || !entry.key.equals(key)) {
+        return node;
+      }
+      replacement = null;
+    } else {
+      replacement = ((CollisionNode) child).remove(key);
+    }
+    if (replacement == child) {
+      return node;
+    }
+    if (replacement == null) {
+      if (node.children.length == 1) {
+        return null;
+      }
+      if (node.children.length == 2 && shift > 0) {
+        Object other = node.children[1 - index];
+        if (other instanceof Entry) {
+          return other;
+        }
+      }
+      return node.delete(bit, index);
+    }
+    if (replacement instanceof Entry && node.children.length == 1 && shift > 0) {
+      return replacement;
+    }
+    return node.replace(index, replacement);
+  }
+
+  private static void collectValues(Object node, Collection<Object> values) {
+    if (node instanceof BitmapNode) {
+      for (Object child : ((BitmapNode) node).children) {
+        collectValues(child, values);
+      }
+    } else if (node instanceof Entry) {
+      values.add(((Entry) node).value);
+    } else {
+      for (Entry entry : ((CollisionNode) node).entries) {
+        values.add(entry.value);
+      }
+    }
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  private static int index(int bitmap, int bit) {
+    return Integer.bitCount(bitmap & (bit - 1));
+  }
+
+  private static final class Entry {
+
+    final Object key;
+
+    final Object value;
+
+    final int hash;
+
+    Entry(Object key, Object value, int hash) {
+      this.key = key;
+      this.value = value;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Each child is an {@link Entry}, a {@link BitmapNode} or a
+   * {@link CollisionNode}.
+   */
+  private static final class BitmapNode {
+
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    final int bitmap;
+
+    final Object[] children;
+
+    BitmapNode(int bitmap, Object[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+
+    BitmapNode insert(int bit, Object child) {
+      int index = index(bitmap, bit);
+      Object[] updated = new Object[children.length + 1];
+      System.arraycopy(children, 0, updated, 0, index);
+      updated[index] = child;
+      System.arraycopy(children, index, updated, index + 1, children.length
+          - index);
+      return new BitmapNode(bitmap | bit, updated);
+    }
+
+    BitmapNode replace(int index, Object child) {
+      Object[] updated = children.clone();
+      updated[index] = child;
+      return new BitmapNode(bitmap, updated);
+    }
+
+    BitmapNode delete(int bit, int index) {
+      Object[] updated = new Object[children.length - 1];
+      System.arraycopy(children, 0, updated, 0, index);
+      System.arraycopy(children, index + 1, updated, index, updated.length
+          - index);
+      return new BitmapNode(bitmap & ~bit, updated);
+    }
+  }
+
+  /**
+   * Entries whose keys have identical hashes.
+   */
+  private static final class CollisionNode {
+
+    final Entry[] entries;
+
+    CollisionNode(Entry[] entries) {
+      this.entries = entries;
+    }
+
+    int hash() {
+      return entries[0].hash;
+    }
+
+    int find(Object key) {
+      for (int i = 0; i < entries.length; ++i) {
+        if (entries[i].key.equals(key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    CollisionNode put(Entry entry, boolean[] added) {
+      int i = find(entry.key);
+      Entry[] updated;
+      if (i >= 0) {
+        updated = entries.clone();
+        updated[i] = entry;
+      } else {
+        added[0] = true;
+        updated = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, updated, 0, entries.length);
+        updated[entries.length] = entry;
+      }
+      return new CollisionNode(updated);
+    }
+
+    /**
+     * @return the node without the key, the node itself if the key is absent,
+     *         or the lone remaining {@link Entry}
+     */
+    Object remove(Object key) {
+      int i = find(key);
+      if (i < 0) {
+        return this;
+      }
+      if (entries.length == 2) {
+        return entries[1 - i];
+      }
+      Entry[] updated = new Entry[entries.length - 1];
+      System.arraycopy(entries, 0, updated, 0, i);
+      System.arraycopy(entries, i + 1, updated, i, updated.length - i);
+      return new CollisionNode(updated);
+    }
+  }
+}
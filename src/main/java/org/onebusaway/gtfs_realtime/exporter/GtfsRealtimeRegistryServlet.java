@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Serves every feed in a {@link GtfsRealtimeExporterRegistry} from a single
+ * servlet, routing on the first segment of the path info. Mapped to
+ * "/feeds/*", for example, a request for "/feeds/agency-a" is served from the
+ * exporter named "agency-a", over both HTTP and WebSockets. Unknown names get
+ * a 404.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeRegistryServlet extends GtfsRealtimeServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private GtfsRealtimeExporterRegistry _registry;
+
+  @Inject
+  public void setRegistry(GtfsRealtimeExporterRegistry registry) {
+    _registry = registry;
+  }
+
+  @Override
+  protected GtfsRealtimeSource getSource(HttpServletRequest req) {
+    String name = getExporterName(req.getPathInfo());
+    return name != null ? _registry.getExporter(name) : null;
+  }
+
+  static String getExporterName(String pathInfo) {
+    if (pathInfo == null || pathInfo.length() < 2 || pathInfo.charAt(0) != '/') {
+      return null;
+    }
+    int end = pathInfo.indexOf('/', 1);
+    return end < 0 ? pathInfo.substring(1) : pathInfo.substring(1, end);
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+
+/**
+ * A local copy of an exporter's full dataset, kept current from the exporter's
+ * full-plus-differential stream, for consumers that would otherwise re-download
+ * the whole feed whenever they are unsure of their state.
+ * 
+ * The stream is consumed by a {@link GtfsRealtimeFollower}, so gaps in the
+ * incremental index are detected, and lost connections and gaps are
+ * recovered by resuming from the last applied index rather than with a full
+ * download, wherever the exporter still has the missed differentials.
+ * 
+ * Entities are held as the {@link FeedEntity} objects parsed off the wire,
+ * and can be read concurrently with updates. Listeners are told about each
+ * entity that actually changed, one call per entity, without building any
+ * intermediate collections.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeReplica implements GtfsRealtimeSink {
+
+  private final ConcurrentMap<String, FeedEntity> _entities = new ConcurrentHashMap<String, FeedEntity>();
+
+  private final List<GtfsRealtimeReplicaListener> _listeners = new CopyOnWriteArrayList<GtfsRealtimeReplicaListener>();
+
+  private final GtfsRealtimeFollower _follower = new GtfsRealtimeFollower();
+
+  private volatile FeedHeader _header;
+
+  public GtfsRealtimeReplica() {
+    _follower.setSink(this);
+  }
+
+  /**
+   * Replicate an exporter in the same process.
+   */
+  public void setLeader(GtfsRealtimeSource leader) {
+    _follower.setLeader(leader);
+  }
+
+  /**
+   * Replicate a remote exporter over its WebSocket endpoint.
+   */
+  public void setLeaderUri(URI leaderUri) {
+    _follower.setLeaderUri(leaderUri);
+  }
+
+  @Inject
+  public void setExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXPIRY_EXECUTOR)
+  ScheduledExecutorService executor) {
+    _follower.setExecutor(executor);
+  }
+
+  /**
+   * See {@link GtfsRealtimeFollower#setReconnectDelay(long)}.
+   */
+  public void setReconnectDelay(long reconnectDelayInMilliseconds) {
+    _follower.setReconnectDelay(reconnectDelayInMilliseconds);
+  }
+
+  /**
+   * See {@link GtfsRealtimeFollower#setMaxMessageSize(long)}.
+   */
+  public void setMaxMessageSize(long maxMessageSize) {
+    _follower.setMaxMessageSize(maxMessageSize);
+  }
+
+  public void addListener(GtfsRealtimeReplicaListener listener) {
+    _listeners.add(listener);
+  }
+
+  public void removeListener(GtfsRealtimeReplicaListener listener) {
+    _listeners.remove(listener);
+  }
+
+  @PostConstruct
+  public void start() throws Exception {
+    _follower.start();
+  }
+
+  @PreDestroy
+  public void stop() throws Exception {
+    _follower.stop();
+  }
+
+  /**
+   * @return the incremental index of the last update applied, or -1 if no full
+   *         dataset has been received yet
+   */
+  public long getIncrementalIndex() {
+    return _follower.getIncrementalIndex();
+  }
+
+  /**
+   * @return the header of the last full dataset, without its incremental
+   *         index, or null if none has been received yet
+   */
+  public FeedHeader getFeedHeader() {
+    return _header;
+  }
+
+  /**
+   * @return the entity with the specified id, or null if there is none
+   */
+  public FeedEntity getEntity(String id) {
+    return _entities.get(id);
+  }
+
+  /**
+   * @return a live, unmodifiable view of the entities, which reflects updates
+   *         made while it is being iterated
+   */
+  public Collection<FeedEntity> getEntities() {
+    return Collections.unmodifiableCollection(_entities.values());
+  }
+
+  public int size() {
+    return _entities.size();
+  }
+
+  /****
+   * {@link GtfsRealtimeSink} Interface
+   ****/
+
+  @Override
+  public void setFeedHeaderDefaults(FeedHeader header) {
+    _header = header;
+  }
+
+  @Override
+  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    List<FeedEntity> entities = update.getEntities();
+    Set<String> ids = new HashSet<String>(entities.size() * 2);
+    for (FeedEntity entity : entities) {
+      ids.add(entity.getId());
+      put(entity);
+    }
+    Iterator<Map.Entry<String, FeedEntity>> it = _entities.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, FeedEntity> entry = it.next();
+      if (!ids.contains(entry.getKey())) {
+        it.remove();
+        fireEntityDeleted(entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public synchronized void handleIncrementalUpdate(
+      GtfsRealtimeIncrementalUpdate update) {
+    for (FeedEntity entity : update.getUpdatedEntities()) {
+      put(entity);
+    }
+    for (String id : update.getDeletedEntities()) {
+      FeedEntity previous = _entities.remove(id);
+      if (previous != null) {
+        fireEntityDeleted(previous);
+      }
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void put(FeedEntity entity) {
+    FeedEntity previous = _entities.put(entity.getId(), entity);
+    if (!entity.equals(previous)) {
+      for (GtfsRealtimeReplicaListener listener : _listeners) {
+        listener.handleEntityUpdated(entity, previous);
+      }
+    }
+  }
+
+  private void fireEntityDeleted(FeedEntity previous) {
+    for (GtfsRealtimeReplicaListener listener : _listeners) {
+      listener.handleEntityDeleted(previous);
+    }
+  }
+}
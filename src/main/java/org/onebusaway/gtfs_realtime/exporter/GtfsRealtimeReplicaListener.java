@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Notified of each change applied to a {@link GtfsRealtimeReplica}, on the
+ * thread that applies it and in the order the changes were published.
+ * 
+ * @author agent
+ */
+public interface GtfsRealtimeReplicaListener {
+
+  /**
+   * @param entity the new value of the entity
+   * @param previous the entity's previous value, or null if it is new
+   */
+  public void handleEntityUpdated(FeedEntity entity, FeedEntity previous);
+
+  /**
+   * @param previous the value of the entity before it was deleted
+   */
+  public void handleEntityDeleted(FeedEntity previous);
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+/**
+ * A {@link GtfsRealtimeSource} that can resume an incremental listener from
+ * the point where a previous subscription left off, sending only the
+ * differentials it missed rather than a new full dataset.
+ * 
+ * Incremental indices only have meaning within a single stream, which is
+ * identified by {@link #getStreamId()}. A source that restarts without its
+ * state starts a new stream, so listeners can't mistake a reused index for a
+ * position in the old one.
+ * 
+ * @author agent
+ */
+public interface GtfsRealtimeResumableSource extends GtfsRealtimeSource {
+
+  /**
+   * @return the id of the stream of incremental indices published by this
+   *         source
+   */
+  public String getStreamId();
+
+  /**
+   * Adds a listener that has already applied every update up to and including
+   * the specified incremental index of the specified stream. If the source
+   * still retains every differential since that index, only those are sent.
+   * Otherwise, as with {@link #addIncrementalListener}, the listener is sent
+   * the current full dataset first.
+   * 
+   * @param listener the listener to add
+   * @param streamId the stream the listener was previously subscribed to
+   * @param incrementalIndex the last incremental index the listener applied
+   */
+  public void addIncrementalListener(GtfsRealtimeIncrementalListener listener,
+      String streamId, long incrementalIndex);
+}
@@ -19,13 +19,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
@@ -33,6 +38,7 @@ import org.eclipse.jetty.websocket.api.UpgradeResponse;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
@@ -57,12 +63,33 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
 
   private static final String CONTENT_TYPE = "application/x-google-protobuf";
 
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  /**
+   * Sent in response to a WebSocket upgrade, when the source supports
+   * resuming, so that clients can later pass it back in the "stream" parameter
+   * along with the last incremental index they applied in the "since"
+   * parameter.
+   */
+  public static final String STREAM_ID_HEADER = "X-GTFS-Realtime-Stream-Id";
+
+  private static final String SOURCE_ATTRIBUTE = GtfsRealtimeServlet.class.getName()
+      + ".source";
+
   private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeServlet.class);
 
   protected GtfsRealtimeSource _source;
 
   private URL _url;
 
+  private GtfsRealtimeAdmissionControl _admissionControl;
+
+  private boolean _compressionEnabled = true;
+
+  private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+  private boolean _compressionContextTakeover = false;
+
   public void setSource(GtfsRealtimeSource source) {
     _source = source;
   }
@@ -71,6 +98,49 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
     _url = url;
   }
 
+  /**
+   * @param admissionControl rate limits and concurrency caps to apply to feed
+   *          requests, or null to admit every request
+   */
+  public void setAdmissionControl(GtfsRealtimeAdmissionControl admissionControl) {
+    _admissionControl = admissionControl;
+  }
+
+  /**
+   * @param compressionEnabled true if WebSocket clients may negotiate the
+   *          permessage-deflate extension
+   */
+  public void setCompressionEnabled(boolean compressionEnabled) {
+    _compressionEnabled = compressionEnabled;
+  }
+
+  /**
+   * @param compressionLevel the {@link Deflater} compression level used for
+   *          WebSocket messages
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    _compressionLevel = compressionLevel;
+  }
+
+  /**
+   * See
+   * {@link GtfsRealtimeDeflateExtension#register(WebSocketServletFactory, int, boolean)}
+   * for the trade-off involved.
+   * 
+   * @param compressionContextTakeover true if compression context should be
+   *          kept between the messages of a WebSocket session
+   */
+  public void setCompressionContextTakeover(boolean compressionContextTakeover) {
+    _compressionContextTakeover = compressionContextTakeover;
+  }
+
+  /**
+   * @return bytes saved and CPU time spent by WebSocket compression
+   */
+  public GtfsRealtimeCompressionStats getCompressionStats() {
+    return GtfsRealtimeDeflateExtension.getStats();
+  }
+
   /****
    * {@link WebSocketServlet} Interface
    ****/
@@ -78,23 +148,209 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
   @Override
   public void configure(WebSocketServletFactory factory) {
     factory.setCreator(new WebsocketCreatorImpl());
+    if (_compressionEnabled) {
+      GtfsRealtimeDeflateExtension.register(factory, _compressionLevel,
+          _compressionContextTakeover);
+    }
   }
 
   /****
    * {@link HttpServlet} Interface
    ****/
 
+  /**
+   * Resolves the source up front, so that WebSocket upgrades, which don't see
+   * the servlet request itself, know which source to subscribe to.
+   */
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    GtfsRealtimeSource source = getSource(req);
+    if (source == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    req.setAttribute(SOURCE_ATTRIBUTE, source);
+    super.service(req, resp);
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
+    GtfsRealtimeSource source = getSource(req);
+    if (source == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    GtfsRealtimeAdmissionControl admissionControl = _admissionControl;
+    if (admissionControl != null && !admissionControl.tryAcquire(req)) {
+      resp.setStatus(SC_TOO_MANY_REQUESTS);
+      resp.setIntHeader("Retry-After", admissionControl.getRetryAfterSecs());
+      return;
+    }
     boolean debug = req.getParameter("debug") != null;
-    Message message = _source.getFeed();
-    if (debug) {
-      resp.getWriter().print(message);
-    } else {
-      resp.setContentType(CONTENT_TYPE);
-      message.writeTo(resp.getOutputStream());
+    FeedMessage historicalFeed = null;
+    String at = req.getParameter("at");
+    if (at != null) {
+      historicalFeed = getHistoricalFeed(source, at, resp);
+      if (historicalFeed == null) {
+        return;
+      }
+    }
+    // Clients may be served a background snapshot, if the source keeps one.
+    GtfsRealtimeSource readSource = source;
+    if (source instanceof GtfsRealtimeSnapshotSource) {
+      readSource = ((GtfsRealtimeSnapshotSource) source).getSnapshotSource();
+    }
+    if (!debug && historicalFeed == null
+        && readSource instanceof GtfsRealtimeEncodedSource
+        && isNotModified(req, resp, (GtfsRealtimeEncodedSource) readSource)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    if (admissionControl != null && !admissionControl.tryBeginResponse()) {
+      resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      resp.setIntHeader("Retry-After", 1);
+      return;
+    }
+    boolean async = false;
+    try {
+      if (historicalFeed != null) {
+        if (debug) {
+          resp.getWriter().print(historicalFeed);
+        } else {
+          resp.setContentType(CONTENT_TYPE);
+          historicalFeed.writeTo(resp.getOutputStream());
+        }
+      } else if (debug) {
+        Message message = readSource.getFeed();
+        resp.getWriter().print(message);
+      } else if (readSource instanceof GtfsRealtimeEncodedSource
+          && resp.getOutputStream() instanceof HttpOutput) {
+        ByteBuffer[] buffers = ((GtfsRealtimeEncodedSource) readSource).getEncodedFeedBuffers();
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+          length += buffer.remaining();
+        }
+        resp.setContentType(CONTENT_TYPE);
+        resp.setContentLength(length);
+        async = sendContent(req, (HttpOutput) resp.getOutputStream(), buffers,
+            admissionControl);
+      } else if (readSource instanceof GtfsRealtimeEncodedSource) {
+        resp.setContentType(CONTENT_TYPE);
+        ((GtfsRealtimeEncodedSource) readSource).writeFeed(resp.getOutputStream());
+      } else {
+        Message message = readSource.getFeed();
+        resp.setContentType(CONTENT_TYPE);
+        message.writeTo(resp.getOutputStream());
+      }
+    } finally {
+      if (admissionControl != null && !async) {
+        admissionControl.endResponse();
+      }
+    }
+  }
+
+  /**
+   * Looks up the feed as it was at the time given by the "at" parameter, in
+   * seconds since the epoch, sending an error if there is no such feed.
+   * 
+   * @return the historical feed, or null if an error was sent
+   */
+  private FeedMessage getHistoricalFeed(GtfsRealtimeSource source, String at,
+      HttpServletResponse resp) throws IOException {
+    long time;
+    try {
+      time = TimeUnit.SECONDS.toMillis(Long.parseLong(at));
+    } catch (NumberFormatException ex) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid time: " + at);
+      return null;
+    }
+    FeedMessage feed = null;
+    if (source instanceof GtfsRealtimeHistorySource) {
+      feed = ((GtfsRealtimeHistorySource) source).getFeedAt(time);
     }
+    if (feed == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "no feed retained for time: " + at);
+    }
+    return feed;
+  }
+
+  /**
+   * Answers conditional requests from the feed's modification time alone,
+   * without touching the feed itself. The header timestamp alone moving
+   * forward doesn't count as a modification.
+   */
+  private boolean isNotModified(HttpServletRequest req,
+      HttpServletResponse resp, GtfsRealtimeEncodedSource source) {
+    long lastModified = source.getLastModified();
+    String etag = "\"" + Long.toHexString(lastModified) + "\"";
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", lastModified);
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*");
+    }
+    long ifModifiedSince = -1;
+    try {
+      ifModifiedSince = req.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException ex) {
+      return false;
+    }
+    // HTTP dates only have one-second resolution.
+    return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /**
+   * Hands the shared entity buffer directly to Jetty, which writes it to the
+   * socket without copying it through the response buffer. Any buffers ahead
+   * of it, such as the few hundred bytes of the feed header, are written and
+   * flushed through the response buffer first. Where the request supports it,
+   * the final write completes asynchronously, so that a slow client does not
+   * tie up a request thread while it drains.
+   * 
+   * @return true if the write completes asynchronously, in which case the
+   *         admission control response slot is released on completion
+   */
+  private boolean sendContent(HttpServletRequest req, HttpOutput out,
+      ByteBuffer[] buffers, final GtfsRealtimeAdmissionControl admissionControl)
+      throws IOException {
+    for (int i = 0; i < buffers.length - 1; ++i) {
+      byte[] data = new byte[buffers[i].remaining()];
+      buffers[i].get(data);
+      out.write(data);
+    }
+    if (buffers.length > 1) {
+      out.flush();
+    }
+    ByteBuffer buffer = buffers[buffers.length - 1];
+    if (!req.isAsyncSupported()) {
+      out.sendContent(buffer);
+      return false;
+    }
+    final AsyncContext async = req.startAsync();
+    async.setTimeout(0);
+    out.sendContent(buffer, new Callback() {
+      @Override
+      public void succeeded() {
+        complete();
+      }
+
+      @Override
+      public void failed(Throwable x) {
+        _log.debug("error sending feed to client", x);
+        complete();
+      }
+
+      private void complete() {
+        if (admissionControl != null) {
+          admissionControl.endResponse();
+        }
+        async.complete();
+      }
+    });
+    return true;
   }
 
   /****
@@ -115,30 +371,93 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
    * Protected Methods
    ****/
 
+  /**
+   * Subclasses may serve different sources for different requests, such as
+   * {@link GtfsRealtimeRegistryServlet} does.
+   * 
+   * @param req the request, which may be a WebSocket upgrade
+   * @return the source to serve, or null if there is none
+   */
+  protected GtfsRealtimeSource getSource(HttpServletRequest req) {
+    return _source;
+  }
+
   class WebsocketCreatorImpl implements WebSocketCreator {
     @Override
     public Object createWebSocket(UpgradeRequest req, UpgradeResponse resp) {
-      return new DataWebSocket();
+      GtfsRealtimeSource source = _source;
+      if (req instanceof ServletUpgradeRequest) {
+        source = (GtfsRealtimeSource) ((ServletUpgradeRequest) req).getServletAttributes().get(
+            SOURCE_ATTRIBUTE);
+      }
+      String streamId = null;
+      long since = -1;
+      if (source instanceof GtfsRealtimeResumableSource) {
+        resp.setHeader(STREAM_ID_HEADER,
+            ((GtfsRealtimeResumableSource) source).getStreamId());
+        streamId = getParameter(req, "stream");
+        String sinceValue = getParameter(req, "since");
+        if (sinceValue != null) {
+          try {
+            since = Long.parseLong(sinceValue);
+          } catch (NumberFormatException ex) {
+            streamId = null;
+          }
+        }
+      }
+      return new DataWebSocket(source, streamId, since);
+    }
+
+    private String getParameter(UpgradeRequest req, String name) {
+      String[] values = req.getParameterMap().get(name);
+      return values != null && values.length > 0 ? values[0] : null;
     }
 
   }
 
   @WebSocket
-  public class DataWebSocket implements GtfsRealtimeIncrementalListener {
+  public class DataWebSocket implements GtfsRealtimeEncodedListener {
+
+    private final GtfsRealtimeSource _source;
+
+    private final String _streamId;
+
+    private final long _since;
 
     private Session _session;
 
+    public DataWebSocket(GtfsRealtimeSource source) {
+      this(source, null, -1);
+    }
+
+    /**
+     * @param streamId the stream the client is resuming, or null to start
+     *          with a full dataset
+     * @param since the last incremental index the client applied
+     */
+    public DataWebSocket(GtfsRealtimeSource source, String streamId, long since) {
+      _source = source;
+      _streamId = streamId;
+      _since = since;
+    }
+
     @OnWebSocketConnect
     public void onOpen(Session session) {
       _log.info("client connect");
       _session = session;
-      _source.addIncrementalListener(this);
+      if (_streamId != null && _source instanceof GtfsRealtimeResumableSource) {
+        ((GtfsRealtimeResumableSource) _source).addIncrementalListener(this,
+            _streamId, _since);
+      } else {
+        _source.addIncrementalListener(this);
+      }
     }
 
     @OnWebSocketClose
     public void onClose(Session session, int closeCode, String message) {
         _session = null;
       _source.removeIncrementalListener(this);
+      GtfsRealtimeDeflateExtension.close(session);
     }
 
     /****
@@ -156,17 +475,32 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
         throw new IllegalStateException(ex);
       }
 
-      sendMessage(buffer);
+      sendMessage(ByteBuffer.wrap(buffer));
     }
 
-    private synchronized void sendMessage(byte[] buffer) {
+    /****
+     * {@link GtfsRealtimeEncodedListener} Interface
+     ****/
+
+    @Override
+    public void handleEncodedFeed(ByteBuffer feed) {
+      sendMessage(feed);
+    }
+
+    private synchronized void sendMessage(ByteBuffer buffer) {
     	Session session = _session;  // copy handle to remove synch issues
       if (session == null || !session.isOpen()) {
         return;
       }
       try {
         RemoteEndpoint remote = session.getRemote();
-        remote.sendBytes(ByteBuffer.wrap(buffer));
+        GtfsRealtimeTrace trace = GtfsRealtimeLatencyTracer.getCurrentTrace();
+        long startNanos = trace != null ? System.nanoTime() : 0;
+        remote.sendBytes(buffer);
+        if (trace != null) {
+          trace.record(GtfsRealtimeLatencyTracer.Stage.WEBSOCKET_SEND,
+              System.nanoTime() - startNanos);
+        }
       } catch (Exception ex) {
         // If anything goes wrong, we close the connection.
         _log.error("error sending message to remote WebSocket client", ex);
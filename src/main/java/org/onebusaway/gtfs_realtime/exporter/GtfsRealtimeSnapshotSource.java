@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+/**
+ * A source that can serve readers from a background snapshot rather than the
+ * live feed. The snapshot may lag the live feed by up to the snapshot rebuild
+ * interval, so it is only for readers that can tolerate that, such as HTTP
+ * clients of {@link GtfsRealtimeServlet}. In-process consumers that persist
+ * or republish the feed should use the source itself.
+ * 
+ * @author agent
+ */
+interface GtfsRealtimeSnapshotSource extends GtfsRealtimeEncodedSource {
+
+  /**
+   * @return a view of the feed as of the last completed snapshot, whose
+   *         {@link GtfsRealtimeEncodedSource#getLastModified()} is the version
+   *         of that snapshot
+   */
+  public GtfsRealtimeEncodedSource getSnapshotSource();
+}
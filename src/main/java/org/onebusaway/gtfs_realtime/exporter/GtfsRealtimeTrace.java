@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeLatencyTracer.Stage;
+
+/**
+ * The timeline of a single update, from the moment it entered an exporter's
+ * {@link GtfsRealtimeSink} until it had been delivered to every listener.
+ * Stages that happen once per listener, such as queueing and WebSocket sends,
+ * record the slowest listener, since that is when the last subscriber saw the
+ * update.
+ * 
+ * @author agent
+ */
+public final class GtfsRealtimeTrace {
+
+  private final GtfsRealtimeLatencyTracer _tracer;
+
+  private final long _startTime = System.currentTimeMillis();
+
+  private final long _startNanos = System.nanoTime();
+
+  private final AtomicLongArray _stageNanos = new AtomicLongArray(
+      Stage.values().length);
+
+  /**
+   * Deliveries still outstanding, plus one for the publisher until it has
+   * handed the update to every listener.
+   */
+  private final AtomicInteger _pending = new AtomicInteger(1);
+
+  private volatile long _incrementalIndex = -1;
+
+  private volatile long _publishNanos;
+
+  private volatile long _totalNanos = -1;
+
+  GtfsRealtimeTrace(GtfsRealtimeLatencyTracer tracer) {
+    _tracer = tracer;
+  }
+
+  /**
+   * @return the time, in milliseconds, at which the update entered the sink
+   */
+  public long getStartTime() {
+    return _startTime;
+  }
+
+  /**
+   * @return the incremental index the update was published with
+   */
+  public long getIncrementalIndex() {
+    return _incrementalIndex;
+  }
+
+  public long getStageNanos(Stage stage) {
+    return _stageNanos.get(stage.ordinal());
+  }
+
+  /**
+   * @return the time from entering the sink until the last listener had been
+   *         delivered the update, or -1 if delivery is still under way
+   */
+  public long getTotalNanos() {
+    return _totalNanos;
+  }
+
+  /**
+   * @return the time elapsed since the update entered the sink
+   */
+  public long getElapsedNanos() {
+    return System.nanoTime() - _startNanos;
+  }
+
+  /**
+   * Records time spent on the update in the specified stage.
+   */
+  public void record(Stage stage, long nanos) {
+    _tracer.getHistogram(stage).record(nanos);
+    int i = stage.ordinal();
+    if (stage.isPerListener()) {
+      long max = _stageNanos.get(i);
+      while (nanos > max && !_stageNanos.compareAndSet(i, max, nanos)) {
+        max = _stageNanos.get(i);
+      }
+    } else {
+      _stageNanos.addAndGet(i, nanos);
+    }
+  }
+
+  /**
+   * Called once the update has been queued for each of its listeners.
+   */
+  void published(long incrementalIndex, int deliveries) {
+    _incrementalIndex = incrementalIndex;
+    _publishNanos = System.nanoTime();
+    if (_pending.addAndGet(deliveries - 1) == 0) {
+      complete();
+    }
+  }
+
+  void deliveryStarted() {
+    record(Stage.QUEUEING, System.nanoTime() - _publishNanos);
+  }
+
+  /**
+   * Called by a listener, while it is being delivered the update, to keep the
+   * trace open until work it has deferred, such as a debounced file write, is
+   * done. The listener must later call {@link #deliveryCompleted()}.
+   */
+  void deliveryHeld() {
+    _pending.incrementAndGet();
+  }
+
+  void deliveryCompleted() {
+    if (_pending.decrementAndGet() == 0) {
+      complete();
+    }
+  }
+
+  private void complete() {
+    _totalNanos = getElapsedNanos();
+    _tracer.complete(this);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder();
+    b.append("index=").append(_incrementalIndex);
+    b.append(" startTime=").append(_startTime);
+    b.append(" totalMs=").append(
+        GtfsRealtimeLatencyHistogram.toMillis(_totalNanos));
+    for (Stage stage : Stage.values()) {
+      b.append(' ').append(stage.getName()).append("Ms=");
+      b.append(GtfsRealtimeLatencyHistogram.toMillis(getStageNanos(stage)));
+    }
+    return b.toString();
+  }
+}
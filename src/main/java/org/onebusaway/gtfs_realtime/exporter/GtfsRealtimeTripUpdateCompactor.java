@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
+/**
+ * A {@link GtfsRealtimeSink} that sits in front of another sink, typically the
+ * {@link TripUpdates} exporter, and prunes trip updates as they age.
+ * 
+ * Stop time updates whose time is further in the past than the stop horizon
+ * are dropped, except for the most recent of them, which consumers need in
+ * order to propagate delays to the stops that follow. Trips whose last stop
+ * time is further in the past than the trip horizon are removed altogether.
+ * Trips are compacted as they are ingested, and then again periodically,
+ * since a trip that stops receiving updates otherwise keeps its passed stops.
+ * 
+ * All updates to the downstream sink must go through the compactor, so that
+ * periodic compaction never overwrites a newer update.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeTripUpdateCompactor implements GtfsRealtimeSink {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeTripUpdateCompactor.class);
+
+  /**
+   * What we last forwarded for each trip update that is still in the feed.
+   * Trips we've removed aren't tracked, so that the map doesn't grow with
+   * every trip an incremental-only producer has ever sent.
+   */
+  private final Map<String, CompactedEntity> _entities = new HashMap<String, CompactedEntity>();
+
+  private GtfsRealtimeSink _sink;
+
+  private ScheduledExecutorService _executor;
+
+  private ScheduledFuture<?> _task;
+
+  private long _stopHorizon = TimeUnit.MINUTES.toSeconds(10);
+
+  private long _tripHorizon = TimeUnit.MINUTES.toSeconds(30);
+
+  private long _period = TimeUnit.MINUTES.toMillis(1);
+
+  private long _bytesSaved = 0;
+
+  private long _prunedStopTimeUpdates = 0;
+
+  private long _removedTrips = 0;
+
+  @Inject
+  public void setSink(@TripUpdates GtfsRealtimeSink sink) {
+    _sink = sink;
+  }
+
+  @Inject
+  public void setExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXPIRY_EXECUTOR)
+  ScheduledExecutorService executor) {
+    _executor = executor;
+  }
+
+  /**
+   * @param stopHorizonInSeconds how far in the past a stop time update must be
+   *          before it is dropped
+   */
+  public void setStopHorizon(long stopHorizonInSeconds) {
+    _stopHorizon = stopHorizonInSeconds;
+  }
+
+  /**
+   * @param tripHorizonInSeconds how far in the past a trip's last stop time
+   *          must be before the trip is removed
+   */
+  public void setTripHorizon(long tripHorizonInSeconds) {
+    _tripHorizon = tripHorizonInSeconds;
+  }
+
+  /**
+   * @param periodInMilliseconds how often all trips are compacted, or zero to
+   *          only compact on ingest
+   */
+  public void setPeriod(long periodInMilliseconds) {
+    _period = periodInMilliseconds;
+  }
+
+  /**
+   * @return how many bytes smaller the trips in the full dataset currently are
+   *         than they would be without stop time pruning; removed trips no
+   *         longer count
+   */
+  public synchronized long getBytesSaved() {
+    return _bytesSaved;
+  }
+
+  /**
+   * @return the number of stop time updates dropped so far
+   */
+  public synchronized long getPrunedStopTimeUpdates() {
+    return _prunedStopTimeUpdates;
+  }
+
+  /**
+   * @return the number of ended trips removed so far
+   */
+  public synchronized long getRemovedTrips() {
+    return _removedTrips;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (_period > 0 && _executor != null) {
+      _task = _executor.scheduleAtFixedRate(new CompactionTask(), _period,
+          _period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_task != null) {
+      _task.cancel(false);
+      _task = null;
+    }
+  }
+
+  /****
+   * {@link GtfsRealtimeSink} Interface
+   ****/
+
+  @Override
+  public void setFeedHeaderDefaults(FeedHeader header) {
+    _sink.setFeedHeaderDefaults(header);
+  }
+
+  @Override
+  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    long now = System.currentTimeMillis() / 1000;
+    _entities.clear();
+    _bytesSaved = 0;
+    GtfsRealtimeFullUpdate compacted = new GtfsRealtimeFullUpdate();
+    compacted.setIncrementalIndex(update.getIncrementalIndex());
+    for (FeedEntity entity : update.getEntities()) {
+      if (!entity.hasTripUpdate()) {
+        compacted.addEntity(entity);
+        continue;
+      }
+      FeedEntity result = compact(entity, now);
+      track(entity.getId(), entity.getSerializedSize(), result);
+      if (result != null) {
+        compacted.addEntity(result);
+      } else {
+        _removedTrips++;
+      }
+    }
+    _sink.handleFullUpdate(compacted);
+  }
+
+  @Override
+  public synchronized void handleIncrementalUpdate(
+      GtfsRealtimeIncrementalUpdate update) {
+    long now = System.currentTimeMillis() / 1000;
+    GtfsRealtimeIncrementalUpdate compacted = new GtfsRealtimeIncrementalUpdate();
+    compacted.setExpirationTime(update.getExpirationTime());
+    for (FeedEntity entity : update.getUpdatedEntities()) {
+      if (!entity.hasTripUpdate()) {
+        untrack(entity.getId());
+        compacted.addUpdatedEntity(entity);
+        continue;
+      }
+      CompactedEntity existing = _entities.get(entity.getId());
+      FeedEntity result = compact(entity, now);
+      track(entity.getId(), entity.getSerializedSize(), result);
+      if (result != null) {
+        compacted.addUpdatedEntity(result);
+      } else if (existing != null) {
+        /**
+         * Only a trip we've forwarded needs deleting, so a producer that keeps
+         * sending an ended trip doesn't cause any churn downstream.
+         */
+        _removedTrips++;
+        compacted.addDeletedEntity(entity.getId());
+      }
+    }
+    for (String id : update.getDeletedEntities()) {
+      untrack(id);
+      compacted.addDeletedEntity(id);
+    }
+    if (!compacted.getUpdatedEntities().isEmpty()
+        || !compacted.getDeletedEntities().isEmpty()) {
+      _sink.handleIncrementalUpdate(compacted);
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Re-compacts every trip we've forwarded, since stop times pass even when a
+   * trip receives no updates.
+   */
+  synchronized void compactAll() {
+    long now = System.currentTimeMillis() / 1000;
+    long bytesSavedThisPass = 0;
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (Map.Entry<String, CompactedEntity> entry : new ArrayList<Map.Entry<String, CompactedEntity>>(
+        _entities.entrySet())) {
+      FeedEntity entity = entry.getValue().getEntity();
+      FeedEntity result = compact(entity, now);
+      if (result == entity) {
+        continue;
+      }
+      track(entry.getKey(), entry.getValue().getIngestedSize(), result);
+      bytesSavedThisPass += entity.getSerializedSize();
+      if (result != null) {
+        bytesSavedThisPass -= result.getSerializedSize();
+        update.addUpdatedEntity(result);
+      } else {
+        _removedTrips++;
+        update.addDeletedEntity(entry.getKey());
+      }
+    }
+    if (!update.getUpdatedEntities().isEmpty()
+        || !update.getDeletedEntities().isEmpty()) {
+      _sink.handleIncrementalUpdate(update);
+      _log.info("compacted " + update.getUpdatedEntities().size()
+          + " trips and removed " + update.getDeletedEntities().size()
+          + ", shrinking the full dataset by " + bytesSavedThisPass
+          + " bytes; stop time pruning now saves " + _bytesSaved
+          + " bytes in total");
+    }
+  }
+
+  /**
+   * @return the compacted entity, the entity itself if there was nothing to
+   *         prune, or null if the trip has ended
+   */
+  private FeedEntity compact(FeedEntity entity, long now) {
+    TripUpdate tripUpdate = entity.getTripUpdate();
+    List<StopTimeUpdate> stopTimeUpdates = tripUpdate.getStopTimeUpdateList();
+    if (stopTimeUpdates.isEmpty()) {
+      return entity;
+    }
+    long lastTime = getTime(stopTimeUpdates.get(stopTimeUpdates.size() - 1));
+    if (lastTime > 0 && lastTime < now - _tripHorizon) {
+      return null;
+    }
+    /**
+     * Stop time updates are in stop sequence order, so everything before the
+     * most recent stop past the horizon can go.
+     */
+    int keepFrom = 0;
+    for (int i = stopTimeUpdates.size() - 1; i > 0; --i) {
+      long time = getTime(stopTimeUpdates.get(i));
+      if (time > 0 && time < now - _stopHorizon) {
+        keepFrom = i;
+        break;
+      }
+    }
+    if (keepFrom == 0) {
+      return entity;
+    }
+    _prunedStopTimeUpdates += keepFrom;
+    TripUpdate.Builder compacted = tripUpdate.toBuilder();
+    compacted.clearStopTimeUpdate();
+    compacted.addAllStopTimeUpdate(stopTimeUpdates.subList(keepFrom,
+        stopTimeUpdates.size()));
+    return entity.toBuilder().setTripUpdate(compacted).build();
+  }
+
+  /**
+   * Tracks what we forwarded for a trip, or stops tracking it if the trip was
+   * removed.
+   */
+  private void track(String id, int ingestedSize, FeedEntity result) {
+    untrack(id);
+    if (result == null) {
+      return;
+    }
+    CompactedEntity compacted = new CompactedEntity(result, ingestedSize);
+    _entities.put(id, compacted);
+    _bytesSaved += compacted.getBytesSaved();
+  }
+
+  private void untrack(String id) {
+    CompactedEntity existing = _entities.remove(id);
+    if (existing != null) {
+      _bytesSaved -= existing.getBytesSaved();
+    }
+  }
+
+  /**
+   * @return the departure time of the stop, falling back to its arrival time,
+   *         or zero if it has neither
+   */
+  private static long getTime(StopTimeUpdate stopTimeUpdate) {
+    if (stopTimeUpdate.hasDeparture() && stopTimeUpdate.getDeparture().hasTime()) {
+      return stopTimeUpdate.getDeparture().getTime();
+    }
+    if (stopTimeUpdate.hasArrival() && stopTimeUpdate.getArrival().hasTime()) {
+      return stopTimeUpdate.getArrival().getTime();
+    }
+    return 0;
+  }
+
+  private static class CompactedEntity {
+
+    private final FeedEntity _entity;
+
+    private final int _ingestedSize;
+
+    public CompactedEntity(FeedEntity entity, int ingestedSize) {
+      _entity = entity;
+      _ingestedSize = ingestedSize;
+    }
+
+    public FeedEntity getEntity() {
+      return _entity;
+    }
+
+    public int getIngestedSize() {
+      return _ingestedSize;
+    }
+
+    public int getBytesSaved() {
+      return _ingestedSize - _entity.getSerializedSize();
+    }
+  }
+
+  private class CompactionTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        compactAll();
+      } catch (RuntimeException ex) {
+        _log.warn("error compacting trip updates", ex);
+      }
+    }
+  }
+}
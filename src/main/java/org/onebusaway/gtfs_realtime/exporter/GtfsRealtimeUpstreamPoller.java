@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Polls an upstream GTFS-realtime feed and republishes it through a
+ * {@link GtfsRealtimeSink}.
+ * 
+ * Each poll is a conditional request, using the ETag and Last-Modified values
+ * from the previous response, so an unchanged upstream feed usually costs a
+ * 304 and nothing more. Servers that don't support conditional requests are
+ * caught by comparing a digest of the body, in which case the feed isn't
+ * parsed at all. Changed feeds are diffed against the previous one, and only
+ * the entities that were added, changed or removed are pushed into the sink,
+ * so WebSocket clients downstream see small differentials rather than the
+ * full feed on every poll.
+ * 
+ * The upstream feed is treated as a full dataset. Nothing is remembered about
+ * a poll until the sink has accepted its update, so an update the sink
+ * rejects is retried in full on the next poll.
+ * 
+ * Since unchanged entities aren't pushed again, a sink that expires entities,
+ * such as an exporter with cache.expire.secs set, would drop entities that
+ * stay the same upstream for longer than the expiry time. So when expiry is
+ * configured, every entity is periodically re-sent as an incremental update to
+ * refresh it. See {@link #setRefreshInterval(long)}.
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeUpstreamPoller {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeUpstreamPoller.class);
+
+  private URL _url;
+
+  private GtfsRealtimeSink _sink;
+
+  private ScheduledExecutorService _executor;
+
+  private ScheduledFuture<?> _task;
+
+  private long _period = TimeUnit.SECONDS.toMillis(30);
+
+  private int _timeout = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private String _etag;
+
+  private String _lastModified;
+
+  private byte[] _digest;
+
+  private Map<String, FeedEntity> _entities;
+
+  private long _notModifiedCount = 0;
+
+  private long _unchangedCount = 0;
+
+  private long _changedCount = 0;
+
+  private long _refreshInterval = 0;
+
+  private long _lastRefreshTime = 0;
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  public void setSink(GtfsRealtimeSink sink) {
+    _sink = sink;
+  }
+
+  @Inject
+  public void setExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXECUTOR)
+  ScheduledExecutorService executor) {
+    _executor = executor;
+  }
+
+  /**
+   * @param periodInMilliseconds the time between the end of one poll and the
+   *          start of the next
+   */
+  public void setPeriod(long periodInMilliseconds) {
+    _period = periodInMilliseconds;
+  }
+
+  /**
+   * Sets the refresh interval to half the expiry time of the sink's entities,
+   * so that each is refreshed at least once before it can expire, provided
+   * the poll period is shorter still.
+   */
+  @Inject
+  public void setCacheExpireSecs(@Named("cache.expire.secs")
+  String cacheExpireSecs) {
+    setRefreshInterval(TimeUnit.SECONDS.toMillis(Integer.parseInt(cacheExpireSecs)) / 2);
+  }
+
+  /**
+   * @param refreshIntervalInMilliseconds how often every current entity is
+   *          re-sent to the sink, even when unchanged, so that it doesn't
+   *          expire there, or zero to only send changes
+   */
+  public void setRefreshInterval(long refreshIntervalInMilliseconds) {
+    _refreshInterval = refreshIntervalInMilliseconds;
+  }
+
+  /**
+   * @param timeoutInMilliseconds the connect and read timeout for each poll
+   */
+  public void setTimeout(int timeoutInMilliseconds) {
+    _timeout = timeoutInMilliseconds;
+  }
+
+  /**
+   * @return the number of polls answered with 304 Not Modified
+   */
+  public synchronized long getNotModifiedCount() {
+    return _notModifiedCount;
+  }
+
+  /**
+   * @return the number of polls whose body was identical to the previous one
+   */
+  public synchronized long getUnchangedCount() {
+    return _unchangedCount;
+  }
+
+  /**
+   * @return the number of polls that were parsed and diffed
+   */
+  public synchronized long getChangedCount() {
+    return _changedCount;
+  }
+
+  @PostConstruct
+  public void start() {
+    _task = _executor.scheduleWithFixedDelay(new PollTask(), 0, _period,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_task != null) {
+      _task.cancel(false);
+      _task = null;
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  synchronized void poll() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+    connection.setConnectTimeout(_timeout);
+    connection.setReadTimeout(_timeout);
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    if (_etag != null) {
+      connection.setRequestProperty("If-None-Match", _etag);
+    }
+    if (_lastModified != null) {
+      connection.setRequestProperty("If-Modified-Since", _lastModified);
+    }
+    try {
+      int code = connection.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        _notModifiedCount++;
+        refreshIfDue();
+        return;
+      }
+      if (code != HttpURLConnection.HTTP_OK) {
+        throw new IOException("unexpected response from " + _url + ": " + code
+            + " " + connection.getResponseMessage());
+      }
+      InputStream in = connection.getInputStream();
+      if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+        in = new GZIPInputStream(in);
+      }
+      byte[] body;
+      try {
+        body = readFully(in);
+      } finally {
+        in.close();
+      }
+      String etag = connection.getHeaderField("ETag");
+      String lastModified = connection.getHeaderField("Last-Modified");
+
+      byte[] digest = digest(body);
+      if (Arrays.equals(digest, _digest)) {
+        _unchangedCount++;
+        _etag = etag;
+        _lastModified = lastModified;
+        refreshIfDue();
+        return;
+      }
+      FeedMessage feed = FeedMessage.parseFrom(body,
+          GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+      handleFeed(feed);
+      /**
+       * Only remember the validators and digest once the body has been read
+       * in full and the sink has accepted it, so that a truncated response or
+       * a rejected update is retried rather than treated as current.
+       */
+      _etag = etag;
+      _lastModified = lastModified;
+      _digest = digest;
+      _changedCount++;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private void handleFeed(FeedMessage feed) {
+    Map<String, FeedEntity> entities = new HashMap<String, FeedEntity>();
+    for (FeedEntity entity : feed.getEntityList()) {
+      entities.put(entity.getId(), entity);
+    }
+
+    if (_entities == null) {
+      GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+      for (FeedEntity entity : feed.getEntityList()) {
+        update.addEntity(entity);
+      }
+      _sink.handleFullUpdate(update);
+      _entities = entities;
+      _lastRefreshTime = System.currentTimeMillis();
+      return;
+    }
+
+    boolean refresh = isRefreshDue();
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (FeedEntity entity : entities.values()) {
+      if (!entity.equals(_entities.get(entity.getId()))) {
+        update.addUpdatedEntity(entity);
+      }
+    }
+    Set<String> deleted = new HashSet<String>(_entities.keySet());
+    deleted.removeAll(entities.keySet());
+    for (String id : deleted) {
+      update.addDeletedEntity(id);
+    }
+    if (refresh) {
+      // Re-send the unchanged entities along with the changes.
+      for (FeedEntity entity : entities.values()) {
+        if (entity.equals(_entities.get(entity.getId()))) {
+          update.addUpdatedEntity(entity);
+        }
+      }
+    }
+    if (!update.getUpdatedEntities().isEmpty()
+        || !update.getDeletedEntities().isEmpty()) {
+      _sink.handleIncrementalUpdate(update);
+    }
+    _entities = entities;
+    if (refresh) {
+      _lastRefreshTime = System.currentTimeMillis();
+    }
+  }
+
+  private boolean isRefreshDue() {
+    return _refreshInterval > 0 && _entities != null
+        && System.currentTimeMillis() - _lastRefreshTime >= _refreshInterval;
+  }
+
+  /**
+   * Re-sends every current entity, if a refresh is due, when the upstream feed
+   * itself hasn't changed.
+   */
+  private void refreshIfDue() {
+    if (!isRefreshDue() || _entities.isEmpty()) {
+      return;
+    }
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (FeedEntity entity : _entities.values()) {
+      update.addUpdatedEntity(entity);
+    }
+    _sink.handleIncrementalUpdate(update);
+    _lastRefreshTime = System.currentTimeMillis();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] digest(byte[] body) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(body);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private class PollTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        poll();
+      } catch (Exception ex) {
+        _log.warn("error polling upstream feed " + _url, ex);
+      }
+    }
+  }
+}
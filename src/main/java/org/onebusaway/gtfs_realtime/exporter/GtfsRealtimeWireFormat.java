@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeExtensions;
+
+/**
+ * Helpers for working directly with the GTFS-realtime wire format. Because
+ * repeated message fields may be concatenated, an encoded {@link FeedMessage}
+ * can be assembled from a separately encoded {@link FeedHeader} followed by
+ * the encoding of each {@link FeedEntity}, without building the message
+ * itself.
+ * 
+ * @author agent
+ */
+final class GtfsRealtimeWireFormat {
+
+  static final int FEED_MESSAGE_HEADER_FIELD = FeedMessage.HEADER_FIELD_NUMBER;
+
+  static final int FEED_MESSAGE_ENTITY_FIELD = FeedMessage.ENTITY_FIELD_NUMBER;
+
+  private static final int FEED_MESSAGE_ENTITY_TAG = makeTag(
+      FEED_MESSAGE_ENTITY_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+  private static final int FEED_ENTITY_ID_TAG = makeTag(
+      FeedEntity.ID_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+  private static final int FEED_ENTITY_IS_DELETED_TAG = makeTag(
+      FeedEntity.IS_DELETED_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+
+  static final ExtensionRegistry EXTENSION_REGISTRY = ExtensionRegistry.newInstance();
+
+  static {
+    GtfsRealtimeExtensions.registerExtensions(EXTENSION_REGISTRY);
+  }
+
+  private GtfsRealtimeWireFormat() {
+
+  }
+
+  /**
+   * Splits an encoded {@link FeedMessage} into its encoded entities. The
+   * header is skipped and the entities themselves are not parsed beyond their
+   * id and deletion flag.
+   * 
+   * @param feedMessage an encoded {@link FeedMessage}
+   * @return the entities of the message, in order
+   */
+  static List<EncodedEntity> scanFeedMessage(byte[] feedMessage) {
+    List<EncodedEntity> entities = new ArrayList<EncodedEntity>();
+    try {
+      CodedInputStream in = CodedInputStream.newInstance(feedMessage);
+      in.setSizeLimit(Integer.MAX_VALUE);
+      int tag = 0;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == FEED_MESSAGE_ENTITY_TAG) {
+          entities.add(scanEntity(in.readRawBytes(in.readRawVarint32())));
+        } else {
+          in.skipField(tag);
+        }
+      }
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("invalid encoded FeedMessage", ex);
+    }
+    return entities;
+  }
+
+  /**
+   * Reads just the id and deletion flag of an encoded {@link FeedEntity},
+   * skipping over the rest.
+   * 
+   * @param entity an encoded {@link FeedEntity}
+   */
+  static EncodedEntity scanEntity(byte[] entity) {
+    String id = null;
+    boolean deleted = false;
+    try {
+      CodedInputStream in = CodedInputStream.newInstance(entity);
+      int tag = 0;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == FEED_ENTITY_ID_TAG) {
+          id = in.readString();
+        } else if (tag == FEED_ENTITY_IS_DELETED_TAG) {
+          deleted = in.readBool();
+        } else {
+          in.skipField(tag);
+        }
+      }
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("invalid encoded FeedEntity", ex);
+    }
+    if (id == null) {
+      throw new IllegalArgumentException("encoded FeedEntity has no id");
+    }
+    return new EncodedEntity(id, deleted, entity);
+  }
+
+  /**
+   * @return the number of bytes needed to encode an entity of the specified
+   *         size as a {@link FeedMessage} entity field
+   */
+  static int computeEntityFieldSize(int entitySize) {
+    return CodedOutputStream.computeTagSize(FEED_MESSAGE_ENTITY_FIELD)
+        + CodedOutputStream.computeRawVarint32Size(entitySize) + entitySize;
+  }
+
+  static void writeHeader(CodedOutputStream out, FeedHeader header)
+      throws IOException {
+    out.writeMessage(FEED_MESSAGE_HEADER_FIELD, header);
+  }
+
+  static void writeEntity(CodedOutputStream out, FeedEntity entity)
+      throws IOException {
+    out.writeMessage(FEED_MESSAGE_ENTITY_FIELD, entity);
+  }
+
+  static void writeEntity(CodedOutputStream out, byte[] entity)
+      throws IOException {
+    out.writeTag(FEED_MESSAGE_ENTITY_FIELD,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    out.writeRawVarint32(entity.length);
+    out.writeRawBytes(entity);
+  }
+
+  static void writeEntity(CodedOutputStream out, ByteBuffer entity)
+      throws IOException {
+    out.writeTag(FEED_MESSAGE_ENTITY_FIELD,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    out.writeRawVarint32(entity.remaining());
+    // writeRawBytes() writes the buffer's full capacity, so trim it first.
+    out.writeRawBytes(entity.slice());
+  }
+
+  /**
+   * @return a {@link CodedOutputStream} that writes into the specified buffer,
+   *         which must have room for everything written. Call
+   *         {@link CodedOutputStream#flush()} when done.
+   */
+  static CodedOutputStream newInstance(final ByteBuffer buffer) {
+    return CodedOutputStream.newInstance(new OutputStream() {
+
+      @Override
+      public void write(int b) {
+        buffer.put((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        buffer.put(b, off, len);
+      }
+    });
+  }
+
+  /**
+   * @return a single read-only buffer holding the remaining bytes of each of
+   *         the specified buffers in turn, which are left unconsumed
+   */
+  static ByteBuffer join(ByteBuffer[] buffers) {
+    if (buffers.length == 1) {
+      return buffers[0].duplicate();
+    }
+    int size = 0;
+    for (ByteBuffer buffer : buffers) {
+      size += buffer.remaining();
+    }
+    ByteBuffer joined = ByteBuffer.allocate(size);
+    for (ByteBuffer buffer : buffers) {
+      joined.put(buffer.duplicate());
+    }
+    joined.flip();
+    return joined.asReadOnlyBuffer();
+  }
+
+  /**
+   * Mirrors WireFormat.makeTag(), which is package-private in protobuf.
+   */
+  private static int makeTag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
+  /**
+   * An encoded {@link FeedEntity} along with the fields the exporter needs in
+   * order to store it.
+   */
+  static final class EncodedEntity {
+
+    private final String _id;
+
+    private final boolean _deleted;
+
+    private final byte[] _data;
+
+    public EncodedEntity(String id, boolean deleted, byte[] data) {
+      _id = id;
+      _deleted = deleted;
+      _data = data;
+    }
+
+    public String getId() {
+      return _id;
+    }
+
+    public boolean isDeleted() {
+      return _deleted;
+    }
+
+    public byte[] getData() {
+      return _data;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class GtfsRealtimeAdmissionControlTest {
+
+  private static final long SECOND = 1000000000L;
+
+  @Test
+  public void testRateLimit() {
+    GtfsRealtimeAdmissionControl control = new GtfsRealtimeAdmissionControl();
+    control.setRequestsPerSecond(2);
+    control.setBurst(2);
+    control.start();
+
+    assertTrue(control.tryAcquire("a", 0));
+    assertTrue(control.tryAcquire("a", 0));
+    assertFalse(control.tryAcquire("a", 0));
+    // Other clients have buckets of their own.
+    assertTrue(control.tryAcquire("b", 0));
+    // Tokens refill at the configured rate, up to the burst size.
+    assertTrue(control.tryAcquire("a", SECOND / 2));
+    assertFalse(control.tryAcquire("a", SECOND / 2));
+    assertTrue(control.tryAcquire("a", 10 * SECOND));
+    assertTrue(control.tryAcquire("a", 10 * SECOND));
+    assertFalse(control.tryAcquire("a", 10 * SECOND));
+    assertEquals(3, control.getRateLimitedRequests());
+  }
+
+  @Test
+  public void testConcurrentResponses() {
+    GtfsRealtimeAdmissionControl control = new GtfsRealtimeAdmissionControl();
+    control.setMaxConcurrentResponses(1);
+    control.start();
+
+    assertTrue(control.tryBeginResponse());
+    assertFalse(control.tryBeginResponse());
+    control.endResponse();
+    assertTrue(control.tryBeginResponse());
+    assertEquals(1, control.getOverCapacityRequests());
+  }
+
+  @Test
+  public void testClientKey() {
+    GtfsRealtimeAdmissionControl control = new GtfsRealtimeAdmissionControl();
+    control.setApiKeyParameter("key");
+    control.setApiKeys(Arrays.asList("abc"));
+    control.start();
+
+    HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(req.getRemoteAddr()).thenReturn("10.0.0.1");
+    assertEquals("addr:10.0.0.1", control.getClientKey(req));
+    Mockito.when(req.getParameter("key")).thenReturn("abc");
+    assertEquals("key:abc", control.getClientKey(req));
+    Mockito.when(req.getParameter("key")).thenReturn("made-up");
+    assertEquals("addr:10.0.0.1", control.getClientKey(req));
+  }
+
+  @Test
+  public void testServletRejectsWithoutTouchingFeed() throws Exception {
+    GtfsRealtimeAdmissionControl control = new GtfsRealtimeAdmissionControl();
+    control.setRequestsPerSecond(1);
+    control.setBurst(2);
+    control.start();
+
+    GtfsRealtimeEncodedSource source = Mockito.mock(GtfsRealtimeEncodedSource.class);
+    Mockito.when(source.getLastModified()).thenReturn(0x1234L);
+    GtfsRealtimeServlet servlet = new GtfsRealtimeServlet();
+    servlet.setSource(source);
+    servlet.setAdmissionControl(control);
+
+    HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(req.getRemoteAddr()).thenReturn("10.0.0.1");
+    Mockito.when(req.getHeader("If-None-Match")).thenReturn("\"1234\"");
+    HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    servlet.doGet(req, resp);
+    Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(resp).setHeader("ETag", "\"1234\"");
+
+    resp = Mockito.mock(HttpServletResponse.class);
+    servlet.doGet(req, resp);
+    resp = Mockito.mock(HttpServletResponse.class);
+    servlet.doGet(req, resp);
+    Mockito.verify(resp).setStatus(429);
+
+    Mockito.verify(source, Mockito.never()).getEncodedFeed();
+    Mockito.verify(source, Mockito.never()).getEncodedFeedBuffers();
+    Mockito.verify(source, Mockito.never()).getFeed();
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class GtfsRealtimeAggregatorTest {
+
+  private GtfsRealtimeExporterImpl _exporter;
+
+  private GtfsRealtimeAggregator _aggregator;
+
+  @Before
+  public void setup() {
+    _exporter = new GtfsRealtimeExporterImpl();
+    _aggregator = new GtfsRealtimeAggregator();
+    _aggregator.setSink(_exporter);
+  }
+
+  @Test
+  public void testPartitions() {
+    _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v1", "v2"));
+    _aggregator.getSink("b").handleFullUpdate(createFullUpdate("v1"));
+    assertEquals(list("a:v1", "a:v2", "b:v1"), getIds(_exporter.getFeed()));
+
+    // Replacing one agency's dataset leaves the other's alone.
+    _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v2", "v3"));
+    assertEquals(list("a:v2", "a:v3", "b:v1"), getIds(_exporter.getFeed()));
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v1");
+    _aggregator.getSink("b").handleIncrementalUpdate(update);
+    assertEquals(list("a:v2", "a:v3"), getIds(_exporter.getFeed()));
+
+    _aggregator.removeSource("a");
+    assertEquals(list(), getIds(_exporter.getFeed()));
+  }
+
+  @Test
+  public void testFullUpdateOnlyPublishesChanges() {
+    GtfsRealtimeSink sink = Mockito.mock(GtfsRealtimeSink.class);
+    _aggregator.setSink(sink);
+    _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v1", "v2"));
+    _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v2", "v3"));
+
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> captor = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(sink, Mockito.times(2)).handleIncrementalUpdate(
+        captor.capture());
+    GtfsRealtimeIncrementalUpdate update = captor.getAllValues().get(1);
+    assertEquals(1, update.getUpdatedEntities().size());
+    assertEquals("a:v3", update.getUpdatedEntities().get(0).getId());
+    assertEquals(list("a:v1"), update.getDeletedEntities());
+    Mockito.verify(sink, Mockito.never()).handleFullUpdate(
+        Mockito.any(GtfsRealtimeFullUpdate.class));
+  }
+
+  @Test
+  public void testRejectedUpdateLeavesPartitionUnchanged() {
+    GtfsRealtimeSink sink = Mockito.mock(GtfsRealtimeSink.class);
+    _aggregator.setSink(sink);
+    _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v1"));
+
+    Mockito.doThrow(new GtfsRealtimeMemoryBudgetExceededException("full")).when(
+        sink).handleIncrementalUpdate(
+        Mockito.any(GtfsRealtimeIncrementalUpdate.class));
+    try {
+      _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v2"));
+      fail();
+    } catch (GtfsRealtimeMemoryBudgetExceededException ex) {
+    }
+
+    // Pushing the same update again publishes the same differential.
+    Mockito.reset(sink);
+    _aggregator.getSink("a").handleFullUpdate(createFullUpdate("v2"));
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> captor = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(sink).handleIncrementalUpdate(captor.capture());
+    assertEquals("a:v2",
+        captor.getValue().getUpdatedEntities().get(0).getId());
+    assertEquals(list("a:v1"), captor.getValue().getDeletedEntities());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    GtfsRealtimeSink sink = Mockito.mock(GtfsRealtimeSink.class);
+    _aggregator.setSink(sink);
+    _aggregator.setRefreshInterval(1);
+    GtfsRealtimeSink source = _aggregator.getSink("a");
+    source.handleFullUpdate(createFullUpdate("v1", "v2"));
+    Thread.sleep(5);
+
+    // Unchanged entities are re-published once the refresh interval is up.
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v1");
+    source.handleIncrementalUpdate(update);
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> captor = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(sink, Mockito.times(2)).handleIncrementalUpdate(
+        captor.capture());
+    GtfsRealtimeIncrementalUpdate refresh = captor.getAllValues().get(1);
+    assertEquals(1, refresh.getUpdatedEntities().size());
+    assertEquals("a:v2", refresh.getUpdatedEntities().get(0).getId());
+    assertEquals(list("a:v1"), refresh.getDeletedEntities());
+  }
+
+  @Test
+  public void testUpstreamsAreFetchedConcurrently() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0),
+        0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/hanging", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(500, -1);
+        exchange.close();
+      }
+    });
+    server.createContext("/feed", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        FeedMessage.Builder feed = FeedMessage.newBuilder();
+        feed.getHeaderBuilder().setGtfsRealtimeVersion(
+            GtfsRealtimeConstants.VERSION);
+        feed.addEntity(createFullUpdate("v1").getEntities().get(0));
+        byte[] body = feed.build().toByteArray();
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    String base = "http://localhost:" + server.getAddress().getPort();
+    try {
+      _aggregator.addUpstream("a", new URL(base + "/hanging"));
+      _aggregator.addUpstream("b", new URL(base + "/feed"));
+      // The hanging upstream doesn't hold up the other one.
+      long deadline = System.currentTimeMillis() + 5000;
+      while (_exporter.getFeed().getEntityCount() == 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(list("b:v1"), getIds(_exporter.getFeed()));
+    } finally {
+      release.countDown();
+      _aggregator.stop();
+      server.stop(0);
+    }
+  }
+
+  private static GtfsRealtimeFullUpdate createFullUpdate(String... ids) {
+    GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+    for (String id : ids) {
+      FeedEntity.Builder entity = FeedEntity.newBuilder();
+      entity.setId(id);
+      entity.setVehicle(VehiclePosition.newBuilder());
+      update.addEntity(entity.build());
+    }
+    return update;
+  }
+
+  private static List<String> getIds(FeedMessage feed) {
+    List<String> ids = new ArrayList<String>();
+    for (FeedEntity entity : feed.getEntityList()) {
+      ids.add(entity.getId());
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  private static List<String> list(String... values) {
+    List<String> list = new ArrayList<String>();
+    Collections.addAll(list, values);
+    return list;
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+public class GtfsRealtimeDeadBandFilterTest {
+
+  private GtfsRealtimeSink _sink;
+
+  private GtfsRealtimeDeadBandFilter _filter;
+
+  @Before
+  public void setup() {
+    _sink = Mockito.mock(GtfsRealtimeSink.class);
+    _filter = new GtfsRealtimeDeadBandFilter();
+    _filter.setSink(_sink);
+    _filter.setDistanceThreshold(10);
+    _filter.setBearingThreshold(15);
+  }
+
+  @Test
+  public void testFilter() {
+    update(createVehicle("v1", 47.0, -122.0, 90, VehicleStopStatus.IN_TRANSIT_TO));
+    // About 5 meters north, and a small turn.
+    update(createVehicle("v1", 47.000045, -122.0, 100, VehicleStopStatus.IN_TRANSIT_TO));
+    // About 20 meters north.
+    update(createVehicle("v1", 47.00018, -122.0, 100, VehicleStopStatus.IN_TRANSIT_TO));
+    // A sharp turn on the spot.
+    update(createVehicle("v1", 47.00018, -122.0, 180, VehicleStopStatus.IN_TRANSIT_TO));
+    // Arriving at a stop.
+    update(createVehicle("v1", 47.00018, -122.0, 180, VehicleStopStatus.STOPPED_AT));
+
+    List<GtfsRealtimeIncrementalUpdate> updates = getForwardedUpdates(4);
+    assertEquals(90, getBearing(updates.get(0)), 0.0);
+    assertEquals(100, getBearing(updates.get(1)), 0.0);
+    assertEquals(180, getBearing(updates.get(2)), 0.0);
+    assertEquals(VehicleStopStatus.STOPPED_AT,
+        updates.get(3).getUpdatedEntities().get(0).getVehicle().getCurrentStatus());
+    assertEquals(1, _filter.getSuppressedCount());
+  }
+
+  @Test
+  public void testMaxAge() {
+    _filter.setMaxAge(0);
+    update(createVehicle("v1", 47.0, -122.0, 90, VehicleStopStatus.STOPPED_AT));
+    update(createVehicle("v1", 47.0, -122.0, 90, VehicleStopStatus.STOPPED_AT));
+    getForwardedUpdates(2);
+    assertEquals(0, _filter.getSuppressedCount());
+  }
+
+  @Test
+  public void testStaleVehiclesAreEvicted() throws Exception {
+    _filter.setMaxAge(10);
+    update(createVehicle("v1", 47.0, -122.0, 90, VehicleStopStatus.STOPPED_AT));
+    update(createVehicle("v2", 47.0, -122.0, 90, VehicleStopStatus.STOPPED_AT));
+    assertEquals(2, _filter.getTrackedCount());
+    Thread.sleep(100);
+    // v1 went quiet without being deleted, and is forgotten.
+    update(createVehicle("v2", 47.0, -122.0, 90, VehicleStopStatus.STOPPED_AT));
+    assertEquals(1, _filter.getTrackedCount());
+  }
+
+  @Test
+  public void testDeletionsAreForwarded() {
+    update(createVehicle("v1", 47.0, -122.0, 90, VehicleStopStatus.STOPPED_AT));
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createVehicle("v1", 47.0, -122.0, 90,
+        VehicleStopStatus.STOPPED_AT));
+    update.addDeletedEntity("v2");
+    _filter.handleIncrementalUpdate(update);
+
+    List<GtfsRealtimeIncrementalUpdate> updates = getForwardedUpdates(2);
+    assertEquals(0, updates.get(1).getUpdatedEntities().size());
+    assertEquals("v2", updates.get(1).getDeletedEntities().get(0));
+  }
+
+  private void update(FeedEntity entity) {
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity);
+    _filter.handleIncrementalUpdate(update);
+  }
+
+  private List<GtfsRealtimeIncrementalUpdate> getForwardedUpdates(int count) {
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> captor = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(_sink, Mockito.times(count)).handleIncrementalUpdate(
+        captor.capture());
+    return captor.getAllValues();
+  }
+
+  private static double getBearing(GtfsRealtimeIncrementalUpdate update) {
+    return update.getUpdatedEntities().get(0).getVehicle().getPosition().getBearing();
+  }
+
+  private static FeedEntity createVehicle(String id, double lat, double lon,
+      float bearing, VehicleStopStatus status) {
+    Position.Builder position = Position.newBuilder();
+    position.setLatitude((float) lat);
+    position.setLongitude((float) lon);
+    position.setBearing(bearing);
+    VehiclePosition.Builder vehicle = VehiclePosition.newBuilder();
+    vehicle.setPosition(position);
+    vehicle.setCurrentStatus(status);
+    vehicle.setTimestamp(System.currentTimeMillis() / 1000);
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setId(id);
+    entity.setVehicle(vehicle);
+    return entity.build();
+  }
+}
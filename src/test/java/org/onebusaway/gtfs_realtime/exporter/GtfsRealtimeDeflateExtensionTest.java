@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionFactory;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.IncomingFrames;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class GtfsRealtimeDeflateExtensionTest {
+
+  @Test
+  public void testNegotiation() {
+    GtfsRealtimeDeflateExtension extension = new GtfsRealtimeDeflateExtension();
+    extension.setConfig(ExtensionConfig.parse("permessage-deflate; client_max_window_bits"));
+    assertEquals("permessage-deflate;server_no_context_takeover",
+        extension.getConfig().getParameterizedName());
+
+    extension = new GtfsRealtimeDeflateExtension();
+    extension.setConfig(ExtensionConfig.parse("permessage-deflate; server_max_window_bits=10"));
+    assertEquals(
+        "permessage-deflate;server_no_context_takeover;server_max_window_bits=10",
+        extension.getConfig().getParameterizedName());
+  }
+
+  @Test
+  public void testFactorySettings() {
+    WebSocketPolicy policy = WebSocketPolicy.newServerPolicy();
+    WebSocketServletFactory factory = Mockito.mock(WebSocketServletFactory.class);
+    Mockito.when(factory.getPolicy()).thenReturn(policy);
+    ExtensionFactory extensionFactory = Mockito.mock(ExtensionFactory.class);
+    Mockito.when(factory.getExtensionFactory()).thenReturn(extensionFactory);
+    GtfsRealtimeDeflateExtension.register(factory, Deflater.BEST_SPEED, true);
+
+    // Jetty sets the config before the policy.
+    GtfsRealtimeDeflateExtension extension = new GtfsRealtimeDeflateExtension();
+    extension.setConfig(ExtensionConfig.parse("permessage-deflate"));
+    extension.setPolicy(policy);
+    assertEquals("permessage-deflate",
+        extension.getConfig().getParameterizedName());
+
+    // Sessions of other factories keep the defaults.
+    extension = new GtfsRealtimeDeflateExtension();
+    extension.setConfig(ExtensionConfig.parse("permessage-deflate"));
+    extension.setPolicy(WebSocketPolicy.newServerPolicy());
+    assertEquals("permessage-deflate;server_no_context_takeover",
+        extension.getConfig().getParameterizedName());
+  }
+
+  @Test
+  public void testRoundTrip() {
+    FrameCapture capture = new FrameCapture();
+    GtfsRealtimeDeflateExtension server = createExtension(capture);
+
+    byte[] message = createMessage(4096);
+    server.outgoingFrame(createFrame(ByteBuffer.wrap(message)), null);
+    Frame compressed = capture.frames.get(0);
+    assertTrue(compressed.isRsv1());
+    assertTrue(compressed.getPayloadLength() < message.length);
+
+    FrameCapture received = new FrameCapture();
+    GtfsRealtimeDeflateExtension client = createExtension(null);
+    client.setNextIncomingFrames(received);
+    client.incomingFrame(compressed);
+    assertArrayEquals(message, getBytes(received.frames.get(0).getPayload()));
+  }
+
+  @Test
+  public void testSharedCompression() {
+    GtfsRealtimeCompressionStats stats = GtfsRealtimeDeflateExtension.getStats();
+    long shared = stats.getSharedMessages();
+
+    FrameCapture a = new FrameCapture();
+    FrameCapture b = new FrameCapture();
+    GtfsRealtimeDeflateExtension sessionA = createExtension(a);
+    GtfsRealtimeDeflateExtension sessionB = createExtension(b);
+
+    ByteBuffer message = ByteBuffer.wrap(createMessage(4096)).asReadOnlyBuffer();
+    GtfsRealtimeExporterImpl.setCurrentPublication(new Object());
+    try {
+      sessionA.outgoingFrame(createFrame(message.duplicate()), null);
+      sessionB.outgoingFrame(createFrame(message.duplicate()), null);
+    } finally {
+      GtfsRealtimeExporterImpl.setCurrentPublication(null);
+    }
+
+    assertEquals(shared + 2, stats.getSharedMessages());
+    assertEquals(a.frames.get(0).getPayload(), b.frames.get(0).getPayload());
+
+    // Outside of a delivery, nothing is shared.
+    sessionA.outgoingFrame(createFrame(message.duplicate()), null);
+    assertEquals(shared + 2, stats.getSharedMessages());
+  }
+
+  @Test
+  public void testClose() {
+    FrameCapture capture = new FrameCapture();
+    GtfsRealtimeDeflateExtension server = createExtension(capture);
+    server.outgoingFrame(createFrame(ByteBuffer.wrap(createMessage(4096))),
+        null);
+    assertTrue(capture.frames.get(0).isRsv1());
+
+    server.outgoingFrame(new WebSocketFrame(OpCode.CLOSE), null);
+
+    // Once closed, messages go out uncompressed.
+    server.outgoingFrame(createFrame(ByteBuffer.wrap(createMessage(4096))),
+        null);
+    assertFalse(capture.frames.get(2).isRsv1());
+    assertEquals(4096, capture.frames.get(2).getPayloadLength());
+  }
+
+  @Test
+  public void testSmallMessagesAreNotCompressed() {
+    FrameCapture capture = new FrameCapture();
+    GtfsRealtimeDeflateExtension server = createExtension(capture);
+    server.outgoingFrame(createFrame(ByteBuffer.wrap(createMessage(16))), null);
+    assertFalse(capture.frames.get(0).isRsv1());
+    assertEquals(16, capture.frames.get(0).getPayloadLength());
+  }
+
+  private static GtfsRealtimeDeflateExtension createExtension(
+      OutgoingFrames next) {
+    GtfsRealtimeDeflateExtension extension = new GtfsRealtimeDeflateExtension();
+    extension.setConfig(ExtensionConfig.parse("permessage-deflate"));
+    extension.setNextOutgoingFrames(next);
+    return extension;
+  }
+
+  private static WebSocketFrame createFrame(ByteBuffer payload) {
+    WebSocketFrame frame = new WebSocketFrame(OpCode.BINARY);
+    frame.setPayload(payload);
+    return frame;
+  }
+
+  private static byte[] createMessage(int size) {
+    byte[] message = new byte[size];
+    for (int i = 0; i < size; ++i) {
+      message[i] = (byte) (i % 13);
+    }
+    return message;
+  }
+
+  private static byte[] getBytes(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.duplicate().get(data);
+    return data;
+  }
+
+  private static class FrameCapture implements IncomingFrames, OutgoingFrames {
+
+    private final List<Frame> frames = new ArrayList<Frame>();
+
+    @Override
+    public void outgoingFrame(Frame frame, WriteCallback callback) {
+      frames.add(frame);
+    }
+
+    @Override
+    public void incomingFrame(Frame frame) {
+      frames.add(frame);
+    }
+
+    @Override
+    public void incomingError(WebSocketException e) {
+      throw e;
+    }
+  }
+}
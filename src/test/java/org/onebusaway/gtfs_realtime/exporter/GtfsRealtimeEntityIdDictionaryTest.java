@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GtfsRealtimeEntityIdDictionaryTest {
+
+  @Test
+  public void testInternAndRelease() {
+    GtfsRealtimeEntityIdDictionary ids = new GtfsRealtimeEntityIdDictionary();
+    int a = ids.intern("a");
+    int b = ids.intern("b");
+    assertEquals(a, ids.intern(new String("a")));
+    assertEquals(b, ids.lookup("b"));
+    assertEquals("a", ids.getId(a));
+    assertEquals(2, ids.size());
+
+    ids.release(a);
+    assertEquals(-1, ids.lookup("a"));
+    assertEquals(b, ids.lookup("b"));
+    // Released indices are recycled.
+    assertEquals(a, ids.intern("c"));
+    assertEquals(2, ids.getIndexLimit());
+  }
+
+  @Test
+  public void testChurn() {
+    GtfsRealtimeEntityIdDictionary ids = new GtfsRealtimeEntityIdDictionary();
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; ++i) {
+      String id = "v" + random.nextInt(2000);
+      if (random.nextBoolean()) {
+        int index = ids.intern(id);
+        Integer existing = expected.put(id, index);
+        if (existing != null) {
+          assertEquals(existing.intValue(), index);
+        }
+      } else {
+        Integer index = expected.remove(id);
+        assertEquals(index != null ? index.intValue() : -1, ids.lookup(id));
+        if (index != null) {
+          ids.release(index);
+        }
+      }
+    }
+    assertEquals(expected.size(), ids.size());
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      assertEquals(entry.getValue().intValue(), ids.lookup(entry.getKey()));
+      assertEquals(entry.getKey(), ids.getId(entry.getValue()));
+    }
+  }
+
+  @Test
+  public void testIdsAreInterned() {
+    GtfsRealtimeEntityIdDictionary ids = new GtfsRealtimeEntityIdDictionary();
+    String id = new String("a");
+    String copy = new String("a");
+    assertNotSame(id, copy);
+    int index = ids.intern(id);
+    ids.intern(copy);
+    assertEquals(true, id == ids.getId(index));
+  }
+}
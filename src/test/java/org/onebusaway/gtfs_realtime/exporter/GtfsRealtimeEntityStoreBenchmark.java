@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Compares heap footprint and GC time of the exporter under each
+ * {@link GtfsRealtimeEntityStore.Mode}. Not run as part of the test suite;
+ * launch it directly, ideally once per mode in a fresh JVM:
+ * 
+ * <pre>
+ * java -Xmx2g ... GtfsRealtimeEntityStoreBenchmark [mode] [entities] [stops]
+ * </pre>
+ * 
+ * @author agent
+ */
+public class GtfsRealtimeEntityStoreBenchmark {
+
+  public static void main(String[] args) {
+    int entityCount = args.length > 1 ? Integer.parseInt(args[1]) : 30000;
+    int stopCount = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+    if (args.length > 0) {
+      run(GtfsRealtimeEntityStore.Mode.valueOf(args[0].toUpperCase()),
+          entityCount, stopCount);
+    } else {
+      for (GtfsRealtimeEntityStore.Mode mode : GtfsRealtimeEntityStore.Mode.values()) {
+        run(mode, entityCount, stopCount);
+      }
+    }
+  }
+
+  private static void run(GtfsRealtimeEntityStore.Mode mode, int entityCount,
+      int stopCount) {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    long heapBefore = getUsedHeapAfterGc(memory);
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl(0, mode);
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    for (int i = 0; i < entityCount; ++i) {
+      full.addEntity(GtfsRealtimeEntityStoreTest.createTripUpdate("t" + i,
+          stopCount));
+    }
+    exporter.handleFullUpdate(full);
+    full = null;
+    long heapAfter = getUsedHeapAfterGc(memory);
+
+    long gcTimeBefore = getGcTime();
+    long start = System.nanoTime();
+    int rounds = 20;
+    for (int round = 0; round < rounds; ++round) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      for (int i = round; i < entityCount; i += 10) {
+        update.addUpdatedEntity(GtfsRealtimeEntityStoreTest.createTripUpdate(
+            "t" + i, stopCount));
+      }
+      exporter.handleIncrementalUpdate(update);
+      exporter.getEncodedFeed();
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    long gcTime = getGcTime() - gcTimeBefore;
+
+    System.out.println(mode + ": entities=" + entityCount + " heap="
+        + ((heapAfter - heapBefore) / (1024 * 1024)) + "MB elapsed="
+        + elapsed + "ms gc=" + gcTime + "ms");
+    exporter.stop();
+  }
+
+  private static long getUsedHeapAfterGc(MemoryMXBean memory) {
+    for (int i = 0; i < 3; ++i) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private static long getGcTime() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+}
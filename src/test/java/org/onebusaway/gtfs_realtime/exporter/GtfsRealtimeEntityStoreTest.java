@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
+public class GtfsRealtimeEntityStoreTest {
+
+  @Test
+  public void testObjectStore() throws IOException {
+    testStore(GtfsRealtimeEntityStore.Mode.OBJECT);
+  }
+
+  @Test
+  public void testEncodedStore() throws IOException {
+    testStore(GtfsRealtimeEntityStore.Mode.ENCODED);
+  }
+
+  @Test
+  public void testOffHeapStore() throws IOException {
+    testStore(GtfsRealtimeEntityStore.Mode.OFF_HEAP);
+  }
+
+  @Test
+  public void testEncodedFeed() throws IOException {
+    for (GtfsRealtimeEntityStore.Mode mode : GtfsRealtimeEntityStore.Mode.values()) {
+      GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl(0, mode);
+      GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+      update.addEntity(createTripUpdate("t1", 3));
+      update.addEntity(createTripUpdate("t2", 5));
+      exporter.handleFullUpdate(update);
+
+      // Streamed before anything is cached, so the entities come from the store.
+      ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+      exporter.writeFeed(streamed);
+      FeedMessage streamedFeed = FeedMessage.parseFrom(streamed.toByteArray(),
+          GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+      assertEquals(exporter.getFeed().getEntityList(),
+          streamedFeed.getEntityList());
+
+      ByteBuffer buffer = exporter.getEncodedFeed();
+      byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+      FeedMessage feed = FeedMessage.parseFrom(data,
+          GtfsRealtimeWireFormat.EXTENSION_REGISTRY);
+      assertEquals(exporter.getFeed().getHeader(), feed.getHeader());
+      assertEquals(2, feed.getEntityCount());
+      assertEquals(exporter.getFeed(), feed);
+    }
+  }
+
+  @Test
+  public void testParallelEncoding() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (GtfsRealtimeEntityStore.Mode mode : GtfsRealtimeEntityStore.Mode.values()) {
+        GtfsRealtimeEntityStore<?> store = GtfsRealtimeEntityStore.create(mode, 0);
+        for (int i = 0; i < 2000; ++i) {
+          store.put(createTripUpdate("t" + i, i % 7));
+        }
+        ByteBuffer sequential = store.encodeEntities(null, 0);
+        ByteBuffer parallel = store.encodeEntities(pool, 1000);
+        assertEquals(store.getSerializedSize(), parallel.remaining());
+        assertEquals(sequential, parallel);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testMemoryAccounting() {
+    for (GtfsRealtimeEntityStore.Mode mode : GtfsRealtimeEntityStore.Mode.values()) {
+      GtfsRealtimeEntityStore<?> store = GtfsRealtimeEntityStore.create(mode, 0);
+      FeedEntity a = createTripUpdate("a", 10);
+      FeedEntity b = createTripUpdate("b", 20);
+      store.put(a);
+      store.put(b);
+      int sizeA = GtfsRealtimeEntityStore.estimateMemorySize("a",
+          a.getSerializedSize());
+      int sizeB = GtfsRealtimeEntityStore.estimateMemorySize("b",
+          b.getSerializedSize());
+      assertEquals(sizeA, store.getMemorySize("a"));
+      assertEquals(sizeA + sizeB, getLiveMemorySize(store));
+      assertTrue(store.getMemorySize() >= sizeA + sizeB);
+
+      FeedEntity a2 = createTripUpdate("a", 1);
+      store.put(a2);
+      int sizeA2 = GtfsRealtimeEntityStore.estimateMemorySize("a",
+          a2.getSerializedSize());
+      assertEquals(sizeA2 + sizeB, getLiveMemorySize(store));
+
+      store.remove("b");
+      assertEquals(0, store.getMemorySize("b"));
+      assertEquals(sizeA2, getLiveMemorySize(store));
+      store.clear();
+      assertEquals(0, store.getMemorySize());
+    }
+  }
+
+  @Test
+  public void testOffHeapSlabCompaction() {
+    GtfsRealtimeEntityStore<?> store = GtfsRealtimeEntityStore.create(
+        GtfsRealtimeEntityStore.Mode.OFF_HEAP, 0);
+    /**
+     * Each long-lived entity lands between rewrites of the churning ones, so
+     * without compaction every slab would stay pinned.
+     */
+    for (int i = 0; i < 4000; ++i) {
+      store.put(createTripUpdate("stable-" + i, 10));
+      for (int j = 0; j < 10; ++j) {
+        store.put(createTripUpdate("churn-" + j, 40));
+      }
+    }
+    long accounted = 0;
+    for (FeedEntity entity : store.getEntities()) {
+      accounted += store.getMemorySize(entity.getId());
+    }
+    // The slabs are accounted too, but stay within about twice the live bytes.
+    assertTrue(store.getMemorySize() > accounted);
+    assertTrue(store.getMemorySize() < 2 * accounted + 1024 * 1024);
+    for (int i = 0; i < 4000; i += 100) {
+      assertEquals(createTripUpdate("stable-" + i, 10),
+          store.get("stable-" + i));
+    }
+
+    for (int i = 0; i < 4000; ++i) {
+      store.remove("stable-" + i);
+    }
+    assertTrue(store.getMemorySize() < 4 * 1024 * 1024);
+  }
+
+  @Test
+  public void testEvictOldest() {
+    GtfsRealtimeEntityStore<?> store = GtfsRealtimeEntityStore.create(
+        GtfsRealtimeEntityStore.Mode.OBJECT, 0);
+    store.setWriteOrderTracked();
+    store.put(createTripUpdate("a", 1));
+    store.put(createTripUpdate("b", 1));
+    store.put(createTripUpdate("c", 1));
+    // Rewriting an entity makes it the newest.
+    store.put(createTripUpdate("a", 2));
+    store.remove("b");
+    // Enough rewrites to compact the write log.
+    for (int i = 0; i < 100; ++i) {
+      store.put(createTripUpdate("d", i));
+    }
+
+    assertEquals("c", store.evictOldest());
+    assertEquals("a", store.evictOldest());
+    assertEquals("d", store.evictOldest());
+    assertNull(store.evictOldest());
+    assertEquals(0, store.size());
+    assertEquals(0, store.getMemorySize());
+  }
+
+  private void testStore(GtfsRealtimeEntityStore.Mode mode) throws IOException {
+    GtfsRealtimeEntityStore<?> store = GtfsRealtimeEntityStore.create(mode, 0);
+    FeedEntity a = createTripUpdate("a", 10);
+    FeedEntity b = createTripUpdate("b", 20);
+    store.put(a);
+    store.put(b);
+    assertEquals(2, store.size());
+    assertEquals(a, store.get("a"));
+    assertTrue(store.contains("b"));
+
+    FeedEntity b2 = createTripUpdate("b", 2);
+    store.put(b2);
+    assertEquals(b2, store.get("b"));
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.getHeaderBuilder().setGtfsRealtimeVersion("1.0");
+    feed.addAllEntity(store.getEntities());
+    FeedMessage message = feed.build();
+    message.writeTo(expected);
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(actual);
+    GtfsRealtimeWireFormat.writeHeader(out, message.getHeader());
+    store.writeEntities(out);
+    out.flush();
+    assertEquals(message.getSerializedSize(),
+        message.getHeader().getSerializedSize() + 2
+            + store.getSerializedSize());
+    assertEquals(message, FeedMessage.parseFrom(actual.toByteArray()));
+
+    store.remove("a");
+    assertFalse(store.contains("a"));
+    assertNull(store.get("a"));
+    store.clear();
+    assertEquals(0, store.size());
+  }
+
+  /**
+   * Off-heap stores also charge for the unused remainder of their slabs, which
+   * depends on allocation history rather than on the current entities.
+   */
+  private static long getLiveMemorySize(GtfsRealtimeEntityStore<?> store) {
+    return store.getMemorySize() - store.getStorageOverhead();
+  }
+
+  static FeedEntity createTripUpdate(String id, int stopCount) {
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setId(id);
+    TripUpdate.Builder tripUpdate = entity.getTripUpdateBuilder();
+    TripDescriptor.Builder trip = tripUpdate.getTripBuilder();
+    trip.setTripId("trip-" + id);
+    trip.setRouteId("route-" + id);
+    for (int i = 0; i < stopCount; ++i) {
+      StopTimeUpdate.Builder stopTimeUpdate = tripUpdate.addStopTimeUpdateBuilder();
+      stopTimeUpdate.setStopSequence(i);
+      stopTimeUpdate.setStopId("stop-" + i);
+      StopTimeEvent.Builder arrival = stopTimeUpdate.getArrivalBuilder();
+      arrival.setTime(1370000000L + i * 60);
+      arrival.setDelay(30);
+    }
+    return entity.build();
+  }
+}
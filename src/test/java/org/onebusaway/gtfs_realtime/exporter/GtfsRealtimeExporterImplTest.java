@@ -17,8 +17,20 @@ package org.onebusaway.gtfs_realtime.exporter;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 
 import com.google.transit.realtime.GtfsRealtimeOneBusAway;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
@@ -144,6 +156,584 @@ public class GtfsRealtimeExporterImplTest {
     }
   }
 
+  @Test
+  public void testListenerExecutor() throws InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    _exporter.setListenerExecutor(executor);
+    RecordingListener listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener);
+
+    for (int i = 0; i < 100; ++i) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      FeedEntity.Builder feedEntity = FeedEntity.newBuilder();
+      feedEntity.setId("v" + i);
+      update.addUpdatedEntity(feedEntity.build());
+      _exporter.handleIncrementalUpdate(update);
+    }
+
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    List<FeedMessage> feeds = listener.getFeeds();
+    assertEquals(101, feeds.size());
+    assertEquals(Incrementality.FULL_DATASET,
+        feeds.get(0).getHeader().getIncrementality());
+    for (int i = 1; i < feeds.size(); ++i) {
+      OneBusAwayFeedHeader obaHeader = feeds.get(i).getHeader().getExtension(
+          GtfsRealtimeOneBusAway.obaFeedHeader);
+      assertEquals(i, obaHeader.getIncrementalIndex());
+    }
+  }
+
+  @Test
+  public void testExpiredEntitiesArePublished() throws InterruptedException {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    _exporter = new GtfsRealtimeExporterImpl(1);
+    _exporter.setExpiryExecutor(executor);
+    _exporter.start();
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    FeedEntity.Builder feedEntity = FeedEntity.newBuilder();
+    feedEntity.setId("v123");
+    update.addUpdatedEntity(feedEntity.build());
+    _exporter.handleIncrementalUpdate(update);
+
+    _exporter.addIncrementalListener(_listener);
+    Thread.sleep(2500);
+    _exporter.stop();
+    executor.shutdown();
+
+    FeedMessage feed = _listener.getFeed();
+    assertEquals(Incrementality.DIFFERENTIAL,
+        feed.getHeader().getIncrementality());
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("v123", feed.getEntity(0).getId());
+    assertTrue(feed.getEntity(0).getIsDeleted());
+    assertEquals(0, _exporter.getFeed().getEntityCount());
+  }
+
+  @Test
+  public void testHeartbeat() throws InterruptedException {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    _exporter.setExpiryExecutor(executor);
+    _exporter.setIncrementalHeartbeatInterval(2);
+    _exporter.start();
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v123").build());
+    _exporter.handleIncrementalUpdate(update);
+
+    RecordingListener listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener);
+    Thread.sleep(2500);
+    _exporter.stop();
+    executor.shutdown();
+
+    List<FeedMessage> feeds = listener.getFeeds();
+    assertTrue(feeds.size() >= 2);
+    FeedMessage heartbeat = feeds.get(feeds.size() - 1);
+    assertEquals(Incrementality.DIFFERENTIAL,
+        heartbeat.getHeader().getIncrementality());
+    assertEquals(0, heartbeat.getEntityCount());
+    OneBusAwayFeedHeader obaHeader = heartbeat.getHeader().getExtension(
+        GtfsRealtimeOneBusAway.obaFeedHeader);
+    assertEquals(1, obaHeader.getIncrementalIndex());
+    assertEquals(2, obaHeader.getIncrementalHeartbeatInterval());
+  }
+
+  @Test
+  public void testBackgroundSnapshot() throws Exception {
+    ScheduledExecutorService executor = Mockito.mock(ScheduledExecutorService.class);
+    _exporter.setExpiryExecutor(executor);
+    _exporter.setIncrementalHeartbeatInterval(0);
+    _exporter.setSnapshotRebuildInterval(100);
+    _exporter.start();
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(executor).scheduleWithFixedDelay(task.capture(),
+        Mockito.eq(0L), Mockito.eq(100L), Mockito.eq(TimeUnit.MILLISECONDS));
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v123").build());
+    _exporter.handleIncrementalUpdate(update);
+
+    GtfsRealtimeEncodedSource snapshot = _exporter.getSnapshotSource();
+
+    // Nothing has been built yet, so the first read builds the snapshot.
+    assertEquals(1, snapshot.getFeed().getEntityCount());
+    task.getValue().run();
+    long lastModified = snapshot.getLastModified();
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v456").build());
+    _exporter.handleIncrementalUpdate(update);
+
+    // Snapshot readers see the last completed snapshot until the next
+    // rebuild, while the exporter itself always reads live.
+    assertEquals(1, snapshot.getFeed().getEntityCount());
+    assertEquals(lastModified, snapshot.getLastModified());
+    assertEquals(2, _exporter.getFeed().getEntityCount());
+    assertEquals(2, FeedMessage.parseFrom(getBytes(_exporter.getEncodedFeed()),
+        GtfsRealtimeWireFormat.EXTENSION_REGISTRY).getEntityCount());
+    assertTrue(_exporter.getLastModified() > lastModified);
+    task.getValue().run();
+    assertEquals(2, snapshot.getFeed().getEntityCount());
+    assertEquals(_exporter.getLastModified(), snapshot.getLastModified());
+
+    _exporter.stop();
+  }
+
+  @Test
+  public void testEncodedUpdates() throws Exception {
+    FeedMessage.Builder full = FeedMessage.newBuilder();
+    full.getHeaderBuilder().setGtfsRealtimeVersion("1.0");
+    full.addEntity(FeedEntity.newBuilder().setId("v123"));
+    full.addEntity(FeedEntity.newBuilder().setId("v456"));
+    _exporter.handleEncodedFullUpdate(full.build().toByteArray());
+
+    FeedMessage feed = _exporter.getFeed();
+    assertEquals(2, feed.getEntityCount());
+
+    EncodedListenerImpl encodedListener = new EncodedListenerImpl();
+    _exporter.addIncrementalListener(encodedListener);
+    _exporter.addIncrementalListener(_listener);
+    assertEquals(feed, _listener.getFeed());
+    assertEquals(2, FeedMessage.parseFrom(encodedListener.getFeed()).getEntityCount());
+
+    byte[] deleted = FeedEntity.newBuilder().setId("v123").setIsDeleted(true).build().toByteArray();
+    byte[] updated = FeedEntity.newBuilder().setId("v789").build().toByteArray();
+    _exporter.handleEncodedIncrementalUpdate(Arrays.asList(deleted, updated));
+
+    feed = _listener.getFeed();
+    assertEquals(Incrementality.DIFFERENTIAL,
+        feed.getHeader().getIncrementality());
+    assertEquals(2, feed.getEntityCount());
+    assertTrue(feed.getEntity(0).getIsDeleted());
+    assertEquals("v789", feed.getEntity(1).getId());
+
+    byte[] encoded = encodedListener.getFeed();
+    assertEquals(feed, FeedMessage.parseFrom(encoded,
+        GtfsRealtimeWireFormat.EXTENSION_REGISTRY));
+    // The entity bytes are forwarded unchanged, each behind a two-byte prefix.
+    int offset = encoded.length - updated.length - 2 - deleted.length;
+    assertArrayEquals(deleted,
+        Arrays.copyOfRange(encoded, offset, offset + deleted.length));
+
+    feed = _exporter.getFeed();
+    assertEquals(2, feed.getEntityCount());
+    for (FeedEntity entity : feed.getEntityList()) {
+      assertFalse(entity.getId().equals("v123"));
+    }
+  }
+
+  @Test
+  public void testHeaderRefresh() throws Exception {
+    GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+    update.addEntity(FeedEntity.newBuilder().setId("v123").build());
+    _exporter.handleFullUpdate(update);
+    long lastModified = _exporter.getLastModified();
+
+    FeedMessage feed = _exporter.getFeed();
+    FeedMessage encodedFeed = FeedMessage.parseFrom(getBytes(_exporter.getEncodedFeed()));
+    assertEquals(feed.getHeader().getTimestamp(),
+        encodedFeed.getHeader().getTimestamp());
+    ByteBuffer[] buffers = _exporter.getEncodedFeedBuffers();
+    assertEquals(2, buffers.length);
+
+    Thread.sleep(1100);
+
+    FeedMessage refreshedFeed = _exporter.getFeed();
+    assertTrue(refreshedFeed.getHeader().getTimestamp() > feed.getHeader().getTimestamp());
+    assertSame(feed.getEntity(0), refreshedFeed.getEntity(0));
+
+    FeedMessage refreshedEncodedFeed = FeedMessage.parseFrom(getBytes(_exporter.getEncodedFeed()));
+    assertEquals(refreshedFeed.getHeader().getTimestamp(),
+        refreshedEncodedFeed.getHeader().getTimestamp());
+    assertEquals(encodedFeed.getEntityList(),
+        refreshedEncodedFeed.getEntityList());
+    // Only the header is re-encoded, ahead of the same entity bytes.
+    ByteBuffer[] refreshedBuffers = _exporter.getEncodedFeedBuffers();
+    assertFalse(buffers[0].equals(refreshedBuffers[0]));
+    assertEquals(buffers[1], refreshedBuffers[1]);
+    assertEquals(lastModified, _exporter.getLastModified());
+
+    _exporter.handleIncrementalUpdate(new GtfsRealtimeIncrementalUpdate());
+    assertTrue(_exporter.getLastModified() > lastModified);
+  }
+
+  @Test
+  public void testHistory() {
+    _exporter.setHistoryRetention(3600);
+
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    full.addEntity(FeedEntity.newBuilder().setId("v1").build());
+    _exporter.handleFullUpdate(full);
+    long t1 = _exporter.getLastModified();
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v2").build());
+    _exporter.handleIncrementalUpdate(update);
+    long t2 = _exporter.getLastModified();
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v1");
+    _exporter.handleIncrementalUpdate(update);
+    long t3 = _exporter.getLastModified();
+
+    FeedMessage feed = _exporter.getFeedAt(t1);
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("v1", feed.getEntity(0).getId());
+    assertEquals(1, feed.getHeader().getExtension(
+        GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex());
+    assertEquals(2, _exporter.getFeedAt(t2).getEntityCount());
+    feed = _exporter.getFeedAt(t3);
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("v2", feed.getEntity(0).getId());
+    assertEquals(3, feed.getHeader().getExtension(
+        GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex());
+
+    assertNull(_exporter.getFeedAt(t1 - 1));
+    assertNull(_exporter.getFeedAt(t1 - TimeUnit.HOURS.toMillis(2)));
+
+    // Versions beyond the maximum are evicted, oldest first.
+    _exporter.setHistoryMaxVersions(2);
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v3").build());
+    _exporter.handleIncrementalUpdate(update);
+    assertNull(_exporter.getFeedAt(t2));
+    assertEquals(1, _exporter.getFeedAt(t3).getEntityCount());
+    assertEquals(2, _exporter.getFeedAt(System.currentTimeMillis() + 1000).getEntityCount());
+  }
+
+  @Test
+  public void testResume() {
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    full.addEntity(FeedEntity.newBuilder().setId("v1").build());
+    _exporter.handleFullUpdate(full);
+    for (String id : Arrays.asList("v2", "v3")) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      update.addUpdatedEntity(FeedEntity.newBuilder().setId(id).build());
+      _exporter.handleIncrementalUpdate(update);
+    }
+    String streamId = _exporter.getStreamId();
+
+    // Only the differentials after the listener's index are sent.
+    RecordingListener listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener, streamId, 1);
+    List<FeedMessage> feeds = listener.getFeeds();
+    assertEquals(2, feeds.size());
+    assertEquals(Incrementality.DIFFERENTIAL,
+        feeds.get(0).getHeader().getIncrementality());
+    assertEquals("v2", feeds.get(0).getEntity(0).getId());
+    assertEquals("v3", feeds.get(1).getEntity(0).getId());
+
+    listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener, streamId, 3);
+    assertEquals(0, listener.getFeeds().size());
+
+    // A different stream, or an index from before the full dataset, starts
+    // over with a full dataset.
+    listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener, "another-stream", 1);
+    assertEquals(Incrementality.FULL_DATASET,
+        listener.getFeeds().get(0).getHeader().getIncrementality());
+    listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener, streamId, 0);
+    assertEquals(Incrementality.FULL_DATASET,
+        listener.getFeeds().get(0).getHeader().getIncrementality());
+
+    // Differentials that fall out of the window can't be resumed from.
+    _exporter.setResumeWindow(1);
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v1");
+    _exporter.handleIncrementalUpdate(update);
+    listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener, streamId, 2);
+    assertEquals(Incrementality.FULL_DATASET,
+        listener.getFeeds().get(0).getHeader().getIncrementality());
+    listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener, streamId, 3);
+    assertEquals(1, listener.getFeeds().size());
+    assertTrue(listener.getFeeds().get(0).getEntity(0).getIsDeleted());
+  }
+
+  @Test
+  public void testNewListenersAreNotSentFeedsUnderLock() {
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    full.addEntity(FeedEntity.newBuilder().setId("v1").build());
+    _exporter.handleFullUpdate(full);
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v2").build());
+    _exporter.handleIncrementalUpdate(update);
+
+    final List<Boolean> heldLock = new ArrayList<Boolean>();
+    GtfsRealtimeIncrementalListener listener = new GtfsRealtimeIncrementalListener() {
+      @Override
+      public void handleFeed(FeedMessage feed) {
+        heldLock.add(Thread.holdsLock(_exporter));
+      }
+    };
+    _exporter.addIncrementalListener(listener);
+    _exporter.addIncrementalListener(listener, _exporter.getStreamId(), 1);
+    _exporter.addIncrementalListener(listener, "another-stream", 1);
+    assertEquals(Arrays.asList(false, false, false), heldLock);
+  }
+
+  @Test
+  public void testLatencyTracing() {
+    GtfsRealtimeLatencyTracer tracer = new GtfsRealtimeLatencyTracer();
+    _exporter.setLatencyTracer(tracer);
+    _exporter.addIncrementalListener(_listener);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v1").build());
+    _exporter.handleIncrementalUpdate(update);
+    assertEquals(0, tracer.getEndToEndHistogram().getCount());
+
+    tracer.setEnabled(true);
+    final List<GtfsRealtimeTrace> delivered = new ArrayList<GtfsRealtimeTrace>();
+    _exporter.addIncrementalListener(new GtfsRealtimeIncrementalListener() {
+      @Override
+      public void handleFeed(FeedMessage feed) {
+        delivered.add(GtfsRealtimeLatencyTracer.getCurrentTrace());
+      }
+    });
+    _exporter.handleIncrementalUpdate(update);
+    _exporter.getFeed();
+
+    assertEquals(2, delivered.size());
+    // The initial full dataset isn't traced.
+    assertNull(delivered.get(0));
+    GtfsRealtimeTrace trace = delivered.get(1);
+    assertNull(GtfsRealtimeLatencyTracer.getCurrentTrace());
+
+    assertEquals(1, tracer.getEndToEndHistogram().getCount());
+    assertEquals(2, trace.getIncrementalIndex());
+    assertTrue(trace.getTotalNanos() >= 0);
+    assertEquals(1,
+        tracer.getHistogram(GtfsRealtimeLatencyTracer.Stage.STORE_APPLY).getCount());
+    assertEquals(1,
+        tracer.getHistogram(GtfsRealtimeLatencyTracer.Stage.ENCODING).getCount());
+    assertEquals(2,
+        tracer.getHistogram(GtfsRealtimeLatencyTracer.Stage.QUEUEING).getCount());
+    assertEquals(1,
+        tracer.getHistogram(GtfsRealtimeLatencyTracer.Stage.SNAPSHOT_BUILD).getCount());
+    assertEquals(Arrays.asList(trace), tracer.getSlowestTraces());
+
+    // With no listeners, a trace completes as soon as it's published.
+    _exporter = new GtfsRealtimeExporterImpl();
+    _exporter.setLatencyTracer(tracer);
+    _exporter.handleIncrementalUpdate(update);
+    assertEquals(2, tracer.getEndToEndHistogram().getCount());
+  }
+
+  @Test
+  public void testMemoryBudgetReject() {
+    long entitySize = GtfsRealtimeEntityStore.estimateMemorySize("v1",
+        FeedEntity.newBuilder().setId("v1").build().getSerializedSize());
+    _exporter.setMemoryBudget(entitySize * 2);
+    _exporter.addIncrementalListener(_listener);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v1").build());
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v2").build());
+    _exporter.handleIncrementalUpdate(update);
+    assertEquals(entitySize * 2, _exporter.getMemorySize());
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v3").build());
+    try {
+      _exporter.handleIncrementalUpdate(update);
+      fail();
+    } catch (GtfsRealtimeMemoryBudgetExceededException ex) {
+    }
+    assertEquals(1, _exporter.getRejectedUpdates());
+    assertEquals(2, _exporter.getFeed().getEntityCount());
+    // Listeners never saw the rejected update.
+    assertEquals(2, _listener.getFeed().getEntityCount());
+
+    // Replacing or deleting entities is still allowed.
+    update.addDeletedEntity("v1");
+    _exporter.handleIncrementalUpdate(update);
+    assertEquals(2, _exporter.getFeed().getEntityCount());
+
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    for (int i = 0; i < 3; ++i) {
+      full.addEntity(FeedEntity.newBuilder().setId("v" + i).build());
+    }
+    try {
+      _exporter.handleFullUpdate(full);
+      fail();
+    } catch (GtfsRealtimeMemoryBudgetExceededException ex) {
+    }
+    assertEquals(2, _exporter.getFeed().getEntityCount());
+  }
+
+  @Test
+  public void testMemoryBudgetEvictOldest() throws Exception {
+    long entitySize = GtfsRealtimeEntityStore.estimateMemorySize("v1",
+        FeedEntity.newBuilder().setId("v1").build().getSerializedSize());
+    _exporter.setMemoryPolicy(GtfsRealtimeExporterImpl.MemoryPolicy.EVICT_OLDEST);
+    _exporter.setMemoryBudget(entitySize * 2);
+    RecordingListener listener = new RecordingListener();
+    _exporter.addIncrementalListener(listener);
+
+    for (int i = 1; i <= 3; ++i) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      update.addUpdatedEntity(FeedEntity.newBuilder().setId("v" + i).build());
+      _exporter.handleIncrementalUpdate(update);
+    }
+    assertEquals(1, _exporter.getEvictedEntities());
+    assertEquals(entitySize * 2, _exporter.getMemorySize());
+    FeedMessage feed = _exporter.getFeed();
+    assertEquals(2, feed.getEntityCount());
+    assertEquals("v2", feed.getEntity(0).getId());
+
+    FeedMessage differential = listener.getFeeds().get(3);
+    assertEquals(2, differential.getEntityCount());
+    assertEquals("v3", differential.getEntity(0).getId());
+    assertEquals("v1", differential.getEntity(1).getId());
+    assertTrue(differential.getEntity(1).getIsDeleted());
+
+    // Encoded updates get deletions too, including for their own entities.
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (int i = 4; i <= 6; ++i) {
+      update.addUpdatedEntity(FeedEntity.newBuilder().setId("v" + i).build());
+    }
+    FeedMessage.Builder encoded = FeedMessage.newBuilder();
+    encoded.getHeaderBuilder().setGtfsRealtimeVersion("1.0");
+    encoded.addAllEntity(update.getUpdatedEntities());
+    _exporter.handleEncodedIncrementalUpdate(encoded.build().toByteArray());
+    differential = listener.getFeeds().get(4);
+    List<String> deleted = new ArrayList<String>();
+    List<String> updated = new ArrayList<String>();
+    for (FeedEntity entity : differential.getEntityList()) {
+      (entity.getIsDeleted() ? deleted : updated).add(entity.getId());
+    }
+    assertEquals(Arrays.asList("v5", "v6"), updated);
+    assertEquals(Arrays.asList("v2", "v3", "v4"), deleted);
+    assertEquals(2, _exporter.getFeed().getEntityCount());
+
+    // A full dataset keeps the entities that come last.
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    for (int i = 1; i <= 3; ++i) {
+      full.addEntity(FeedEntity.newBuilder().setId("v" + i).build());
+    }
+    _exporter.handleFullUpdate(full);
+    feed = _exporter.getFeed();
+    assertEquals(2, feed.getEntityCount());
+    assertEquals("v2", feed.getEntity(0).getId());
+  }
+
+  @Test
+  public void testMemoryBudgetCoversRetainedMemory() {
+    long entitySize = GtfsRealtimeEntityStore.estimateMemorySize("v1",
+        FeedEntity.newBuilder().setId("v1").build().getSerializedSize());
+    _exporter.setHistoryRetention(3600);
+    _exporter.setMemoryBudget(entitySize * 4);
+
+    for (int i = 1; i <= 3; ++i) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      update.addUpdatedEntity(FeedEntity.newBuilder().setId("v" + i).build());
+      _exporter.handleIncrementalUpdate(update);
+    }
+    // The differentials retained for resuming listeners are accounted too.
+    assertTrue(_exporter.getMemorySize() > entitySize * 3);
+
+    // The replaced entities are kept alive by history, which gives way, along
+    // with the retained differentials, rather than exceed the budget.
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (int i = 1; i <= 3; ++i) {
+      update.addUpdatedEntity(FeedEntity.newBuilder().setId("v" + i).build());
+    }
+    _exporter.handleIncrementalUpdate(update);
+    assertTrue(_exporter.getMemorySize() <= entitySize * 4);
+
+    // And it gives way to new entities, rather than have them rejected.
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v4").build());
+    _exporter.handleIncrementalUpdate(update);
+    assertEquals(4, _exporter.getFeed().getEntityCount());
+    assertEquals(entitySize * 4, _exporter.getMemorySize());
+
+    // An encoded feed that doesn't fit alongside the entities isn't cached.
+    assertTrue(_exporter.getEncodedFeed().remaining() > 0);
+    assertEquals(entitySize * 4, _exporter.getMemorySize());
+  }
+
+  @Test
+  public void testMemoryBudgetBlock() throws Exception {
+    long entitySize = GtfsRealtimeEntityStore.estimateMemorySize("v1",
+        FeedEntity.newBuilder().setId("v1").build().getSerializedSize());
+    _exporter.setMemoryPolicy(GtfsRealtimeExporterImpl.MemoryPolicy.BLOCK);
+    _exporter.setMemoryBudget(entitySize);
+    _exporter.setMemoryBlockTimeout(50);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v1").build());
+    _exporter.handleIncrementalUpdate(update);
+
+    final GtfsRealtimeIncrementalUpdate blocked = new GtfsRealtimeIncrementalUpdate();
+    blocked.addUpdatedEntity(FeedEntity.newBuilder().setId("v2").build());
+    long start = System.currentTimeMillis();
+    try {
+      _exporter.handleIncrementalUpdate(blocked);
+      fail();
+    } catch (GtfsRealtimeMemoryBudgetExceededException ex) {
+    }
+    assertTrue(System.currentTimeMillis() - start >= 50);
+
+    _exporter.setMemoryBlockTimeout(10000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> future = executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          _exporter.handleIncrementalUpdate(blocked);
+        }
+      });
+      Thread.sleep(100);
+      assertFalse(future.isDone());
+
+      GtfsRealtimeIncrementalUpdate delete = new GtfsRealtimeIncrementalUpdate();
+      delete.addDeletedEntity("v1");
+      _exporter.handleIncrementalUpdate(delete);
+      future.get(5, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    FeedMessage feed = _exporter.getFeed();
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("v2", feed.getEntity(0).getId());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEncodedEntityWithoutId() {
+    _exporter.handleEncodedIncrementalUpdate(Arrays.asList(FeedEntity.newBuilder().setIsDeleted(
+        true).buildPartial().toByteArray()));
+  }
+
+  private static byte[] getBytes(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+
+  private static class RecordingListener implements
+      GtfsRealtimeIncrementalListener {
+
+    private List<FeedMessage> _feeds = new ArrayList<FeedMessage>();
+
+    public synchronized List<FeedMessage> getFeeds() {
+      return new ArrayList<FeedMessage>(_feeds);
+    }
+
+    @Override
+    public synchronized void handleFeed(FeedMessage feed) {
+      _feeds.add(feed);
+    }
+  }
+
   private static class ListenerImpl implements GtfsRealtimeIncrementalListener {
 
     private FeedMessage _feed;
@@ -157,4 +747,25 @@ public class GtfsRealtimeExporterImplTest {
       _feed = feed;
     }
   }
+
+  private static class EncodedListenerImpl implements
+      GtfsRealtimeEncodedListener {
+
+    private byte[] _feed;
+
+    public byte[] getFeed() {
+      return _feed;
+    }
+
+    @Override
+    public void handleFeed(FeedMessage feed) {
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public void handleEncodedFeed(ByteBuffer feed) {
+      _feed = new byte[feed.remaining()];
+      feed.get(_feed);
+    }
+  }
 }
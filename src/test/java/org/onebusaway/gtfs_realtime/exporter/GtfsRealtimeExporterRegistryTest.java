@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+public class GtfsRealtimeExporterRegistryTest {
+
+  private ScheduledExecutorService _executor;
+
+  private GtfsRealtimeExporterRegistry _registry;
+
+  @Before
+  public void setup() {
+    _executor = Executors.newSingleThreadScheduledExecutor();
+    _registry = new GtfsRealtimeExporterRegistry();
+    _registry.setExpiryExecutor(_executor);
+    _registry.setFileExecutor(_executor);
+  }
+
+  @After
+  public void teardown() {
+    _registry.stop();
+    _executor.shutdown();
+  }
+
+  @Test
+  public void testExporters() {
+    GtfsRealtimeExporter a = _registry.createExporter("agency-a");
+    GtfsRealtimeExporter b = _registry.createExporter("agency-b");
+    assertSame(a, _registry.getExporter("agency-a"));
+    assertSame(b, _registry.getExporter("agency-b"));
+    assertEquals(2, _registry.getExporterNames().size());
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v123").build());
+    a.handleIncrementalUpdate(update);
+    assertEquals(1, a.getFeed().getEntityCount());
+    assertEquals(0, b.getFeed().getEntityCount());
+
+    assertTrue(_registry.removeExporter("agency-a"));
+    assertFalse(_registry.removeExporter("agency-a"));
+    assertNull(_registry.getExporter("agency-a"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateName() {
+    _registry.createExporter("agency-a");
+    _registry.createExporter("agency-a");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidName() {
+    _registry.createExporter("agency/a");
+  }
+
+  @Test
+  public void testExporterName() {
+    assertEquals("agency-a", GtfsRealtimeRegistryServlet.getExporterName("/agency-a"));
+    assertEquals("agency-a", GtfsRealtimeRegistryServlet.getExporterName("/agency-a/"));
+    assertNull(GtfsRealtimeRegistryServlet.getExporterName("/"));
+    assertNull(GtfsRealtimeRegistryServlet.getExporterName(null));
+  }
+
+  @Test
+  public void testRouting() throws Exception {
+    GtfsRealtimeExporter a = _registry.createExporter("agency-a");
+    _registry.createExporter("agency-b");
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v123").build());
+    a.handleIncrementalUpdate(update);
+
+    GtfsRealtimeRegistryServlet servlet = new GtfsRealtimeRegistryServlet();
+    servlet.setRegistry(_registry);
+
+    assertTrue(getDebugOutput(servlet, "/agency-a").contains("v123"));
+    assertFalse(getDebugOutput(servlet, "/agency-b").contains("v123"));
+
+    HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(req.getPathInfo()).thenReturn("/agency-c");
+    HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    servlet.doGet(req, resp);
+    Mockito.verify(resp).sendError(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test
+  public void testHistoricalFeed() throws Exception {
+    _registry.setHistoryRetentionSecs("3600");
+    GtfsRealtimeExporter a = _registry.createExporter("agency-a");
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("v123").build());
+    a.handleIncrementalUpdate(update);
+    String now = Long.toString(System.currentTimeMillis() / 1000 + 1);
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v123");
+    Thread.sleep(1100);
+    a.handleIncrementalUpdate(update);
+
+    GtfsRealtimeRegistryServlet servlet = new GtfsRealtimeRegistryServlet();
+    servlet.setRegistry(_registry);
+    assertTrue(getDebugOutput(servlet, "/agency-a", now).contains("v123"));
+    assertFalse(getDebugOutput(servlet, "/agency-a").contains("v123"));
+
+    HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(req.getPathInfo()).thenReturn("/agency-a");
+    Mockito.when(req.getParameter("at")).thenReturn("0");
+    HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    servlet.doGet(req, resp);
+    Mockito.verify(resp).sendError(Mockito.eq(HttpServletResponse.SC_NOT_FOUND),
+        Mockito.anyString());
+  }
+
+  private static String getDebugOutput(GtfsRealtimeServlet servlet,
+      String pathInfo) throws Exception {
+    return getDebugOutput(servlet, pathInfo, null);
+  }
+
+  private static String getDebugOutput(GtfsRealtimeServlet servlet,
+      String pathInfo, String at) throws Exception {
+    HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(req.getPathInfo()).thenReturn(pathInfo);
+    Mockito.when(req.getParameter("at")).thenReturn(at);
+    Mockito.when(req.getParameter("debug")).thenReturn("true");
+    HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    StringWriter out = new StringWriter();
+    Mockito.when(resp.getWriter()).thenReturn(new PrintWriter(out));
+    servlet.doGet(req, resp);
+    return out.toString();
+  }
+}
@@ -16,12 +16,15 @@
 package org.onebusaway.gtfs_realtime.exporter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -30,6 +33,7 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
@@ -64,12 +68,9 @@ public class GtfsRealtimeFileWriterTest {
 
   @Test
   public void test() throws IOException {
-    ArgumentCaptor<Runnable> captureRunnable = ArgumentCaptor.forClass(Runnable.class);
-    Mockito.when(
-        _executor.scheduleAtFixedRate(captureRunnable.capture(),
-            Mockito.eq(0L), Mockito.eq(5L), Mockito.eq(TimeUnit.SECONDS))).thenReturn(
-        null);
+    ArgumentCaptor<GtfsRealtimeIncrementalListener> captureListener = ArgumentCaptor.forClass(GtfsRealtimeIncrementalListener.class);
     _writer.start();
+    Mockito.verify(_source).addIncrementalListener(captureListener.capture());
 
     FeedMessage.Builder feed = FeedMessage.newBuilder();
     FeedHeader.Builder header = feed.getHeaderBuilder();
@@ -79,6 +80,16 @@ public class GtfsRealtimeFileWriterTest {
 
     Mockito.when(_source.getFeed()).thenReturn(feed.build());
 
+    GtfsRealtimeIncrementalListener listener = captureListener.getValue();
+    listener.handleFeed(feed.build());
+    listener.handleFeed(feed.build());
+
+    ArgumentCaptor<Runnable> captureRunnable = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(_executor, Mockito.times(1)).schedule(
+        captureRunnable.capture(), Mockito.eq(100L),
+        Mockito.eq(TimeUnit.MILLISECONDS));
+    assertFalse(_path.exists());
+
     Runnable writerTask = captureRunnable.getValue();
     writerTask.run();
 
@@ -87,5 +98,163 @@ public class GtfsRealtimeFileWriterTest {
     InputStream in = new FileInputStream(_path);
     FeedMessage actualFeed = FeedMessage.parseFrom(in);
     assertEquals(header.getTimestamp(), actualFeed.getHeader().getTimestamp());
+
+    /**
+     * The next write should be held back until the minimum interval since the
+     * previous write has passed.
+     */
+    listener.handleFeed(feed.build());
+    ArgumentCaptor<Long> captureDelay = ArgumentCaptor.forClass(Long.class);
+    Mockito.verify(_executor, Mockito.times(2)).schedule(
+        Mockito.any(Runnable.class), captureDelay.capture(),
+        Mockito.eq(TimeUnit.MILLISECONDS));
+    assertTrue(captureDelay.getValue() > 100L);
+    assertTrue(captureDelay.getValue() <= 1000L);
+
+    _writer.stop();
+    Mockito.verify(_source).removeIncrementalListener(listener);
+  }
+
+  @Test
+  public void testTraceIsHeldUntilFileWrite() throws IOException {
+    ArgumentCaptor<GtfsRealtimeIncrementalListener> captureListener = ArgumentCaptor.forClass(GtfsRealtimeIncrementalListener.class);
+    _writer.start();
+    Mockito.verify(_source).addIncrementalListener(captureListener.capture());
+
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    FeedHeader.Builder header = feed.getHeaderBuilder();
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    Mockito.when(_source.getFeed()).thenReturn(feed.build());
+
+    GtfsRealtimeLatencyTracer tracer = new GtfsRealtimeLatencyTracer();
+    tracer.setEnabled(true);
+    GtfsRealtimeTrace trace = tracer.startTrace();
+    trace.published(1, 1);
+
+    GtfsRealtimeLatencyTracer.setCurrentTrace(trace);
+    try {
+      captureListener.getValue().handleFeed(feed.build());
+    } finally {
+      GtfsRealtimeLatencyTracer.setCurrentTrace(null);
+    }
+    trace.deliveryCompleted();
+    assertEquals(-1, trace.getTotalNanos());
+
+    ArgumentCaptor<Runnable> captureRunnable = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(_executor).schedule(captureRunnable.capture(),
+        Mockito.anyLong(), Mockito.eq(TimeUnit.MILLISECONDS));
+    captureRunnable.getValue().run();
+
+    assertTrue(trace.getTotalNanos() >= trace.getStageNanos(GtfsRealtimeLatencyTracer.Stage.FILE_WRITE));
+    assertEquals(1, tracer.getEndToEndHistogram().getCount());
+    _writer.stop();
+  }
+
+  @Test
+  public void testMemoryMapped() throws IOException {
+    _writer.setMemoryMapped(true);
+    _writer.start();
+
+    GtfsRealtimeMappedFileReader reader = new GtfsRealtimeMappedFileReader();
+    reader.setPath(_path);
+    reader.start();
+    assertEquals(0, reader.getSequence());
+    assertNull(reader.readFeed());
+
+    Mockito.when(_source.getFeed()).thenReturn(createFeed(1));
+    _writer.writeMessageToFile();
+    assertEquals(1, reader.getSequence());
+    assertEquals(1, reader.readFeed().getEntityCount());
+
+    // A larger feed moves its slot to a new region, which the reader remaps.
+    Mockito.when(_source.getFeed()).thenReturn(createFeed(100));
+    _writer.writeMessageToFile();
+    assertEquals(2, reader.getSequence());
+    assertEquals(100, reader.readFeed().getEntityCount());
+
+    Mockito.when(_source.getFeed()).thenReturn(createFeed(2));
+    _writer.writeMessageToFile();
+    assertEquals(3, reader.getSequence());
+    assertEquals(2, reader.readFeed().getEntityCount());
+    assertNull(reader.getEncodedFeed(2));
+
+    // A restarted writer carries on from the published sequence.
+    _writer.stop();
+    _writer.start();
+    _writer.writeMessageToFile();
+    assertEquals(4, reader.getSequence());
+    assertEquals(2, reader.readFeed().getEntityCount());
+
+    reader.stop();
+    _writer.stop();
+  }
+
+  @Test(expected = IOException.class)
+  public void testMemoryMappedReadAttemptsAreBounded() throws IOException {
+    _writer.setMemoryMapped(true);
+    _writer.start();
+    Mockito.when(_source.getFeed()).thenReturn(createFeed(1));
+    _writer.writeMessageToFile();
+    _writer.stop();
+
+    // Point the published slot past the end of the file, so it never reads.
+    RandomAccessFile file = new RandomAccessFile(_path, "rw");
+    file.seek(GtfsRealtimeMappedFileReader.SLOT_OFFSET
+        + GtfsRealtimeMappedFileReader.SLOT_HEADER_SIZE);
+    file.writeLong(Integer.MAX_VALUE);
+    file.close();
+
+    GtfsRealtimeMappedFileReader reader = new GtfsRealtimeMappedFileReader();
+    reader.setPath(_path);
+    reader.setMaxReadAttempts(3);
+    reader.start();
+    try {
+      reader.readFeed();
+    } finally {
+      reader.stop();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMemoryMappedTornReadIsDetected() throws IOException {
+    _writer.setMemoryMapped(true);
+    _writer.start();
+    Mockito.when(_source.getFeed()).thenReturn(createFeed(10));
+    _writer.writeMessageToFile();
+    _writer.stop();
+
+    // Change a byte of the published slot, as a concurrent write might.
+    RandomAccessFile file = new RandomAccessFile(_path, "rw");
+    file.seek(GtfsRealtimeMappedFileReader.SLOT_OFFSET
+        + GtfsRealtimeMappedFileReader.SLOT_HEADER_SIZE);
+    long offset = file.readLong();
+    file.seek(offset + 10);
+    int b = file.read();
+    file.seek(offset + 10);
+    file.write(b ^ 0xff);
+    file.close();
+
+    GtfsRealtimeMappedFileReader reader = new GtfsRealtimeMappedFileReader();
+    reader.setPath(_path);
+    reader.setMaxReadAttempts(3);
+    reader.start();
+    try {
+      reader.readFeed();
+    } finally {
+      reader.stop();
+    }
+  }
+
+  private static FeedMessage createFeed(int entityCount) {
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    FeedHeader.Builder header = feed.getHeaderBuilder();
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    for (int i = 0; i < entityCount; ++i) {
+      FeedEntity.Builder entity = feed.addEntityBuilder();
+      entity.setId("entity-" + i);
+    }
+    return feed.build();
   }
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway.OneBusAwayFeedHeader;
+
+public class GtfsRealtimeFollowerTest {
+
+  private GtfsRealtimeExporterImpl _leader;
+
+  private GtfsRealtimeExporterImpl _local;
+
+  private GtfsRealtimeFollower _follower;
+
+  @Before
+  public void setup() throws Exception {
+    _leader = new GtfsRealtimeExporterImpl();
+    _local = new GtfsRealtimeExporterImpl();
+
+    GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+    update.addEntity(createEntity("v123"));
+    _leader.handleFullUpdate(update);
+
+    _follower = new GtfsRealtimeFollower();
+    _follower.setLeader(_leader);
+    _follower.setSink(_local);
+    _follower.start();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    _follower.stop();
+  }
+
+  @Test
+  public void testReplication() {
+    FeedMessage feed = _local.getFeed();
+    assertEquals(1, getIncrementalIndex(feed));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("v123", feed.getEntity(0).getId());
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createEntity("v456"));
+    update.addDeletedEntity("v123");
+    _leader.handleIncrementalUpdate(update);
+
+    feed = _local.getFeed();
+    assertEquals(2, getIncrementalIndex(feed));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("v456", feed.getEntity(0).getId());
+    assertEquals(2, _follower.getIncrementalIndex());
+  }
+
+  @Test
+  public void testGapTriggersResync() {
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createEntity("v456"));
+    _leader.handleIncrementalUpdate(update);
+    assertEquals(2, _follower.getIncrementalIndex());
+
+    /**
+     * Simulate a differential that skips ahead of what we've seen, as if
+     * updates were lost in transit.
+     */
+    FeedMessage.Builder gap = FeedMessage.newBuilder();
+    FeedHeader.Builder header = gap.getHeaderBuilder();
+    header.setIncrementality(Incrementality.DIFFERENTIAL);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    OneBusAwayFeedHeader.Builder obaHeader = OneBusAwayFeedHeader.newBuilder();
+    obaHeader.setIncrementalIndex(5);
+    header.setExtension(GtfsRealtimeOneBusAway.obaFeedHeader,
+        obaHeader.build());
+    gap.addEntity(createEntity("v789"));
+    _follower.handleFeed(gap.build());
+
+    FeedMessage feed = _local.getFeed();
+    assertEquals(2, getIncrementalIndex(feed));
+    assertEquals(2, feed.getEntityCount());
+    assertEquals(2, _follower.getIncrementalIndex());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLocalExpiryIsRejected() throws Exception {
+    GtfsRealtimeFollower follower = new GtfsRealtimeFollower();
+    follower.setLeader(_leader);
+    follower.setSink(new GtfsRealtimeExporterImpl(60));
+    follower.start();
+  }
+
+  private static FeedEntity createEntity(String id) {
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setId(id);
+    return entity.build();
+  }
+
+  private static long getIncrementalIndex(FeedMessage feed) {
+    return feed.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+  }
+}
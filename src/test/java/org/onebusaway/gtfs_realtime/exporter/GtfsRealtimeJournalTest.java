@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+public class GtfsRealtimeJournalTest {
+
+  private File _directory;
+
+  @Before
+  public void setup() throws IOException {
+    _directory = File.createTempFile(
+        GtfsRealtimeJournalTest.class.getName(), "-journal");
+    _directory.delete();
+  }
+
+  @After
+  public void teardown() {
+    File[] files = _directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    _directory.delete();
+  }
+
+  @Test
+  public void testRestore() throws IOException {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    GtfsRealtimeJournal journal = createJournal(exporter);
+
+    GtfsRealtimeFullUpdate fullUpdate = new GtfsRealtimeFullUpdate();
+    fullUpdate.addEntity(createEntity("v123"));
+    fullUpdate.addEntity(createEntity("v456"));
+    exporter.handleFullUpdate(fullUpdate);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createEntity("v789"));
+    update.addDeletedEntity("v123");
+    exporter.handleIncrementalUpdate(update);
+
+    journal.stop();
+
+    exporter = new GtfsRealtimeExporterImpl();
+    journal = createJournal(exporter);
+
+    FeedMessage feed = exporter.getFeed();
+    assertEquals(2, getIncrementalIndex(feed));
+    assertEquals(getEntityIds("v456", "v789"), getEntityIds(feed));
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v456");
+    exporter.handleIncrementalUpdate(update);
+    journal.stop();
+
+    exporter = new GtfsRealtimeExporterImpl();
+    journal = createJournal(exporter);
+
+    feed = exporter.getFeed();
+    assertEquals(3, getIncrementalIndex(feed));
+    assertEquals(getEntityIds("v789"), getEntityIds(feed));
+    journal.stop();
+  }
+
+  @Test
+  public void testJournalFull() throws IOException {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    GtfsRealtimeJournal journal = createJournal(exporter);
+    journal.stop();
+    journal = new GtfsRealtimeJournal();
+    journal.setExporter(exporter);
+    journal.setDirectory(_directory);
+    journal.setJournalSize(256);
+    journal.start();
+
+    for (int i = 0; i < 20; ++i) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      update.addUpdatedEntity(createEntity("v" + i));
+      exporter.handleIncrementalUpdate(update);
+    }
+    journal.stop();
+
+    exporter = new GtfsRealtimeExporterImpl();
+    journal = createJournal(exporter);
+    FeedMessage feed = exporter.getFeed();
+    assertEquals(20, getIncrementalIndex(feed));
+    assertEquals(20, feed.getEntityCount());
+    journal.stop();
+  }
+
+  @Test
+  public void testExpiredEntitiesAreDropped() throws Exception {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    GtfsRealtimeJournal journal = createJournal(exporter);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createEntity("v123"));
+    exporter.handleIncrementalUpdate(update);
+    journal.stop();
+
+    Thread.sleep(1100);
+
+    exporter = new GtfsRealtimeExporterImpl();
+    journal = new GtfsRealtimeJournal();
+    journal.setExporter(exporter);
+    journal.setDirectory(_directory);
+    journal.setCacheExpireSecs(1);
+    journal.start();
+
+    FeedMessage feed = exporter.getFeed();
+    assertEquals(1, getIncrementalIndex(feed));
+    assertEquals(0, feed.getEntityCount());
+    journal.stop();
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    GtfsRealtimeJournal journal = createJournal(exporter);
+    File snapshot = new File(_directory, "snapshot.bin");
+    long snapshotModified = snapshot.lastModified();
+
+    // A full dataset is journaled rather than snapshotted.
+    GtfsRealtimeFullUpdate fullUpdate = new GtfsRealtimeFullUpdate();
+    fullUpdate.addEntity(createEntity("v123"));
+    fullUpdate.addEntity(createEntity("v456"));
+    exporter.handleFullUpdate(fullUpdate);
+    assertEquals(snapshotModified, snapshot.lastModified());
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("v123");
+    exporter.handleIncrementalUpdate(update);
+
+    journal.compact();
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createEntity("v789"));
+    exporter.handleIncrementalUpdate(update);
+    journal.stop();
+
+    exporter = new GtfsRealtimeExporterImpl();
+    journal = createJournal(exporter);
+    FeedMessage feed = exporter.getFeed();
+    assertEquals(3, getIncrementalIndex(feed));
+    assertEquals(getEntityIds("v456", "v789"), getEntityIds(feed));
+    journal.stop();
+  }
+
+  private GtfsRealtimeJournal createJournal(GtfsRealtimeExporter exporter)
+      throws IOException {
+    GtfsRealtimeJournal journal = new GtfsRealtimeJournal();
+    journal.setExporter(exporter);
+    journal.setDirectory(_directory);
+    journal.start();
+    return journal;
+  }
+
+  private static FeedEntity createEntity(String id) {
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setId(id);
+    return entity.build();
+  }
+
+  private static long getIncrementalIndex(FeedMessage feed) {
+    return feed.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+  }
+
+  private static Set<String> getEntityIds(String... ids) {
+    Set<String> result = new HashSet<String>();
+    for (String id : ids) {
+      result.add(id);
+    }
+    return result;
+  }
+
+  private static Set<String> getEntityIds(FeedMessage feed) {
+    Set<String> result = new HashSet<String>();
+    for (FeedEntity entity : feed.getEntityList()) {
+      result.add(entity.getId());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeLatencyTracer.Stage;
+
+public class GtfsRealtimeLatencyTracerTest {
+
+  private GtfsRealtimeLatencyTracer _tracer;
+
+  @Before
+  public void setup() {
+    _tracer = new GtfsRealtimeLatencyTracer();
+  }
+
+  @Test
+  public void testDisabled() {
+    assertNull(_tracer.startTrace());
+    _tracer.setEnabled("true");
+    assertNotNull(_tracer.startTrace());
+  }
+
+  @Test
+  public void testHistogram() {
+    GtfsRealtimeLatencyHistogram histogram = new GtfsRealtimeLatencyHistogram();
+    assertEquals(0, histogram.getPercentileNanos(50));
+    for (int i = 0; i < 99; ++i) {
+      histogram.record(1000);
+    }
+    histogram.record(1000000);
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(1000000, histogram.getMaxNanos());
+    assertEquals((99 * 1000 + 1000000) / 100, histogram.getMeanNanos());
+    // Percentiles are the upper bound of their power-of-two bucket.
+    assertEquals(1023, histogram.getPercentileNanos(50));
+    assertEquals(1023, histogram.getPercentileNanos(99));
+    assertEquals(1000000, histogram.getPercentileNanos(100));
+  }
+
+  @Test
+  public void testStages() {
+    _tracer.setEnabled(true);
+    GtfsRealtimeTrace trace = _tracer.startTrace();
+    trace.record(Stage.ENCODING, 100);
+    trace.record(Stage.ENCODING, 50);
+    trace.published(7, 2);
+    trace.record(Stage.WEBSOCKET_SEND, 300);
+    trace.deliveryCompleted();
+    trace.record(Stage.WEBSOCKET_SEND, 200);
+    assertEquals(-1, trace.getTotalNanos());
+    trace.deliveryCompleted();
+
+    assertTrue(trace.getTotalNanos() >= 0);
+    assertEquals(7, trace.getIncrementalIndex());
+    // Once-per-update stages add up, while per-listener stages keep the
+    // slowest listener.
+    assertEquals(150, trace.getStageNanos(Stage.ENCODING));
+    assertEquals(300, trace.getStageNanos(Stage.WEBSOCKET_SEND));
+    assertEquals(2, _tracer.getHistogram(Stage.WEBSOCKET_SEND).getCount());
+    assertEquals(1, _tracer.getEndToEndHistogram().getCount());
+  }
+
+  @Test
+  public void testSlowestTraces() throws Exception {
+    _tracer.setEnabled(true);
+    _tracer.setSlowestCount(2);
+    GtfsRealtimeTrace a = _tracer.startTrace();
+    GtfsRealtimeTrace b = _tracer.startTrace();
+    GtfsRealtimeTrace c = _tracer.startTrace();
+    Thread.sleep(5);
+    c.published(1, 0);
+    b.published(2, 0);
+    a.published(3, 0);
+
+    // a and b were started together with c but completed after it.
+    List<GtfsRealtimeTrace> slowest = _tracer.getSlowestTraces();
+    assertEquals(2, slowest.size());
+    assertSame(a, slowest.get(0));
+    assertSame(b, slowest.get(1));
+
+    _tracer.setRecentWindow(-1);
+    assertTrue(_tracer.getSlowestTraces().isEmpty());
+  }
+}
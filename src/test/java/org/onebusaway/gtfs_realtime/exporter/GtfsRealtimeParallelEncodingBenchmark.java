@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures snapshot encoding time against the number of encoder threads, where
+ * one thread is the sequential path. Not run as part of the test suite; launch
+ * it from the test classpath with:
+ * 
+ * <pre>
+ * java ... GtfsRealtimeParallelEncodingBenchmark
+ * </pre>
+ * 
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GtfsRealtimeParallelEncodingBenchmark {
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  @Param({"100000"})
+  public int entities;
+
+  @Param({"OBJECT", "ENCODED"})
+  public String storeMode;
+
+  private GtfsRealtimeEntityStore<?> _store;
+
+  private ForkJoinPool _pool;
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(
+        GtfsRealtimeParallelEncodingBenchmark.class.getSimpleName()).build()).run();
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    _store = GtfsRealtimeEntityStore.create(
+        GtfsRealtimeEntityStore.Mode.valueOf(storeMode), 0);
+    for (int i = 0; i < entities; ++i) {
+      _store.put(GtfsRealtimeEntityStoreTest.createTripUpdate("t" + i, 20));
+    }
+    _pool = threads > 1 ? new ForkJoinPool(threads) : null;
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    if (_pool != null) {
+      _pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public Object encodeEntities() {
+    return _store.encodeEntities(_pool, 0);
+  }
+}
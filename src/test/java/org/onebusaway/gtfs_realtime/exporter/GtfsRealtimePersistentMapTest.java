@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GtfsRealtimePersistentMapTest {
+
+  @Test
+  public void testVersionsAreIndependent() {
+    GtfsRealtimePersistentMap<String, String> a = GtfsRealtimePersistentMap.empty();
+    a = a.put("v1", "1").put("v2", "2");
+    GtfsRealtimePersistentMap<String, String> b = a.put("v1", "one").remove(
+        "v2");
+
+    assertEquals("1", a.get("v1"));
+    assertEquals("2", a.get("v2"));
+    assertEquals(2, a.size());
+    assertEquals("one", b.get("v1"));
+    assertNull(b.get("v2"));
+    assertEquals(1, b.size());
+    assertSame(b, b.remove("v2"));
+  }
+
+  @Test
+  public void testCollisions() {
+    // "Aa" and "BB" share a hash code.
+    GtfsRealtimePersistentMap<String, String> map = GtfsRealtimePersistentMap.empty();
+    map = map.put("Aa", "1").put("BB", "2").put("AaAa", "3");
+    assertEquals("1", map.get("Aa"));
+    assertEquals("2", map.get("BB"));
+    assertEquals(3, map.size());
+    map = map.remove("Aa");
+    assertNull(map.get("Aa"));
+    assertEquals("2", map.get("BB"));
+    assertEquals(2, map.size());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random random = new Random(42);
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    GtfsRealtimePersistentMap<String, Integer> map = GtfsRealtimePersistentMap.empty();
+    for (int i = 0; i < 20000; ++i) {
+      String key = "entity-" + random.nextInt(2000);
+      if (random.nextInt(3) == 0) {
+        expected.remove(key);
+        map = map.remove(key);
+      } else {
+        expected.put(key, i);
+        map = map.put(key, i);
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (int i = 0; i < 2000; ++i) {
+      String key = "entity-" + i;
+      assertEquals(expected.get(key), map.get(key));
+    }
+    List<Integer> values = new ArrayList<Integer>();
+    map.collectValues(values);
+    assertEquals(expected.size(), values.size());
+
+    for (String key : expected.keySet()) {
+      map = map.remove(key);
+    }
+    assertEquals(0, map.size());
+    values.clear();
+    map.collectValues(values);
+    assertEquals(0, values.size());
+  }
+}
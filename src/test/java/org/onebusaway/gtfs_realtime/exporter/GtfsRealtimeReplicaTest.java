@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+
+public class GtfsRealtimeReplicaTest {
+
+  private GtfsRealtimeExporterImpl _leader;
+
+  private GtfsRealtimeReplica _replica;
+
+  private GtfsRealtimeReplicaListener _listener;
+
+  @Before
+  public void setup() throws Exception {
+    _leader = new GtfsRealtimeExporterImpl();
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    full.addEntity(createEntity("v1", 1));
+    full.addEntity(createEntity("v2", 1));
+    _leader.handleFullUpdate(full);
+
+    _listener = Mockito.mock(GtfsRealtimeReplicaListener.class);
+    _replica = new GtfsRealtimeReplica();
+    _replica.setLeader(_leader);
+    _replica.addListener(_listener);
+    _replica.start();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    _replica.stop();
+  }
+
+  @Test
+  public void testReplication() {
+    assertEquals(2, _replica.size());
+    assertEquals(1, _replica.getIncrementalIndex());
+    Mockito.verify(_listener).handleEntityUpdated(createEntity("v1", 1), null);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(createEntity("v1", 2));
+    update.addDeletedEntity("v2");
+    _leader.handleIncrementalUpdate(update);
+
+    assertEquals(2, _replica.getIncrementalIndex());
+    assertEquals(createEntity("v1", 2), _replica.getEntity("v1"));
+    assertNull(_replica.getEntity("v2"));
+    Mockito.verify(_listener).handleEntityUpdated(createEntity("v1", 2),
+        createEntity("v1", 1));
+    Mockito.verify(_listener).handleEntityDeleted(createEntity("v2", 1));
+
+    // A full dataset only reports what actually changed.
+    GtfsRealtimeFullUpdate full = new GtfsRealtimeFullUpdate();
+    full.addEntity(createEntity("v1", 2));
+    full.addEntity(createEntity("v3", 1));
+    _leader.handleFullUpdate(full);
+    assertEquals(2, _replica.size());
+    Mockito.verify(_listener).handleEntityUpdated(createEntity("v3", 1), null);
+    Mockito.verify(_listener, Mockito.times(4)).handleEntityUpdated(
+        Mockito.any(FeedEntity.class), Mockito.any(FeedEntity.class));
+  }
+
+  private static FeedEntity createEntity(String id, float bearing) {
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setId(id);
+    VehiclePosition.Builder vehicle = entity.getVehicleBuilder();
+    vehicle.getPositionBuilder().setLatitude(47).setLongitude(-122).setBearing(
+        bearing);
+    return entity.build();
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
+public class GtfsRealtimeTripUpdateCompactorTest {
+
+  private GtfsRealtimeSink _sink;
+
+  private GtfsRealtimeTripUpdateCompactor _compactor;
+
+  private long _now;
+
+  @Before
+  public void setup() {
+    _sink = Mockito.mock(GtfsRealtimeSink.class);
+    _compactor = new GtfsRealtimeTripUpdateCompactor();
+    _compactor.setSink(_sink);
+    _compactor.setStopHorizon(600);
+    _compactor.setTripHorizon(1800);
+    _now = System.currentTimeMillis() / 1000;
+  }
+
+  @Test
+  public void testCompactOnIngest() {
+    update(createTrip("t1", -1200, -900, -700, 60, 300));
+
+    List<GtfsRealtimeIncrementalUpdate> updates = getForwardedUpdates(1);
+    TripUpdate tripUpdate = updates.get(0).getUpdatedEntities().get(0).getTripUpdate();
+    // The most recent stop past the horizon is kept for propagation.
+    assertEquals(3, tripUpdate.getStopTimeUpdateCount());
+    assertEquals("s2", tripUpdate.getStopTimeUpdate(0).getStopId());
+    assertEquals(2, _compactor.getPrunedStopTimeUpdates());
+    assertTrue(_compactor.getBytesSaved() > 0);
+  }
+
+  @Test
+  public void testNothingToPrune() {
+    FeedEntity entity = createTrip("t1", -300, 60, 300);
+    update(entity);
+    List<GtfsRealtimeIncrementalUpdate> updates = getForwardedUpdates(1);
+    assertEquals(entity, updates.get(0).getUpdatedEntities().get(0));
+    assertEquals(0, _compactor.getBytesSaved());
+  }
+
+  @Test
+  public void testEndedTripIsRemoved() {
+    update(createTrip("t1", -1200, -900, -700, 60));
+    getForwardedUpdates(1);
+    assertTrue(_compactor.getBytesSaved() > 0);
+
+    update(createTrip("t1", -4000, -3000, -2000));
+    List<GtfsRealtimeIncrementalUpdate> updates = getForwardedUpdates(2);
+    assertEquals(0, updates.get(1).getUpdatedEntities().size());
+    assertEquals("t1", updates.get(1).getDeletedEntities().get(0));
+    assertEquals(1, _compactor.getRemovedTrips());
+    // A removed trip is no longer part of the feed, so it saves nothing.
+    assertEquals(0, _compactor.getBytesSaved());
+
+    // A producer that keeps sending the ended trip doesn't cause more churn.
+    update(createTrip("t1", -4000, -3000, -2000));
+    getForwardedUpdates(2);
+
+    // Nor does a trip that had already ended when we first saw it.
+    update(createTrip("t2", -4000, -3000, -2000));
+    getForwardedUpdates(2);
+    assertEquals(1, _compactor.getRemovedTrips());
+
+    // Once the producer deletes it, the deletion is passed on as usual.
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("t1");
+    _compactor.handleIncrementalUpdate(update);
+    getForwardedUpdates(3);
+    assertEquals(0, _compactor.getBytesSaved());
+  }
+
+  @Test
+  public void testPeriodicCompaction() {
+    update(createTrip("t1", -500, -100, 60, 300));
+    getForwardedUpdates(1);
+
+    // Nothing has aged past the horizon yet.
+    _compactor.compactAll();
+    getForwardedUpdates(1);
+
+    _compactor.setStopHorizon(0);
+    _compactor.compactAll();
+    List<GtfsRealtimeIncrementalUpdate> updates = getForwardedUpdates(2);
+    TripUpdate tripUpdate = updates.get(1).getUpdatedEntities().get(0).getTripUpdate();
+    assertEquals(3, tripUpdate.getStopTimeUpdateCount());
+    assertEquals("s1", tripUpdate.getStopTimeUpdate(0).getStopId());
+
+    _compactor.setTripHorizon(-600);
+    _compactor.compactAll();
+    updates = getForwardedUpdates(3);
+    assertEquals("t1", updates.get(2).getDeletedEntities().get(0));
+    assertEquals(0, _compactor.getBytesSaved());
+
+    // The removed trip is no longer tracked, so later passes are no-ops.
+    _compactor.compactAll();
+    getForwardedUpdates(3);
+  }
+
+  @Test
+  public void testFullUpdate() {
+    GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+    update.addEntity(createTrip("t1", -1200, -900, 60));
+    update.addEntity(createTrip("t2", -4000, -3000));
+    _compactor.handleFullUpdate(update);
+
+    ArgumentCaptor<GtfsRealtimeFullUpdate> captor = ArgumentCaptor.forClass(GtfsRealtimeFullUpdate.class);
+    Mockito.verify(_sink).handleFullUpdate(captor.capture());
+    List<FeedEntity> entities = captor.getValue().getEntities();
+    assertEquals(1, entities.size());
+    assertEquals(2,
+        entities.get(0).getTripUpdate().getStopTimeUpdateCount());
+  }
+
+  private void update(FeedEntity entity) {
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity);
+    _compactor.handleIncrementalUpdate(update);
+  }
+
+  private List<GtfsRealtimeIncrementalUpdate> getForwardedUpdates(int count) {
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> captor = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(_sink, Mockito.times(count)).handleIncrementalUpdate(
+        captor.capture());
+    return captor.getAllValues();
+  }
+
+  private FeedEntity createTrip(String id, int... offsets) {
+    TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+    tripUpdate.setTrip(TripDescriptor.newBuilder().setTripId(id));
+    for (int i = 0; i < offsets.length; ++i) {
+      StopTimeUpdate.Builder stopTimeUpdate = tripUpdate.addStopTimeUpdateBuilder();
+      stopTimeUpdate.setStopId("s" + i);
+      stopTimeUpdate.setArrival(StopTimeEvent.newBuilder().setTime(
+          _now + offsets[i]));
+    }
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setId(id);
+    entity.setTripUpdate(tripUpdate);
+    return entity.build();
+  }
+}
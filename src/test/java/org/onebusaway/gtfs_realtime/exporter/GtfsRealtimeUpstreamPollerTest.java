@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2026 agent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class GtfsRealtimeUpstreamPollerTest {
+
+  private HttpServer _server;
+
+  private FeedHandler _handler = new FeedHandler();
+
+  private GtfsRealtimeSink _sink;
+
+  private GtfsRealtimeUpstreamPoller _poller;
+
+  @Before
+  public void setup() throws Exception {
+    _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    _server.createContext("/feed", _handler);
+    _server.start();
+
+    _sink = Mockito.mock(GtfsRealtimeSink.class);
+    _poller = new GtfsRealtimeUpstreamPoller();
+    _poller.setSink(_sink);
+    _poller.setUrl(new URL("http://localhost:"
+        + _server.getAddress().getPort() + "/feed"));
+  }
+
+  @After
+  public void teardown() {
+    _server.stop(0);
+  }
+
+  @Test
+  public void testConditionalRequests() throws Exception {
+    _handler.setFeed(createFeed("v1", "v2"), "\"1\"");
+    _poller.poll();
+    ArgumentCaptor<GtfsRealtimeFullUpdate> full = ArgumentCaptor.forClass(GtfsRealtimeFullUpdate.class);
+    Mockito.verify(_sink).handleFullUpdate(full.capture());
+    assertEquals(2, full.getValue().getEntities().size());
+
+    _poller.poll();
+    assertEquals("\"1\"", _handler.getIfNoneMatch());
+    assertEquals(1, _poller.getNotModifiedCount());
+
+    _handler.setFeed(createFeed("v2", "v3"), "\"2\"");
+    _poller.poll();
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> incremental = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(_sink).handleIncrementalUpdate(incremental.capture());
+    List<FeedEntity> updated = incremental.getValue().getUpdatedEntities();
+    assertEquals(1, updated.size());
+    assertEquals("v3", updated.get(0).getId());
+    assertEquals("v1", incremental.getValue().getDeletedEntities().get(0));
+    assertEquals(2, _poller.getChangedCount());
+  }
+
+  @Test
+  public void testUnchangedBodyIsNotParsed() throws Exception {
+    _handler.setFeed(createFeed("v1"), null);
+    _poller.poll();
+    _poller.poll();
+    assertEquals(0, _poller.getNotModifiedCount());
+    assertEquals(1, _poller.getUnchangedCount());
+    Mockito.verify(_sink).handleFullUpdate(
+        Mockito.any(GtfsRealtimeFullUpdate.class));
+    Mockito.verify(_sink, Mockito.never()).handleIncrementalUpdate(
+        Mockito.any(GtfsRealtimeIncrementalUpdate.class));
+  }
+
+  @Test
+  public void testRejectedUpdateIsRetried() throws Exception {
+    _handler.setFeed(createFeed("v1"), "\"1\"");
+    _poller.poll();
+
+    _handler.setFeed(createFeed("v1", "v2"), "\"2\"");
+    Mockito.doThrow(new GtfsRealtimeMemoryBudgetExceededException("full")).doNothing().when(
+        _sink).handleIncrementalUpdate(Mockito.any(GtfsRealtimeIncrementalUpdate.class));
+    try {
+      _poller.poll();
+      fail();
+    } catch (GtfsRealtimeMemoryBudgetExceededException ex) {
+    }
+
+    // The same body is diffed and pushed again, rather than skipped.
+    _poller.poll();
+    assertEquals("\"1\"", _handler.getIfNoneMatch());
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> incremental = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(_sink, Mockito.times(2)).handleIncrementalUpdate(
+        incremental.capture());
+    assertEquals("v2",
+        incremental.getValue().getUpdatedEntities().get(0).getId());
+    assertEquals(0, _poller.getUnchangedCount());
+    assertEquals(2, _poller.getChangedCount());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    _poller.setRefreshInterval(1);
+    _handler.setFeed(createFeed("v1", "v2"), "\"1\"");
+    _poller.poll();
+    Thread.sleep(5);
+
+    // Unchanged entities are re-sent once the refresh interval has passed.
+    _poller.poll();
+    assertEquals(1, _poller.getNotModifiedCount());
+    ArgumentCaptor<GtfsRealtimeIncrementalUpdate> incremental = ArgumentCaptor.forClass(GtfsRealtimeIncrementalUpdate.class);
+    Mockito.verify(_sink).handleIncrementalUpdate(incremental.capture());
+    assertEquals(2, incremental.getValue().getUpdatedEntities().size());
+
+    _poller.setCacheExpireSecs("0");
+    _poller.poll();
+    Mockito.verify(_sink).handleIncrementalUpdate(
+        Mockito.any(GtfsRealtimeIncrementalUpdate.class));
+  }
+
+  private static FeedMessage createFeed(String... ids) {
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    FeedHeader.Builder header = feed.getHeaderBuilder();
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    for (String id : ids) {
+      FeedEntity.Builder entity = feed.addEntityBuilder();
+      entity.setId(id);
+      entity.setVehicle(VehiclePosition.newBuilder());
+    }
+    return feed.build();
+  }
+
+  private static class FeedHandler implements HttpHandler {
+
+    private byte[] _body;
+
+    private String _etag;
+
+    private String _ifNoneMatch;
+
+    public synchronized void setFeed(FeedMessage feed, String etag) {
+      _body = feed.toByteArray();
+      _etag = etag;
+    }
+
+    public synchronized String getIfNoneMatch() {
+      return _ifNoneMatch;
+    }
+
+    @Override
+    public synchronized void handle(HttpExchange exchange) throws IOException {
+      _ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+      if (_etag != null && _etag.equals(_ifNoneMatch)) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      if (_etag != null) {
+        exchange.getResponseHeaders().set("ETag", _etag);
+      }
+      exchange.sendResponseHeaders(200, _body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(_body);
+      out.close();
+    }
+  }
+}
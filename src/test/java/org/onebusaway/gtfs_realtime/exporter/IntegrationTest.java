@@ -124,7 +124,7 @@ public class IntegrationTest {
       _exporter.handleIncrementalUpdate(update);
     }
 
-    Thread.sleep((fileWriter.getPeriod() + 1) * 1000);
+    Thread.sleep(fileWriter.getMinimumInterval() + 1000);
 
     FeedMessage feed = FeedMessage.parseFrom(new FileInputStream(path));
     assertEquals(1, feed.getEntityCount());
@@ -144,7 +144,7 @@ public class IntegrationTest {
       _exporter.handleIncrementalUpdate(update);
     }
 
-    Thread.sleep((fileWriter.getPeriod() + 1) * 1000);
+    Thread.sleep(fileWriter.getMinimumInterval() + 1000);
 
     feed = FeedMessage.parseFrom(new FileInputStream(path));
     assertEquals(2, feed.getEntityCount());